@@ -16,6 +16,7 @@
 
 package com.android.services.telephony.sip;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.AtomicFile;
 
 import android.content.Context;
@@ -24,17 +25,36 @@ import android.text.TextUtils;
 import android.util.EventLog;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 
 /**
  * Utility class that helps perform operations on the SipProfile database.
+ *
+ * All profiles are stored in a single file: a header with a magic number, the format version and
+ * the number of profiles, then one record per profile prefixed by its length and followed by its
+ * CRC32. A record holds the fields of the profile, so it doesn't depend on the serialized form of
+ * {@link SipProfile}. Profiles saved by older releases, one serialized object per
+ * {@code /profiles/<name>/.pobj} file, are moved to the file the first time they are read.
+ *
+ * The profiles are read from disk once per process and kept in memory, by name, for every
+ * instance to share. Reads after the first one don't touch the disk.
  */
 class SipProfileDb {
     private static final String PREFIX = "[SipProfileDb] ";
@@ -42,13 +62,28 @@ class SipProfileDb {
 
     private static final String PROFILES_DIR = "/profiles/";
     private static final String PROFILE_OBJ_FILE = ".pobj";
+    private static final String PROFILES_FILE = "sip_profiles";
+
+    // "SIPP"
+    private static final int MAGIC = 0x53495050;
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 1;
 
     private static final String SCHEME_PREFIX = "sip:";
 
+    /**
+     * The profiles of each profiles file, by name, in the order they were saved. Guarded by
+     * SipProfileDb.class.
+     */
+    private static final HashMap<String, LinkedHashMap<String, SipProfile>> sProfiles =
+            new HashMap<>();
+
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+
     private Context mContext;
     private String mProfilesDirectory;
+    private AtomicFile mProfilesFile;
     private SipPreferences mSipPreferences;
-    private int mProfilesCount = -1;
 
     public SipProfileDb(Context context) {
         // Sip Profile Db should always reference CE storage.
@@ -64,6 +99,7 @@ class SipProfileDb {
 
     private void setupDatabase() {
         mProfilesDirectory = mContext.getFilesDir().getAbsolutePath() + PROFILES_DIR;
+        mProfilesFile = new AtomicFile(new File(mContext.getFilesDir(), PROFILES_FILE));
         mSipPreferences = new SipPreferences(mContext);
     }
 
@@ -73,8 +109,10 @@ class SipProfileDb {
             if (!isChild(new File(mProfilesDirectory), profileFile)) {
                 throw new IOException("Invalid Profile Credentials!");
             }
-            deleteProfile(profileFile);
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
+            LinkedHashMap<String, SipProfile> profiles =
+                    new LinkedHashMap<String, SipProfile>(getProfilesLocked());
+            if (profiles.remove(p.getProfileName()) == null) return;
+            writeProfilesLocked(profiles);
         }
     }
 
@@ -91,63 +129,272 @@ class SipProfileDb {
         if(dbDir.isDirectory()) {
             dbDir.delete();
         }
+        synchronized(SipProfileDb.class) {
+            if (getProfilesLocked().isEmpty()) {
+                mProfilesFile.delete();
+                sProfiles.remove(getKey());
+            }
+        }
         // Remove SharedPreferences file as well
         mSipPreferences.clearSharedPreferences();
     }
 
     public void saveProfile(SipProfile p) throws IOException {
         synchronized(SipProfileDb.class) {
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
             File f = new File(mProfilesDirectory, p.getProfileName());
+            // Profiles are no longer stored in a directory of their name, but names that
+            // can't be one are still rejected.
             if (!isChild(new File(mProfilesDirectory), f)) {
                 throw new IOException("Invalid Profile Credentials!");
             }
-            if (!f.exists()) f.mkdirs();
-            AtomicFile atomicFile = new AtomicFile(new File(f, PROFILE_OBJ_FILE));
-            FileOutputStream fos = null;
-            ObjectOutputStream oos = null;
-            try {
-                fos = atomicFile.startWrite();
-                oos = new ObjectOutputStream(fos);
-                oos.writeObject(p);
-                oos.flush();
-                atomicFile.finishWrite(fos);
-            } catch (IOException e) {
-                atomicFile.failWrite(fos);
-                throw e;
-            } finally {
-                if (oos != null) oos.close();
-            }
+            LinkedHashMap<String, SipProfile> profiles =
+                    new LinkedHashMap<String, SipProfile>(getProfilesLocked());
+            profiles.put(p.getProfileName(), copyOf(p));
+            writeProfilesLocked(profiles);
         }
     }
 
     public List<SipProfile> retrieveSipProfileList() {
         synchronized(SipProfileDb.class) {
-            return retrieveSipProfileListInternal();
+            LinkedHashMap<String, SipProfile> profiles = getProfilesLocked();
+            List<SipProfile> copies = new ArrayList<SipProfile>(profiles.size());
+            for (SipProfile p : profiles.values()) {
+                copies.add(copyOf(p));
+            }
+            return Collections.synchronizedList(copies);
+        }
+    }
+
+    public SipProfile retrieveSipProfileFromName(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return null;
+        }
+        synchronized(SipProfileDb.class) {
+            SipProfile p = getProfilesLocked().get(name);
+            return p == null ? null : copyOf(p);
         }
     }
 
-    private List<SipProfile> retrieveSipProfileListInternal() {
-        List<SipProfile> sipProfileList = Collections.synchronizedList(
-                new ArrayList<SipProfile>());
+    /**
+     * Copies a profile, so that the cached profiles aren't shared with callers, which may modify
+     * them, e.g. set their calling uid.
+     */
+    private static SipProfile copyOf(SipProfile p) {
+        return new SipProfile.Builder(p).build();
+    }
 
-        File root = new File(mProfilesDirectory);
-        String[] dirs = root.list();
-        if (dirs == null) return sipProfileList;
-        for (String dir : dirs) {
-            SipProfile p = retrieveSipProfileFromName(dir);
-            if (p == null) continue;
-            sipProfileList.add(p);
+    /**
+     * Returns the executor shared by the callers that need to read profiles off the main thread.
+     * Its tasks run one at a time, so the profiles are only read from disk once. Calls wait for
+     * the tasks before theirs, so the tasks must only read profiles, not e.g. start SIP services.
+     */
+    public static Executor getExecutor() {
+        return sExecutor;
+    }
+
+    private String getKey() {
+        return mProfilesFile.getBaseFile().getAbsolutePath();
+    }
+
+    /**
+     * Returns the profiles of {@link #mProfilesFile}, reading them from disk the first time. The
+     * returned map and its profiles are shared and must not be modified.
+     */
+    private LinkedHashMap<String, SipProfile> getProfilesLocked() {
+        LinkedHashMap<String, SipProfile> profiles = sProfiles.get(getKey());
+        if (profiles != null) return profiles;
+
+        byte[] data = null;
+        try {
+            data = mProfilesFile.readFully();
+        } catch (FileNotFoundException e) {
+            // Not created yet, the profiles may still be in the legacy directory.
+        } catch (IOException e) {
+            log("getProfilesLocked, exception: " + e);
         }
-        mProfilesCount = sipProfileList.size();
-        return sipProfileList;
+        if (data != null) {
+            profiles = parseProfiles(data);
+        } else {
+            String[] dirs = new File(mProfilesDirectory).list();
+            // There are no profiles yet, or they can't be read. Don't remember that since it
+            // may change, e.g. when credential protected storage is unlocked.
+            if (dirs == null) return new LinkedHashMap<String, SipProfile>();
+            profiles = migrateLegacyProfiles(dirs);
+        }
+        sProfiles.put(getKey(), profiles);
+        if (VERBOSE) log("getProfilesLocked, read " + profiles.size() + " profiles");
+        return profiles;
     }
 
-    public SipProfile retrieveSipProfileFromName(String name) {
-        if (TextUtils.isEmpty(name)) {
+    /**
+     * Writes {@code profiles} to {@link #mProfilesFile}, and makes them the cached profiles if it
+     * succeeded.
+     */
+    private void writeProfilesLocked(LinkedHashMap<String, SipProfile> profiles)
+            throws IOException {
+        byte[] data = writeProfiles(profiles);
+        FileOutputStream fos = null;
+        try {
+            fos = mProfilesFile.startWrite();
+            fos.write(data);
+            mProfilesFile.finishWrite(fos);
+        } catch (IOException e) {
+            mProfilesFile.failWrite(fos);
+            throw e;
+        }
+        sProfiles.put(getKey(), profiles);
+    }
+
+    /**
+     * Returns the content of the file with {@code profiles}.
+     */
+    @VisibleForTesting
+    static byte[] writeProfiles(LinkedHashMap<String, SipProfile> profiles) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(profiles.size());
+        for (SipProfile p : profiles.values()) {
+            byte[] record = createRecord(p);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt(getCrc(record));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the profiles of the file. A corrupted file keeps the profiles before the corruption.
+     */
+    @VisibleForTesting
+    static LinkedHashMap<String, SipProfile> parseProfiles(byte[] data) {
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<String, SipProfile>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a SIP profiles file");
+            }
+            int version = in.readInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unknown version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    throw new IOException("Invalid length of record " + i);
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                if (in.readInt() != getCrc(record)) {
+                    throw new IOException("Invalid checksum of record " + i);
+                }
+                SipProfile p = parseRecord(record);
+                if (p != null) profiles.put(p.getProfileName(), p);
+            }
+        } catch (IOException e) {
+            log("parseProfiles, exception: " + e);
+        }
+        return profiles;
+    }
+
+    private static byte[] createRecord(SipProfile p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, p.getProfileName());
+        writeString(out, p.getUserName());
+        writeString(out, p.getSipDomain());
+        writeString(out, p.getPassword());
+        writeString(out, p.getAuthUserName());
+        writeString(out, p.getDisplayName());
+        writeString(out, p.getProxyAddress());
+        writeString(out, p.getProtocol());
+        out.writeInt(p.getPort());
+        out.writeBoolean(p.getSendKeepAlive());
+        out.writeBoolean(p.getAutoRegistration());
+        return bytes.toByteArray();
+    }
+
+    private static SipProfile parseRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String profileName = readString(in);
+        String userName = readString(in);
+        String sipDomain = readString(in);
+        String password = readString(in);
+        String authUserName = readString(in);
+        String displayName = readString(in);
+        String proxyAddress = readString(in);
+        String protocol = readString(in);
+        int port = in.readInt();
+        boolean sendKeepAlive = in.readBoolean();
+        boolean autoRegistration = in.readBoolean();
+        try {
+            return new SipProfile.Builder(userName, sipDomain)
+                    .setProfileName(profileName)
+                    .setPassword(password)
+                    .setAuthUserName(authUserName)
+                    .setDisplayName(displayName)
+                    .setOutboundProxy(proxyAddress)
+                    .setProtocol(protocol)
+                    .setPort(port)
+                    .setSendKeepAlive(sendKeepAlive)
+                    .setAutoRegistration(autoRegistration)
+                    .build();
+        } catch (ParseException | IllegalArgumentException e) {
+            log("parseRecord, exception: " + e);
             return null;
         }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static int getCrc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the profiles saved as serialized objects in {@link #mProfilesDirectory}, writes them
+     * to {@link #mProfilesFile}, and deletes them if that succeeded. The profiles which can't be
+     * read are left where they are.
+     */
+    private LinkedHashMap<String, SipProfile> migrateLegacyProfiles(String[] dirs) {
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<String, SipProfile>();
+        for (String dir : dirs) {
+            SipProfile p = readProfile(dir);
+            if (p == null) {
+                log("migrateLegacyProfiles, can't read profile: " + dir);
+                continue;
+            }
+            profiles.put(dir, p);
+        }
+        try {
+            writeProfilesLocked(profiles);
+        } catch (IOException e) {
+            log("migrateLegacyProfiles, exception: " + e);
+            return profiles;
+        }
+        log("migrateLegacyProfiles, moved " + profiles.size() + " of " + dirs.length
+                + " profiles");
+        File root = new File(mProfilesDirectory);
+        for (String dir : profiles.keySet()) {
+            deleteProfile(new File(root, dir));
+        }
+        // Only removed if every profile was moved.
+        root.delete();
+        return profiles;
+    }
 
+    private SipProfile readProfile(String name) {
         File root = new File(mProfilesDirectory);
         File f = new File(new File(root, name), PROFILE_OBJ_FILE);
         if (f.exists()) {
@@ -157,7 +404,7 @@ class SipProfileDb {
                     return p;
                 }
             } catch (IOException e) {
-                log("retrieveSipProfileListInternal, exception: " + e);
+                log("readProfile, exception: " + e);
             }
         }
         return null;
@@ -18,28 +18,36 @@ package com.android.phone;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.ContactsContract.CommonDataKinds.Callable;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 import android.Manifest.permission;
 
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * Holds "custom ringtone" and "send to voicemail" information for each contact as a fallback of
- * contacts database. The cached information is refreshed periodically and used when database
- * lookup (via ContentResolver) takes longer time than expected.
+ * contacts database. The cached information is refreshed when contacts change and used when
+ * database lookup (via ContentResolver) takes longer time than expected.
  *
  * The data inside this class shouldn't be treated as "primary"; they may not reflect the
  * latest information stored in the original database.
@@ -54,6 +62,9 @@ public class CallerInfoCache {
 
     public static final int MESSAGE_UPDATE_CACHE = 0;
 
+    /** Contacts often change in bursts, e.g. during a sync, so refreshes are delayed this long. */
+    private static final long UPDATE_CACHE_DELAY_MILLIS = 5000;
+
     // Assuming DATA.DATA1 corresponds to Phone.NUMBER and SipAddress.ADDRESS, we just use
     // Data columns as much as we can. One exception: because normalized numbers won't be used in
     // SIP cases, Phone.NORMALIZED_NUMBER is used as is instead of using Data.
@@ -61,18 +72,33 @@ public class CallerInfoCache {
         Data.DATA1,                  // 0
         Phone.NORMALIZED_NUMBER,     // 1
         Data.CUSTOM_RINGTONE,        // 2
-        Data.SEND_TO_VOICEMAIL       // 3
+        Data.SEND_TO_VOICEMAIL,      // 3
+        Data.CONTACT_ID              // 4
     };
 
     private static final int INDEX_NUMBER            = 0;
     private static final int INDEX_NORMALIZED_NUMBER = 1;
     private static final int INDEX_CUSTOM_RINGTONE   = 2;
     private static final int INDEX_SEND_TO_VOICEMAIL = 3;
+    private static final int INDEX_CONTACT_ID        = 4;
 
     private static final String SELECTION = "("
             + "(" + Data.CUSTOM_RINGTONE + " IS NOT NULL OR " + Data.SEND_TO_VOICEMAIL + "=1)"
             + " AND " + Data.DATA1 + " IS NOT NULL)";
 
+    private static final String CHANGED_SELECTION = SELECTION
+            + " AND " + Data.CONTACT_LAST_UPDATED_TIMESTAMP + ">?";
+
+    private static final String[] CHANGED_CONTACTS_PROJECTION = new String[] {
+        Contacts._ID,                              // 0
+        Contacts.CONTACT_LAST_UPDATED_TIMESTAMP    // 1
+    };
+
+    private static final String[] DELETED_CONTACTS_PROJECTION = new String[] {
+        DeletedContacts.CONTACT_ID,                // 0
+        DeletedContacts.CONTACT_DELETED_TIMESTAMP  // 1
+    };
+
     public static class CacheEntry {
         public final String customRingtone;
         public final boolean sendToVoicemail;
@@ -134,6 +160,15 @@ public class CallerInfoCache {
 
     private final Context mContext;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MESSAGE_UPDATE_CACHE) {
+                startAsyncCache();
+            }
+        }
+    };
+
     /**
      * The mapping from number to CacheEntry.
      *
@@ -146,7 +181,15 @@ public class CallerInfoCache {
      * {@link #getCacheEntry(String)} access to the newer one every time when the object is
      * being replaced.
      */
-    private volatile HashMap<String, CacheEntry> mNumberToEntry;
+    private volatile NumberSuffixTable mNumberToEntry;
+
+    /**
+     * Contacts updated and deleted up to these times, in {@link System#currentTimeMillis()} time,
+     * are in the cache. The next refresh only queries the contacts changed after them. 0 before
+     * the first refresh. Only used by the refresh task.
+     */
+    private long mLastUpdatedTimestamp;
+    private long mLastDeletedTimestamp;
 
     /**
      * Used to remember if the previous task is finished or not. Should be set to null when done.
@@ -158,18 +201,36 @@ public class CallerInfoCache {
         CallerInfoCache cache = new CallerInfoCache(context);
         // The first cache should be available ASAP.
         cache.startAsyncCache();
+        cache.registerContactsObserver();
         return cache;
     }
 
     private CallerInfoCache(Context context) {
         mContext = context;
-        mNumberToEntry = new HashMap<String, CacheEntry>();
+        mNumberToEntry = new NumberSuffixTable(0);
+    }
+
+    private void registerContactsObserver() {
+        try {
+            mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI,
+                    true /* notifyForDescendants */, new ContentObserver(mHandler) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            mHandler.removeMessages(MESSAGE_UPDATE_CACHE);
+                            mHandler.sendEmptyMessageDelayed(MESSAGE_UPDATE_CACHE,
+                                    UPDATE_CACHE_DELAY_MILLIS);
+                        }
+                    });
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "Unable to observe contacts", e);
+        }
     }
 
     /* package */ void startAsyncCache() {
         if (DBG) log("startAsyncCache");
 
-        if (mCacheAsyncTask != null) {
+        if (mCacheAsyncTask != null
+                && mCacheAsyncTask.getStatus() != AsyncTask.Status.FINISHED) {
             Log.w(LOG_TAG, "Previous cache task is remaining.");
             mCacheAsyncTask.cancel(true);
         }
@@ -177,104 +238,174 @@ public class CallerInfoCache {
         mCacheAsyncTask.acquireWakeLockAndExecute();
     }
 
-    private void refreshCacheEntry() {
+    private synchronized void refreshCacheEntry() {
         if (VDBG) log("refreshCacheEntry() started");
 
-        // There's no way to know which part of the database was updated. Also we don't want
-        // to block incoming calls asking for the cache. So this method just does full query
-        // and replaces the older cache with newer one. To refrain from blocking incoming calls,
-        // it keeps older one as much as it can, and replaces it with newer one inside a very small
-        // synchronized block.
+        // To refrain from blocking incoming calls asking for the cache, the newer cache is
+        // prepared while keeping the older one, and replaces it with a single volatile write.
 
         if (!(mContext != null && (mContext.checkSelfPermission(permission.READ_CONTACTS)
                 == PackageManager.PERMISSION_GRANTED))) {
             return; // If there is no contacts permission, don't query.
         }
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(Callable.CONTENT_URI,
-                    PROJECTION, SELECTION, null, null);
-            if (cursor != null) {
-                // We don't want to block real in-coming call, so prepare a completely fresh
-                // cache here again, and replace it with older one.
-                final HashMap<String, CacheEntry> newNumberToEntry =
-                        new HashMap<String, CacheEntry>(cursor.getCount());
-
-                while (cursor.moveToNext()) {
-                    final String number = cursor.getString(INDEX_NUMBER);
-                    String normalizedNumber = cursor.getString(INDEX_NORMALIZED_NUMBER);
-                    if (normalizedNumber == null) {
-                        // There's no guarantee normalized numbers are available every time and
-                        // it may become null sometimes. Try formatting the original number.
-                        normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-                    }
-                    final String customRingtone = cursor.getString(INDEX_CUSTOM_RINGTONE);
-                    final boolean sendToVoicemail = cursor.getInt(INDEX_SEND_TO_VOICEMAIL) == 1;
-
-                    if (PhoneNumberUtils.isUriNumber(number)) {
-                        // SIP address case
-                        putNewEntryWhenAppropriate(
-                                newNumberToEntry, number, customRingtone, sendToVoicemail);
-                    } else {
-                        // PSTN number case
-                        // Each normalized number may or may not have full content of the number.
-                        // Contacts database may contain +15001234567 while a dialed number may be
-                        // just 5001234567. Also we may have inappropriate country
-                        // code in some cases (e.g. when the location of the device is inconsistent
-                        // with the device's place). So to avoid confusion we just rely on the last
-                        // 7 digits here. It may cause some kind of wrong behavior, which is
-                        // unavoidable anyway in very rare cases..
-                        final int length = normalizedNumber.length();
-                        final String key = length > 7
-                                ? normalizedNumber.substring(length - 7, length)
-                                        : normalizedNumber;
-                        putNewEntryWhenAppropriate(
-                                newNumberToEntry, key, customRingtone, sendToVoicemail);
-                    }
-                }
+        if (mLastUpdatedTimestamp == 0) {
+            loadAllEntries();
+        } else {
+            loadChangedEntries();
+        }
 
-                if (VDBG) {
-                    Log.d(LOG_TAG, "New cache size: " + newNumberToEntry.size());
-                    for (Entry<String, CacheEntry> entry : newNumberToEntry.entrySet()) {
-                        Log.d(LOG_TAG, "Number: " + entry.getKey() + " -> " + entry.getValue());
-                    }
-                }
+        if (VDBG) log("refreshCacheEntry() ended");
+    }
 
-                mNumberToEntry = newNumberToEntry;
+    /**
+     * Does a full query and replaces the older cache with newer one.
+     */
+    private void loadAllEntries() {
+        final long startTime = System.currentTimeMillis();
+        final Cursor cursor = mContext.getContentResolver().query(Callable.CONTENT_URI,
+                PROJECTION, SELECTION, null, null);
+        if (cursor == null) {
+            // Let's just wait for the next refresh..
+            //
+            // If the cursor became null at that exact moment, probably we don't want to
+            // drop old cache. Also the case is fairly rare in usual cases unless acore being
+            // killed, so we don't take care much of this case.
+            Log.w(LOG_TAG, "cursor is null");
+            return;
+        }
+        try {
+            // We don't want to block real in-coming call, so prepare a completely fresh
+            // cache here again, and replace it with older one.
+            final NumberSuffixTable newNumberToEntry = new NumberSuffixTable(cursor.getCount());
+            putEntries(newNumberToEntry, cursor);
+            mNumberToEntry = newNumberToEntry;
+            if (DBG) log("Caching entries are done. Total: " + newNumberToEntry.size());
+        } finally {
+            cursor.close();
+        }
+        // The query saw every change made before it started.
+        mLastUpdatedTimestamp = startTime;
+        mLastDeletedTimestamp = startTime;
+    }
 
-                if (DBG) {
-                    log("Caching entries are done. Total: " + newNumberToEntry.size());
-                }
-            } else {
-                // Let's just wait for the next refresh..
-                //
-                // If the cursor became null at that exact moment, probably we don't want to
-                // drop old cache. Also the case is fairly rare in usual cases unless acore being
-                // killed, so we don't take care much of this case.
-                Log.w(LOG_TAG, "cursor is null");
+    /**
+     * Queries the contacts updated or deleted since the last refresh, and replaces the older
+     * cache with a copy where only their entries are replaced.
+     */
+    private void loadChangedEntries() {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final HashSet<Long> changedContactIds = new HashSet<Long>();
+
+        // The contacts that changed, including those that no longer have a custom ringtone or
+        // send to voicemail, whose entries must be dropped.
+        final long lastUpdatedTimestamp = queryChangedContacts(resolver, Contacts.CONTENT_URI,
+                CHANGED_CONTACTS_PROJECTION, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+                mLastUpdatedTimestamp, changedContactIds);
+        final long lastDeletedTimestamp = queryChangedContacts(resolver,
+                DeletedContacts.CONTENT_URI, DELETED_CONTACTS_PROJECTION,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP, mLastDeletedTimestamp,
+                changedContactIds);
+        if (lastUpdatedTimestamp < 0 || lastDeletedTimestamp < 0) {
+            Log.w(LOG_TAG, "cursor is null");
+            return;
+        }
+        if (changedContactIds.isEmpty()) {
+            if (DBG) log("No contact changed.");
+            return;
+        }
+
+        final Cursor cursor = resolver.query(Callable.CONTENT_URI, PROJECTION,
+                CHANGED_SELECTION, new String[] {String.valueOf(mLastUpdatedTimestamp)}, null);
+        if (cursor == null) {
+            Log.w(LOG_TAG, "cursor is null");
+            return;
+        }
+        try {
+            // A contact may have been updated after the query above, its entries are replaced
+            // as well.
+            while (cursor.moveToNext()) {
+                changedContactIds.add(cursor.getLong(INDEX_CONTACT_ID));
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            final long[] contactIds = new long[changedContactIds.size()];
+            int i = 0;
+            for (long contactId : changedContactIds) {
+                contactIds[i++] = contactId;
+            }
+            Arrays.sort(contactIds);
+
+            final NumberSuffixTable newNumberToEntry =
+                    mNumberToEntry.copyWithoutContacts(contactIds, cursor.getCount());
+            cursor.moveToPosition(-1);
+            putEntries(newNumberToEntry, cursor);
+            mNumberToEntry = newNumberToEntry;
+            if (DBG) {
+                log("Updated " + contactIds.length + " contacts. Total: "
+                        + newNumberToEntry.size());
             }
+        } finally {
+            cursor.close();
         }
+        mLastUpdatedTimestamp = lastUpdatedTimestamp;
+        mLastDeletedTimestamp = lastDeletedTimestamp;
+    }
 
-        if (VDBG) log("refreshCacheEntry() ended");
+    /**
+     * Adds the ids of the contacts changed after {@code since} to {@code contactIds}.
+     *
+     * @return the latest change time, {@code since} if nothing changed, or -1 if the query failed.
+     */
+    private static long queryChangedContacts(ContentResolver resolver, Uri uri,
+            String[] projection, String timestampColumn, long since, HashSet<Long> contactIds) {
+        final Cursor cursor = resolver.query(uri, projection, timestampColumn + ">?",
+                new String[] {String.valueOf(since)}, null);
+        if (cursor == null) {
+            return -1;
+        }
+        long latest = since;
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+                latest = Math.max(latest, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return latest;
     }
 
-    private void putNewEntryWhenAppropriate(HashMap<String, CacheEntry> newNumberToEntry,
-            String numberOrSipAddress, String customRingtone, boolean sendToVoicemail) {
-        if (newNumberToEntry.containsKey(numberOrSipAddress)) {
-            // There may be duplicate entries here and we should prioritize
-            // "send-to-voicemail" flag in any case.
-            final CacheEntry entry = newNumberToEntry.get(numberOrSipAddress);
-            if (!entry.sendToVoicemail && sendToVoicemail) {
-                newNumberToEntry.put(numberOrSipAddress,
-                        new CacheEntry(customRingtone, sendToVoicemail));
+    private static void putEntries(NumberSuffixTable newNumberToEntry, Cursor cursor) {
+        while (cursor.moveToNext()) {
+            final String number = cursor.getString(INDEX_NUMBER);
+            String normalizedNumber = cursor.getString(INDEX_NORMALIZED_NUMBER);
+            if (normalizedNumber == null) {
+                // There's no guarantee normalized numbers are available every time and
+                // it may become null sometimes. Try formatting the original number.
+                normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+            }
+            final String customRingtone = cursor.getString(INDEX_CUSTOM_RINGTONE);
+            final boolean sendToVoicemail = cursor.getInt(INDEX_SEND_TO_VOICEMAIL) == 1;
+            final long contactId = cursor.getLong(INDEX_CONTACT_ID);
+
+            if (PhoneNumberUtils.isUriNumber(number)) {
+                // SIP address case
+                newNumberToEntry.addAddress(number, contactId, customRingtone, sendToVoicemail);
+            } else {
+                // PSTN number case
+                // Each normalized number may or may not have full content of the number.
+                // Contacts database may contain +15001234567 while a dialed number may be
+                // just 5001234567. Also we may have inappropriate country
+                // code in some cases (e.g. when the location of the device is inconsistent
+                // with the device's place). So to avoid confusion we just rely on the last
+                // 7 digits here. It may cause some kind of wrong behavior, which is
+                // unavoidable anyway in very rare cases..
+                final long key = NumberSuffixTable.packNormalizedSuffix(normalizedNumber);
+                if (key != 0) {
+                    newNumberToEntry.addNumber(key, contactId, customRingtone, sendToVoicemail);
+                } else {
+                    newNumberToEntry.addAddress(NumberSuffixTable.getSuffix(normalizedNumber),
+                            contactId, customRingtone, sendToVoicemail);
+                }
             }
-        } else {
-            newNumberToEntry.put(numberOrSipAddress,
-                    new CacheEntry(customRingtone, sendToVoicemail));
         }
     }
 
@@ -294,20 +425,24 @@ public class CallerInfoCache {
             return null;
         }
 
+        final NumberSuffixTable numberToEntry = mNumberToEntry;
         CacheEntry entry;
         if (PhoneNumberUtils.isUriNumber(number)) {
             if (VDBG) log("Trying to lookup " + number);
 
-            entry = mNumberToEntry.get(number);
+            entry = numberToEntry.getAddress(number);
         } else {
-            final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-            final int length = normalizedNumber.length();
-            final String key =
-                    (length > 7 ? normalizedNumber.substring(length - 7, length)
-                            : normalizedNumber);
-            if (VDBG) log("Trying to lookup " + key);
-
-            entry = mNumberToEntry.get(key);
+            // Numbers with at least 7 digits are packed without normalizing the whole number.
+            long key = NumberSuffixTable.packSuffix(number);
+            String normalizedNumber = null;
+            if (key == NumberSuffixTable.NEEDS_NORMALIZATION) {
+                normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+                key = NumberSuffixTable.packNormalizedSuffix(normalizedNumber);
+            }
+            if (VDBG) log("Trying to lookup " + Long.toHexString(key));
+
+            entry = key != 0 ? numberToEntry.getNumber(key)
+                    : numberToEntry.getAddress(NumberSuffixTable.getSuffix(normalizedNumber));
         }
         if (VDBG) log("Obtained " + entry);
         return entry;
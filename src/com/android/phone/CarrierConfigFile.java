@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.os.PersistableBundle;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache file for a carrier config bundle, written and read by {@link CarrierConfigLoader}.
+ *
+ * The file contains a magic number, the format version, the version of the package the config
+ * was fetched from, the payload length, a CRC32 of the payload and the payload itself: the bundle
+ * marshalled with {@link Parcel}. Parcel data is only guaranteed to be readable by the same
+ * build, which is enough here since all cached configs are deleted when the build fingerprint
+ * changes.
+ */
+class CarrierConfigFile {
+    private static final String LOG_TAG = "CarrierConfigFile";
+
+    // "CCFG"
+    private static final int MAGIC = 0x43434647;
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 1;
+    // Carrier configs are a few tens of KB, anything much larger is not one of our files.
+    private static final int MAX_FILE_SIZE = 1024 * 1024;
+
+    private CarrierConfigFile() {}
+
+    /**
+     * Writes {@code config} to {@code file}. The file is replaced atomically, so a crash never
+     * leaves a truncated cache behind.
+     */
+    static void write(File file, String packageVersion, PersistableBundle config)
+            throws IOException {
+        byte[] payload;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writePersistableBundle(config);
+            payload = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream outFile = atomicFile.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(outFile);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(packageVersion);
+            out.writeInt(payload.length);
+            out.writeLong(crc.getValue());
+            out.write(payload);
+            out.flush();
+            atomicFile.finishWrite(outFile);
+        } catch (IOException e) {
+            atomicFile.failWrite(outFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a bundle written by {@link #write} with a single read of the whole file.
+     *
+     * @return the bundle, or null if there is no file, it is corrupted, or it was written for a
+     *         different package version.
+     */
+    @Nullable
+    static PersistableBundle read(File file, String packageVersion) {
+        if (file.length() > MAX_FILE_SIZE) {
+            Log.e(LOG_TAG, "Ignoring oversized config file " + file.getName());
+            return null;
+        }
+        byte[] data;
+        try {
+            data = new AtomicFile(file).readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+            return null;
+        }
+
+        Parcel parcel = null;
+        try {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+            DataInputStream in = new DataInputStream(bytes);
+            if (in.readInt() != MAGIC) {
+                Log.e(LOG_TAG, "Bad magic in " + file.getName());
+                return null;
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                Log.d(LOG_TAG, "Unknown format version " + formatVersion);
+                return null;
+            }
+            String savedVersion = in.readUTF();
+            if (!packageVersion.equals(savedVersion)) {
+                Log.d(LOG_TAG, "Saved version mismatch: " + packageVersion + " vs "
+                        + savedVersion);
+                return null;
+            }
+            int length = in.readInt();
+            long checksum = in.readLong();
+            int offset = data.length - bytes.available();
+            if (length < 0 || length != data.length - offset) {
+                Log.e(LOG_TAG, "Bad payload length in " + file.getName());
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            if (crc.getValue() != checksum) {
+                Log.e(LOG_TAG, "Checksum mismatch in " + file.getName());
+                return null;
+            }
+            parcel = Parcel.obtain();
+            parcel.unmarshall(data, offset, length);
+            parcel.setDataPosition(0);
+            return parcel.readPersistableBundle();
+        } catch (IOException | RuntimeException e) {
+            // Truncated header, or a payload the checksum did not catch.
+            Log.e(LOG_TAG, "Failed to read " + file.getName() + ": " + e);
+            return null;
+        } finally {
+            if (parcel != null) {
+                parcel.recycle();
+            }
+        }
+    }
+}
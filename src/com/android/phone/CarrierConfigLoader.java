@@ -39,8 +39,10 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PersistableBundle;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.service.carrier.CarrierIdentifier;
@@ -58,7 +60,6 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyIntents;
-import com.android.internal.util.FastXmlSerializer;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -68,11 +69,14 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CarrierConfigLoader binds to privileged carrier apps to fetch carrier config overlays.
@@ -91,8 +95,22 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private PersistableBundle[] mConfigFromDefaultApp;
     // Carrier configs from privileged carrier config app, indexed by phoneID.
     private PersistableBundle[] mConfigFromCarrierApp;
+    // Defaults merged with the two configs above, indexed by phoneID. Rebuilt whenever one of them
+    // changes so getConfigForSubId() does not have to merge on every call. A published bundle is
+    // never modified. Guarded by itself.
+    private PersistableBundle[] mMergedConfig;
+    // Number of times the merged config has been rebuilt, indexed by phoneID.
+    private int[] mMergedConfigGeneration;
     // Service connection for binding to config app.
     private CarrierServiceConnection[] mServiceConnection;
+    // Runs file I/O and calls into the config apps for one phoneID, in order, so the handler and
+    // the other phones are never blocked by them.
+    private ExecutorService[] mPhoneExecutors;
+    // Incremented when a fetch starts or the config is cleared, to drop results of older fetches.
+    // Only accessed on the handler.
+    private int[] mFetchId;
+    // Timing of the last config load, indexed by phoneID. Only accessed on the handler.
+    private LoadTimings[] mLoadTimings;
 
     // Broadcast receiver for Boot intents, register intent filter in construtor.
     private final BroadcastReceiver mBootReceiver = new ConfigLoaderBroadcastReceiver();
@@ -110,9 +128,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final int EVENT_LOADED_FROM_DEFAULT = 5;
     // Config has been loaded from carrier app.
     private static final int EVENT_LOADED_FROM_CARRIER = 6;
-    // Attempt to fetch from default app or read from XML.
+    // Attempt to fetch from default app or read from file.
     private static final int EVENT_FETCH_DEFAULT = 7;
-    // Attempt to fetch from carrier app or read from XML.
+    // Attempt to fetch from carrier app or read from file.
     private static final int EVENT_FETCH_CARRIER = 8;
     // A package has been installed, uninstalled, or updated.
     private static final int EVENT_PACKAGE_CHANGED = 9;
@@ -124,11 +142,20 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final int EVENT_CHECK_SYSTEM_UPDATE = 12;
     // Rerun carrier config binding after system is unlocked.
     private static final int EVENT_SYSTEM_UNLOCKED = 13;
+    // Saved config for the default app has been read, or not found.
+    private static final int EVENT_RESTORED_DEFAULT = 14;
+    // Saved config for the carrier app has been read, or not found.
+    private static final int EVENT_RESTORED_CARRIER = 15;
+    // Config has been fetched from the bound default app, arg2 is 0 on failure.
+    private static final int EVENT_FETCHED_DEFAULT = 16;
+    // Config has been fetched from the bound carrier app, arg2 is 0 on failure.
+    private static final int EVENT_FETCHED_CARRIER = 17;
 
     private static final int BIND_TIMEOUT_MILLIS = 30000;
 
-    // Tags used for saving and restoring XML documents.
-    private static final String TAG_DOCUMENT = "carrier_config";
+    private static final int EXECUTOR_KEEP_ALIVE_SECONDS = 10;
+
+    // Tags used for restoring XML documents saved by older versions.
     private static final String TAG_VERSION = "package_version";
     private static final String TAG_BUNDLE = "bundle_data";
 
@@ -136,6 +163,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final String KEY_FINGERPRINT = "build_fingerprint";
 
     private static final String KEY_OPERATOR = "operator_number";
+    private static final String KEY_PACKAGE = "package_name";
+    private static final String KEY_CONFIG = "config";
+    private static final String KEY_ELAPSED_MILLIS = "elapsed_millis";
 
     // Handler to process various events.
     //
@@ -146,6 +176,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // If there is a saved config file for either the default app or the carrier app, we skip
     // binding to the app and go straight from fetch to loaded.
     //
+    // Reading saved configs, and getting and saving the config of a bound app, run on the
+    // executor of the phone and report back with EVENT_RESTORED_* and EVENT_FETCHED_*, so one
+    // phone waiting for a slow app or file does not hold up the others.
+    //
     // At any time, at most one connection is active. If events are not in this order, previous
     // connection will be unbound, so only latest event takes effect.
     //
@@ -161,17 +195,21 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             log("mHandler: " + msg.what + " phoneId: " + phoneId);
             String iccid;
             String operatorNumeric;
-            CarrierIdentifier carrierId;
             String carrierPackageName;
             CarrierServiceConnection conn;
+            IBinder service;
             PersistableBundle config;
+            Message newMsg;
             switch (msg.what) {
                 case EVENT_CLEAR_CONFIG:
+                    // Drop the result of any restore still in progress.
+                    mFetchId[phoneId]++;
                     if (mConfigFromDefaultApp[phoneId] == null &&
                         mConfigFromCarrierApp[phoneId] == null)
                         break;
                     mConfigFromDefaultApp[phoneId] = null;
                     mConfigFromCarrierApp[phoneId] = null;
+                    updateMergedConfig(phoneId);
                     mServiceConnection[phoneId] = null;
                     broadcastConfigChangedIntent(phoneId);
                     break;
@@ -195,23 +233,36 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     break;
 
                 case EVENT_FETCH_DEFAULT:
+                    mLoadTimings[phoneId].start();
                     iccid = getIccIdForPhoneId(phoneId);
                     operatorNumeric = TelephonyManager.from(mContext)
                             .getSimOperatorNumericForPhone(phoneId);
-                    config = restoreConfigFromXml(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid,
-                            operatorNumeric);
+                    restoreConfigAsync(DEFAULT_CARRIER_CONFIG_PACKAGE, phoneId,
+                            ++mFetchId[phoneId], iccid, operatorNumeric,
+                            EVENT_RESTORED_DEFAULT);
+                    break;
+
+                case EVENT_RESTORED_DEFAULT:
+                    if (msg.arg2 != mFetchId[phoneId]) {
+                        log("Ignoring stale restore for phoneId: " + phoneId);
+                        break;
+                    }
+                    mLoadTimings[phoneId].restored(msg.getData().getLong(KEY_ELAPSED_MILLIS));
+                    config = (PersistableBundle) msg.obj;
+                    operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
                     if (config != null) {
-                        log("Loaded config from XML. package=" + DEFAULT_CARRIER_CONFIG_PACKAGE
+                        log("Loaded config from file. package=" + DEFAULT_CARRIER_CONFIG_PACKAGE
                                 + " phoneId=" + phoneId + " operator=" + operatorNumeric);
                         mConfigFromDefaultApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
+                        updateMergedConfig(phoneId);
+                        newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         mHandler.sendMessage(newMsg);
                     } else {
                         if (bindToConfigPackage(DEFAULT_CARRIER_CONFIG_PACKAGE,
                                 phoneId, EVENT_CONNECTED_TO_DEFAULT, operatorNumeric)) {
-                            sendMessageDelayed(obtainMessage(EVENT_BIND_DEFAULT_TIMEOUT, phoneId, -1),
-                                    BIND_TIMEOUT_MILLIS);
+                            sendMessageDelayed(obtainMessage(EVENT_BIND_DEFAULT_TIMEOUT, phoneId,
+                                    -1, mServiceConnection[phoneId]), BIND_TIMEOUT_MILLIS);
                         } else {
                             // Send bcast if bind fails
                             broadcastConfigChangedIntent(phoneId);
@@ -220,37 +271,52 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     break;
 
                 case EVENT_CONNECTED_TO_DEFAULT:
-                    removeMessages(EVENT_BIND_DEFAULT_TIMEOUT);
-                    carrierId = getCarrierIdForPhoneId(phoneId);
+                case EVENT_CONNECTED_TO_CARRIER:
                     conn = (CarrierServiceConnection) msg.obj;
-                    operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
+                    // Only cancel the timeout of this connection, other phones may be binding.
+                    removeMessages(msg.what == EVENT_CONNECTED_TO_DEFAULT
+                            ? EVENT_BIND_DEFAULT_TIMEOUT : EVENT_BIND_CARRIER_TIMEOUT, conn);
+                    service = conn.service;
                     // If new service connection has been created, unbind.
-                    if (mServiceConnection[phoneId] != conn || conn.service == null) {
+                    if (mServiceConnection[phoneId] != conn || service == null) {
                         mContext.unbindService(conn);
                         break;
                     }
-                    try {
-                        ICarrierService carrierService = ICarrierService.Stub
-                                .asInterface(conn.service);
-                        config = carrierService.getCarrierConfig(carrierId);
-                        iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid, operatorNumeric,
-                                config);
-                        mConfigFromDefaultApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
-                        newMsg.getData().putString(KEY_OPERATOR, operatorNumeric);
-                        sendMessage(newMsg);
-                    } catch (Exception ex) {
-                        // The bound app could throw exceptions that binder will pass to us.
-                        loge("Failed to get carrier config: " + ex.toString());
-                    } finally {
-                        mContext.unbindService(mServiceConnection[phoneId]);
+                    mLoadTimings[phoneId].bound(msg.what == EVENT_CONNECTED_TO_CARRIER);
+                    carrierPackageName = msg.what == EVENT_CONNECTED_TO_DEFAULT
+                            ? DEFAULT_CARRIER_CONFIG_PACKAGE
+                            : getCarrierPackageForPhoneId(phoneId);
+                    fetchConfigAsync(conn, service, carrierPackageName,
+                            getCarrierIdForPhoneId(phoneId), getIccIdForPhoneId(phoneId),
+                            msg.getData().getString(KEY_OPERATOR, ""),
+                            msg.what == EVENT_CONNECTED_TO_DEFAULT
+                                    ? EVENT_FETCHED_DEFAULT : EVENT_FETCHED_CARRIER);
+                    break;
+
+                case EVENT_FETCHED_DEFAULT:
+                    conn = (CarrierServiceConnection) msg.obj;
+                    mContext.unbindService(conn);
+                    // The config was cleared or a new connection created while fetching.
+                    if (mServiceConnection[phoneId] != conn) {
+                        break;
                     }
+                    if (msg.arg2 == 0) {
+                        break;
+                    }
+                    operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
+                    mConfigFromDefaultApp[phoneId] = msg.getData().getParcelable(KEY_CONFIG);
+                    updateMergedConfig(phoneId);
+                    newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
+                    newMsg.getData().putString(KEY_OPERATOR, operatorNumeric);
+                    sendMessage(newMsg);
                     break;
 
                 case EVENT_BIND_DEFAULT_TIMEOUT:
-                    mContext.unbindService(mServiceConnection[phoneId]);
-                    broadcastConfigChangedIntent(phoneId);
+                    conn = (CarrierServiceConnection) msg.obj;
+                    mContext.unbindService(conn);
+                    if (mServiceConnection[phoneId] == conn) {
+                        broadcastConfigChangedIntent(phoneId);
+                    }
                     break;
 
                 case EVENT_LOADED_FROM_DEFAULT:
@@ -265,7 +331,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     if (carrierPackageName != null) {
                         log("Found carrier config app: " + carrierPackageName + " operator: "
                                 + operatorNumeric);
-                        Message newMsg = obtainMessage(EVENT_FETCH_CARRIER, phoneId);
+                        newMsg = obtainMessage(EVENT_FETCH_CARRIER, phoneId);
                         newMsg.getData().putString(KEY_OPERATOR, operatorNumeric);
                         sendMessage(obtainMessage(EVENT_FETCH_CARRIER, phoneId));
                     } else {
@@ -277,20 +343,33 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                     operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
                     iccid = getIccIdForPhoneId(phoneId);
-                    config = restoreConfigFromXml(carrierPackageName, iccid, operatorNumeric);
+                    restoreConfigAsync(carrierPackageName, phoneId, mFetchId[phoneId], iccid,
+                            operatorNumeric, EVENT_RESTORED_CARRIER);
+                    break;
+
+                case EVENT_RESTORED_CARRIER:
+                    if (msg.arg2 != mFetchId[phoneId]) {
+                        log("Ignoring stale restore for phoneId: " + phoneId);
+                        break;
+                    }
+                    mLoadTimings[phoneId].restored(msg.getData().getLong(KEY_ELAPSED_MILLIS));
+                    config = (PersistableBundle) msg.obj;
+                    carrierPackageName = msg.getData().getString(KEY_PACKAGE);
+                    operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
                     if (config != null) {
-                        log("Loaded config from XML. package=" + carrierPackageName + " phoneId="
+                        log("Loaded config from file. package=" + carrierPackageName + " phoneId="
                                 + phoneId + " operator=" + operatorNumeric);
                         mConfigFromCarrierApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1);
+                        updateMergedConfig(phoneId);
+                        newMsg = obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         sendMessage(newMsg);
                     } else {
                         if (carrierPackageName != null
                             && bindToConfigPackage(carrierPackageName, phoneId,
                                     EVENT_CONNECTED_TO_CARRIER, operatorNumeric)) {
-                            sendMessageDelayed(obtainMessage(EVENT_BIND_CARRIER_TIMEOUT, phoneId, -1),
-                                    BIND_TIMEOUT_MILLIS);
+                            sendMessageDelayed(obtainMessage(EVENT_BIND_CARRIER_TIMEOUT, phoneId,
+                                    -1, mServiceConnection[phoneId]), BIND_TIMEOUT_MILLIS);
                         } else {
                             // Send bcast if bind fails
                             broadcastConfigChangedIntent(phoneId);
@@ -298,37 +377,27 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     break;
 
-                case EVENT_CONNECTED_TO_CARRIER:
-                    removeMessages(EVENT_BIND_CARRIER_TIMEOUT);
-                    carrierId = getCarrierIdForPhoneId(phoneId);
-                    operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
+                case EVENT_FETCHED_CARRIER:
                     conn = (CarrierServiceConnection) msg.obj;
-                    // If new service connection has been created, unbind.
-                    if (mServiceConnection[phoneId] != conn ||
-                            conn.service == null) {
-                        mContext.unbindService(conn);
+                    mContext.unbindService(conn);
+                    // The config was cleared or a new connection created while fetching.
+                    if (mServiceConnection[phoneId] != conn) {
                         break;
                     }
-                    try {
-                        ICarrierService carrierService = ICarrierService.Stub
-                                .asInterface(conn.service);
-                        config = carrierService.getCarrierConfig(carrierId);
-                        carrierPackageName = getCarrierPackageForPhoneId(phoneId);
-                        iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(carrierPackageName, iccid, operatorNumeric, config);
-                        mConfigFromCarrierApp[phoneId] = config;
-                        sendMessage(obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1));
-                    } catch (Exception ex) {
-                        // The bound app could throw exceptions that binder will pass to us.
-                        loge("Failed to get carrier config: " + ex.toString());
-                    } finally {
-                        mContext.unbindService(mServiceConnection[phoneId]);
+                    if (msg.arg2 == 0) {
+                        break;
                     }
+                    mConfigFromCarrierApp[phoneId] = msg.getData().getParcelable(KEY_CONFIG);
+                    updateMergedConfig(phoneId);
+                    sendMessage(obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1));
                     break;
 
                 case EVENT_BIND_CARRIER_TIMEOUT:
-                    mContext.unbindService(mServiceConnection[phoneId]);
-                    broadcastConfigChangedIntent(phoneId);
+                    conn = (CarrierServiceConnection) msg.obj;
+                    mContext.unbindService(conn);
+                    if (mServiceConnection[phoneId] == conn) {
+                        broadcastConfigChangedIntent(phoneId);
+                    }
                     break;
 
                 case EVENT_LOADED_FROM_CARRIER:
@@ -379,7 +448,21 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         int numPhones = TelephonyManager.from(context).getPhoneCount();
         mConfigFromDefaultApp = new PersistableBundle[numPhones];
         mConfigFromCarrierApp = new PersistableBundle[numPhones];
+        mMergedConfig = new PersistableBundle[numPhones];
+        mMergedConfigGeneration = new int[numPhones];
+        for (int i = 0; i < numPhones; i++) {
+            updateMergedConfig(i);
+        }
         mServiceConnection = new CarrierServiceConnection[numPhones];
+        mPhoneExecutors = new ExecutorService[numPhones];
+        mFetchId = new int[numPhones];
+        mLoadTimings = new LoadTimings[numPhones];
+        for (int i = 0; i < numPhones; i++) {
+            // Single thread per phone, only kept alive while there is work.
+            mPhoneExecutors[i] = new ThreadPoolExecutor(0, 1, EXECUTOR_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            mLoadTimings[i] = new LoadTimings();
+        }
         // Make this service available through ServiceManager.
         ServiceManager.addService(Context.CARRIER_CONFIG_SERVICE, this);
         log("CarrierConfigLoader has started");
@@ -404,6 +487,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     private void broadcastConfigChangedIntent(int phoneId) {
+        mLoadTimings[phoneId].broadcast();
         Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
         SubscriptionManager.putPhoneIdAndSubIdExtra(intent, phoneId);
@@ -426,6 +510,50 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     }
 
+    /**
+     * Reads the saved config for {@code packageName} on the executor of {@code phoneId}, then sends
+     * {@code event} with the config, or null, as obj and {@code fetchId} as arg2.
+     */
+    private void restoreConfigAsync(final String packageName, final int phoneId,
+            final int fetchId, final String iccid, final String operatorNumeric,
+            final int event) {
+        mPhoneExecutors[phoneId].execute(() -> {
+            long start = SystemClock.elapsedRealtime();
+            PersistableBundle config = restoreConfigFromFile(packageName, iccid, operatorNumeric);
+            Message msg = mHandler.obtainMessage(event, phoneId, fetchId, config);
+            msg.getData().putString(KEY_PACKAGE, packageName);
+            msg.getData().putString(KEY_OPERATOR, operatorNumeric);
+            msg.getData().putLong(KEY_ELAPSED_MILLIS, SystemClock.elapsedRealtime() - start);
+            mHandler.sendMessage(msg);
+        });
+    }
+
+    /**
+     * Gets the config from a bound config app and saves it on the executor of the connection's
+     * phone, then sends {@code event} with {@code conn} as obj and whether it succeeded as arg2.
+     */
+    private void fetchConfigAsync(final CarrierServiceConnection conn, final IBinder service,
+            final String packageName, final CarrierIdentifier carrierId, final String iccid,
+            final String operatorNumeric, final int event) {
+        mPhoneExecutors[conn.phoneId].execute(() -> {
+            boolean success = false;
+            PersistableBundle config = null;
+            try {
+                ICarrierService carrierService = ICarrierService.Stub.asInterface(service);
+                config = carrierService.getCarrierConfig(carrierId);
+                saveConfigToFile(packageName, iccid, operatorNumeric, config);
+                success = true;
+            } catch (Exception ex) {
+                // The bound app could throw exceptions that binder will pass to us.
+                loge("Failed to get carrier config: " + ex.toString());
+            }
+            Message msg = mHandler.obtainMessage(event, conn.phoneId, success ? 1 : 0, conn);
+            msg.getData().putParcelable(KEY_CONFIG, config);
+            msg.getData().putString(KEY_OPERATOR, operatorNumeric);
+            mHandler.sendMessage(msg);
+        });
+    }
+
     private CarrierIdentifier getCarrierIdForPhoneId(int phoneId) {
         String mcc = "";
         String mnc = "";
@@ -473,11 +601,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Writes a bundle to an XML file.
+     * Writes a bundle to a cache file.
      *
      * The bundle will be written to a file named after the package name and ICCID, so that it can
-     * be restored later with {@link @restoreConfigFromXml}. The XML output will include the bundle
-     * and the current version of the specified package.
+     * be restored later with {@link #restoreConfigFromFile}. The file will include the bundle and
+     * the current version of the specified package.
      *
      * In case of errors or invalid input, no file will be written.
      *
@@ -485,7 +613,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * @param iccid the ICCID of the subscription for which this bundle was fetched.
      * @param config the bundle to be written. Null will be treated as an empty bundle.
      */
-    private void saveConfigToXml(String packageName, String iccid, String operator,
+    private void saveConfigToFile(String packageName, String iccid, String operator,
             PersistableBundle config) {
         if (packageName == null || iccid == null) {
             loge("Cannot save config with null packageName or iccid.");
@@ -509,48 +637,31 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             iccid += "-" + operator;
         }
 
-        FileOutputStream outFile = null;
         try {
-            outFile = new FileOutputStream(
-                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
-            FastXmlSerializer out = new FastXmlSerializer();
-            out.setOutput(outFile, "utf-8");
-            out.startDocument("utf-8", true);
-            out.startTag(null, TAG_DOCUMENT);
-            out.startTag(null, TAG_VERSION);
-            out.text(version);
-            out.endTag(null, TAG_VERSION);
-            out.startTag(null, TAG_BUNDLE);
-            config.saveToXml(out);
-            out.endTag(null, TAG_BUNDLE);
-            out.endTag(null, TAG_DOCUMENT);
-            out.endDocument();
-            out.flush();
-            outFile.close();
-        }
-        catch (IOException e) {
-            loge(e.toString());
-        }
-        catch (XmlPullParserException e) {
+            CarrierConfigFile.write(
+                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)),
+                    version, config);
+        } catch (IOException e) {
             loge(e.toString());
         }
     }
 
     /**
-     * Reads a bundle from an XML file.
+     * Reads a bundle from a cache file.
      *
-     * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and ICCID.
+     * This restores a bundle that was written with {@link #saveConfigToFile}. This returns the
+     * saved config bundle for the given package and ICCID. If there is only an XML file written by
+     * an older version of this class, it is read and converted.
      *
      * In case of errors, or if the saved config is from a different package version than the
      * current version, then null will be returned.
      *
      * @param packageName the name of the package from which we fetched this bundle.
      * @param iccid the ICCID of the subscription for which this bundle was fetched.
-     * @return the bundle from the XML file. Returns null if there is no saved config, the saved
-     *         version does not match, or reading config fails.
+     * @return the saved bundle. Returns null if there is no saved config, the saved version does
+     *         not match, or reading config fails.
      */
-    private PersistableBundle restoreConfigFromXml(String packageName, String iccid,
+    private PersistableBundle restoreConfigFromFile(String packageName, String iccid,
             String operator) {
         final String version = getPackageVersion(packageName);
         if (version == null) {
@@ -565,11 +676,41 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             iccid += "-" + operator;
         }
 
+        File file = new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid));
+        if (file.exists()) {
+            return CarrierConfigFile.read(file, version);
+        }
+
+        File xmlFile = new File(mContext.getFilesDir(),
+                getXmlFilenameForConfig(packageName, iccid));
+        if (!xmlFile.exists()) {
+            return null;
+        }
+        PersistableBundle restoredBundle = restoreConfigFromXml(xmlFile, version);
+        if (restoredBundle != null) {
+            log("Migrating " + xmlFile.getName() + " to " + file.getName());
+            try {
+                CarrierConfigFile.write(file, version, restoredBundle);
+            } catch (IOException e) {
+                loge(e.toString());
+            }
+        }
+        // Either converted or stale, the XML file is not needed anymore.
+        xmlFile.delete();
+        return restoredBundle;
+    }
+
+    /**
+     * Reads a bundle from an XML file written by older versions of {@link #saveConfigToFile}.
+     *
+     * @return the bundle from the XML file, or null if the saved version does not match or
+     *         reading fails.
+     */
+    private PersistableBundle restoreConfigFromXml(File file, String version) {
         PersistableBundle restoredBundle = null;
         FileInputStream inFile = null;
         try {
-            inFile = new FileInputStream(
-                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
+            inFile = new FileInputStream(file);
             XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
             parser.setInput(inFile, "utf-8");
 
@@ -605,8 +746,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /**
      * Clears cached carrier config.
-     * This deletes all saved XML files associated with the given package name. If packageName is
-     * null, then it deletes all saved XML files.
+     * This deletes all saved config files associated with the given package name. If packageName
+     * is null, then it deletes all saved config files.
      *
      * @param packageName the name of a carrier package, or null if all cached config should be
      *                    cleared.
@@ -633,6 +774,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /** Builds a canonical file name for a config file. */
     private String getFilenameForConfig(@NonNull String packageName, @NonNull String iccid) {
+        return "carrierconfig-" + packageName + "-" + iccid + ".cfg";
+    }
+
+    /** Builds the file name used for a config file before it was stored in binary form. */
+    private String getXmlFilenameForConfig(@NonNull String packageName, @NonNull String iccid) {
         return "carrierconfig-" + packageName + "-" + iccid + ".xml";
     }
 
@@ -658,6 +804,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         if (mConfigFromCarrierApp[phoneId] != null &&
                 getCarrierPackageForPhoneId(phoneId) == null) {
             mConfigFromCarrierApp[phoneId] = null;
+            updateMergedConfig(phoneId);
         }
         mHandler.sendMessage(mHandler.obtainMessage(EVENT_FETCH_DEFAULT, phoneId, -1));
     }
@@ -672,16 +819,37 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             mContext.enforceCallingOrSelfPermission(READ_PHONE_STATE, null);
         }
         int phoneId = SubscriptionManager.getPhoneId(subId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
-        if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null)
-                retConfig.putAll(config);
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null)
-                retConfig.putAll(config);
-        }
-        return retConfig;
+        if (!SubscriptionManager.isValidPhoneId(phoneId)) {
+            return CarrierConfigManager.getDefaultConfig();
+        }
+        PersistableBundle mergedConfig;
+        synchronized (mMergedConfig) {
+            mergedConfig = mMergedConfig[phoneId];
+        }
+        // Remote callers receive a parceled copy. Callers in the phone process get the object
+        // itself, so give them one they are free to modify.
+        if (Binder.getCallingPid() == Process.myPid()) {
+            return new PersistableBundle(mergedConfig);
+        }
+        return mergedConfig;
+    }
+
+    /**
+     * Rebuilds the merged config returned by {@link #getConfigForSubId(int)}. Must be called
+     * whenever {@link #mConfigFromDefaultApp} or {@link #mConfigFromCarrierApp} changes.
+     */
+    private void updateMergedConfig(int phoneId) {
+        PersistableBundle mergedConfig = CarrierConfigManager.getDefaultConfig();
+        PersistableBundle config = mConfigFromDefaultApp[phoneId];
+        if (config != null)
+            mergedConfig.putAll(config);
+        config = mConfigFromCarrierApp[phoneId];
+        if (config != null)
+            mergedConfig.putAll(config);
+        synchronized (mMergedConfig) {
+            mMergedConfig[phoneId] = mergedConfig;
+            mMergedConfigGeneration[phoneId]++;
+        }
     }
 
     @Override
@@ -746,6 +914,58 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             pw.println("  Phone Id=" + i);
             pw.println("  mConfigFromDefaultApp=" + mConfigFromDefaultApp[i]);
             pw.println("  mConfigFromCarrierApp=" + mConfigFromCarrierApp[i]);
+            synchronized (mMergedConfig) {
+                pw.println("  mMergedConfigGeneration=" + mMergedConfigGeneration[i]);
+            }
+            pw.println("  mLoadTimings=" + mLoadTimings[i]);
+        }
+    }
+
+    /**
+     * Timing of a config load for one phone, from EVENT_FETCH_DEFAULT to the config changed
+     * broadcast. Durations are in milliseconds, -1 if the step did not happen.
+     */
+    private static class LoadTimings {
+        private long mStartMillis = -1;
+        private long mBindStartMillis;
+        private long mDefaultBindMillis = -1;
+        private long mCarrierBindMillis = -1;
+        private long mRestoreMillis = -1;
+        private long mTotalMillis = -1;
+
+        void start() {
+            mStartMillis = SystemClock.elapsedRealtime();
+            mDefaultBindMillis = -1;
+            mCarrierBindMillis = -1;
+            mRestoreMillis = -1;
+            mTotalMillis = -1;
+        }
+
+        void restored(long elapsedMillis) {
+            mRestoreMillis = Math.max(mRestoreMillis, 0) + elapsedMillis;
+            mBindStartMillis = SystemClock.elapsedRealtime();
+        }
+
+        void bound(boolean carrier) {
+            long elapsed = SystemClock.elapsedRealtime() - mBindStartMillis;
+            if (carrier) {
+                mCarrierBindMillis = elapsed;
+            } else {
+                mDefaultBindMillis = elapsed;
+            }
+        }
+
+        void broadcast() {
+            if (mStartMillis >= 0 && mTotalMillis < 0) {
+                mTotalMillis = SystemClock.elapsedRealtime() - mStartMillis;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "[restore=" + mRestoreMillis + "ms, defaultBind=" + mDefaultBindMillis
+                    + "ms, carrierBind=" + mCarrierBindMillis + "ms, toBroadcast=" + mTotalMillis
+                    + "ms]";
         }
     }
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemProperties;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.TelephonyIntents;
+
+import org.codeaurora.internal.IExtTelephony;
+
+/**
+ * Answers the emergency number checks of {@link PhoneUtils}, and remembers the answers for the
+ * most recent numbers. The checks are repeated on every call state change, and each of them
+ * otherwise goes through IExtTelephony, or {@link PhoneNumberUtils} which detects the country.
+ *
+ * The answers depend on the emergency number lists of the SIMs, the SIMs and the country, so they
+ * are forgotten when the "ril.ecclist" properties change, when a SIM or the default voice
+ * subscription changes, when the {@link CountryDetector} detects another country, and when
+ * {@link #reset()} is called, e.g. when the country detector information of
+ * {@link PhoneNumberUtils} is reset. If the country can't be followed, a number is never remembered
+ * as not being an emergency number, since dialing it as a normal call is the worse mistake.
+ */
+public class EmergencyNumberClassifier {
+    private static final String LOG_TAG = "EmergencyNumberClassifier";
+
+    private static final int MAX_NUMBERS = 32;
+
+    private static final String ECC_LIST_PROPERTY = "ril.ecclist";
+    private static final String DEFAULT_ECC_LIST_PROPERTY = "ro.ril.ecclist";
+
+    // The checks. An entry has the bit of a check set if the number passed it, and the bit
+    // shifted by KNOWN_SHIFT set if the check was made.
+    static final int LOCAL = 1;
+    static final int POTENTIAL_LOCAL = 1 << 1;
+    static final int EMERGENCY = 1 << 2;
+    private static final int KNOWN_SHIFT = 8;
+
+    /**
+     * Where the answers come from.
+     */
+    interface Source {
+        /**
+         * @return the emergency number lists of every SIM slot, which the answers depend on.
+         */
+        String getEccLists();
+
+        /**
+         * Makes one of the checks, e.g. {@link #LOCAL}, which may need a binder call.
+         */
+        boolean query(String address, int check);
+    }
+
+    private static EmergencyNumberClassifier sInstance;
+
+    private final Source mSource;
+
+    // Guarded by this.
+    private final LruCache<String, Integer> mNumbers = new LruCache<String, Integer>(MAX_NUMBERS);
+    /** The emergency number lists the answers in {@link #mNumbers} were made with. */
+    private String mEccLists;
+    /** Incremented when the answers are forgotten, to drop answers made before. */
+    private int mGeneration;
+    /** The country the answers were made in, or null if it isn't known. */
+    private String mCountryIso;
+    /** Whether changes of country are followed, so that negative local answers can be kept. */
+    private boolean mFollowsCountry;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            reset();
+        }
+    };
+
+    private final CountryListener mCountryListener = new CountryListener() {
+        @Override
+        public void onCountryDetected(Country country) {
+            onCountryChanged(country != null ? country.getCountryIso() : null);
+        }
+    };
+
+    public static synchronized EmergencyNumberClassifier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EmergencyNumberClassifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Forgets the answers of the instance, if it was created.
+     */
+    public static void resetInstance() {
+        final EmergencyNumberClassifier classifier;
+        synchronized (EmergencyNumberClassifier.class) {
+            classifier = sInstance;
+        }
+        if (classifier != null) {
+            classifier.reset();
+        }
+    }
+
+    private EmergencyNumberClassifier(Context context) {
+        this(new SystemSource(context));
+        IntentFilter filter = new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED);
+        context.registerReceiver(mReceiver, filter);
+
+        // The detector also follows the country of the network, e.g. when roaming.
+        CountryDetector detector =
+                (CountryDetector) context.getSystemService(Context.COUNTRY_DETECTOR);
+        if (detector != null) {
+            Country country = detector.detectCountry();
+            synchronized (this) {
+                mCountryIso = country != null ? country.getCountryIso() : null;
+                mFollowsCountry = true;
+            }
+            detector.addCountryListener(mCountryListener, Looper.getMainLooper());
+        } else {
+            Log.w(LOG_TAG, "No country detector, local emergency numbers are always checked");
+        }
+    }
+
+    @VisibleForTesting
+    EmergencyNumberClassifier(Source source) {
+        mSource = source;
+    }
+
+    public boolean isLocalEmergencyNumber(String address) {
+        return classify(address, LOCAL);
+    }
+
+    public boolean isPotentialLocalEmergencyNumber(String address) {
+        return classify(address, POTENTIAL_LOCAL);
+    }
+
+    public boolean isEmergencyNumber(String address) {
+        return classify(address, EMERGENCY);
+    }
+
+    public synchronized void reset() {
+        mNumbers.evictAll();
+        mGeneration++;
+    }
+
+    /**
+     * Forgets the answers if {@code countryIso} isn't the country they were made in, and follows
+     * the country from now on.
+     */
+    @VisibleForTesting
+    synchronized void onCountryChanged(String countryIso) {
+        if (!mFollowsCountry || !TextUtils.equals(countryIso, mCountryIso)) {
+            reset();
+        }
+        mCountryIso = countryIso;
+        mFollowsCountry = true;
+    }
+
+    private boolean classify(String address, int check) {
+        if (address == null) {
+            return mSource.query(address, check);
+        }
+        final int generation;
+        final Integer known;
+        synchronized (this) {
+            final String eccLists = mSource.getEccLists();
+            if (!eccLists.equals(mEccLists)) {
+                reset();
+                mEccLists = eccLists;
+            }
+            generation = mGeneration;
+            known = mNumbers.get(address);
+        }
+        if (known != null && (known & (check << KNOWN_SHIFT)) != 0) {
+            return (known & check) != 0;
+        }
+
+        // The lock isn't held during the query, which may be a binder call.
+        final boolean result = mSource.query(address, check);
+        synchronized (this) {
+            // The answers depend on the country; unless it's followed, only the positive ones are
+            // kept.
+            final boolean keep = result || mFollowsCountry;
+            if (generation == mGeneration && keep) {
+                final Integer previous = mNumbers.get(address);
+                int value = previous != null ? previous : 0;
+                value |= check << KNOWN_SHIFT;
+                if (result) {
+                    value |= check;
+                }
+                mNumbers.put(address, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Answers with IExtTelephony, or {@link PhoneNumberUtils} if it isn't available.
+     */
+    private static class SystemSource implements Source {
+        private final Context mContext;
+        private final int mPhoneCount;
+
+        SystemSource(Context context) {
+            mContext = context;
+            mPhoneCount = TelephonyManager.getDefault().getPhoneCount();
+        }
+
+        /**
+         * Returns the emergency number lists of every SIM slot, as read by
+         * {@link PhoneNumberUtils}. Reading system properties doesn't need a binder call.
+         */
+        @Override
+        public String getEccLists() {
+            StringBuilder eccLists = new StringBuilder(
+                    SystemProperties.get(DEFAULT_ECC_LIST_PROPERTY, ""));
+            for (int slotId = 0; slotId < mPhoneCount; slotId++) {
+                eccLists.append(';').append(SystemProperties.get(
+                        slotId == 0 ? ECC_LIST_PROPERTY : ECC_LIST_PROPERTY + slotId, ""));
+            }
+            return eccLists.toString();
+        }
+
+        @Override
+        public boolean query(String address, int check) {
+            IExtTelephony extTelephony =
+                    IExtTelephony.Stub.asInterface(ServiceManager.getService("extphone"));
+            if (extTelephony != null) {
+                try {
+                    switch (check) {
+                        case LOCAL:
+                            return extTelephony.isLocalEmergencyNumber(address);
+                        case POTENTIAL_LOCAL:
+                            return extTelephony.isPotentialLocalEmergencyNumber(address);
+                        default:
+                            return extTelephony.isEmergencyNumber(address);
+                    }
+                } catch (RemoteException ex) {
+                    Log.e("TelephonyConnectionService", "Exception: " + ex);
+                }
+            }
+            switch (check) {
+                case LOCAL:
+                    return PhoneNumberUtils.isLocalEmergencyNumber(mContext, address);
+                case POTENTIAL_LOCAL:
+                    return PhoneNumberUtils.isPotentialLocalEmergencyNumber(mContext, address);
+                default:
+                    return PhoneNumberUtils.isEmergencyNumber(address);
+            }
+        }
+    }
+}
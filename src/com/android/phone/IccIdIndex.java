@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
+
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneFactory;
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.util.HashMap;
+
+/**
+ * Index of the phone ids by the full ICC id of their SIM, which is the id of the PSTN phone
+ * accounts. {@link PhoneUtils#getPhoneForPhoneAccountHandle} would otherwise ask every phone for
+ * its ICC id on each call.
+ *
+ * The index is an immutable {@link Snapshot}, read without locking. It's dropped when a SIM state
+ * or a subscription changes, and built again on the next lookup, so a SIM removed or swapped is
+ * found in it until the broadcast comes. An ICC id that isn't in the index makes the lookup ask
+ * every phone, as without the index, so a SIM inserted before the broadcast came is found. That
+ * index replaces the shared one only if a SIM changed.
+ */
+public class IccIdIndex {
+
+    /**
+     * The ICC ids of the phones.
+     */
+    interface IccIdSource {
+        int getPhoneCount();
+
+        /**
+         * @return the full ICC id of the SIM of the phone, or null if there is none.
+         */
+        String getIccId(int phoneId);
+    }
+
+    /**
+     * The phone ids by ICC id at one time.
+     */
+    static final class Snapshot {
+        private final HashMap<String, Integer> mPhoneIds;
+
+        Snapshot(IccIdSource source) {
+            final int phoneCount = source.getPhoneCount();
+            mPhoneIds = new HashMap<String, Integer>(phoneCount * 2);
+            for (int phoneId = 0; phoneId < phoneCount; phoneId++) {
+                final String iccId = source.getIccId(phoneId);
+                // The first phone wins, as in a search of the phones in order.
+                if (!TextUtils.isEmpty(iccId) && !mPhoneIds.containsKey(iccId)) {
+                    mPhoneIds.put(iccId, phoneId);
+                }
+            }
+        }
+
+        /**
+         * @return the id of the phone with the SIM, or
+         * {@link SubscriptionManager#INVALID_PHONE_INDEX} if no phone had it.
+         */
+        int getPhoneId(String iccId) {
+            final Integer phoneId = mPhoneIds.get(iccId);
+            return phoneId != null ? phoneId : SubscriptionManager.INVALID_PHONE_INDEX;
+        }
+
+        int size() {
+            return mPhoneIds.size();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Snapshot && mPhoneIds.equals(((Snapshot) o).mPhoneIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return mPhoneIds.hashCode();
+        }
+    }
+
+    private static final IccIdSource PHONE_FACTORY_SOURCE = new IccIdSource() {
+        @Override
+        public int getPhoneCount() {
+            return PhoneFactory.getPhones().length;
+        }
+
+        @Override
+        public String getIccId(int phoneId) {
+            final Phone phone = PhoneFactory.getPhone(phoneId);
+            return phone != null ? phone.getFullIccSerialNumber() : null;
+        }
+    };
+
+    private static IccIdIndex sInstance;
+
+    private final IccIdSource mSource;
+
+    /** The current index, or null if it must be built again. */
+    private volatile Snapshot mSnapshot;
+    /** Incremented when the index is dropped, so that an index built before isn't kept. */
+    private int mGeneration;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public static synchronized IccIdIndex init(Context context) {
+        if (sInstance == null) {
+            sInstance = new IccIdIndex(PHONE_FACTORY_SOURCE);
+            IntentFilter filter = new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+            filter.addAction(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED);
+            context.registerReceiver(sInstance.mReceiver, filter);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the index, or null if {@link #init(Context)} wasn't called yet.
+     */
+    public static synchronized IccIdIndex getInstance() {
+        return sInstance;
+    }
+
+    IccIdIndex(IccIdSource source) {
+        mSource = source;
+    }
+
+    /**
+     * @return the id of the phone with the SIM, or {@link SubscriptionManager#INVALID_PHONE_INDEX}
+     * if no phone has it.
+     */
+    public int getPhoneId(String iccId) {
+        if (TextUtils.isEmpty(iccId)) {
+            return SubscriptionManager.INVALID_PHONE_INDEX;
+        }
+        final Snapshot snapshot = getSnapshot();
+        final int phoneId = snapshot.getPhoneId(iccId);
+        if (phoneId != SubscriptionManager.INVALID_PHONE_INDEX) {
+            return phoneId;
+        }
+        // The SIM may have been inserted and the broadcast didn't come yet.
+        return build(snapshot).getPhoneId(iccId);
+    }
+
+    /**
+     * @return a consistent index of the phones at one time.
+     */
+    Snapshot getSnapshot() {
+        final Snapshot snapshot = mSnapshot;
+        return snapshot != null ? snapshot : build(null);
+    }
+
+    /**
+     * Builds the index from the phones, and makes it the current one unless it's the same as
+     * {@code previous} or the index was dropped meanwhile.
+     */
+    private Snapshot build(Snapshot previous) {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        // The lock isn't held while the phones are asked for their ICC id.
+        final Snapshot snapshot = new Snapshot(mSource);
+        if (!snapshot.equals(previous)) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    public synchronized void invalidate() {
+        mSnapshot = null;
+        mGeneration++;
+    }
+}
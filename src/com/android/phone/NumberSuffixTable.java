@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import com.android.phone.CallerInfoCache.CacheEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The entries of {@link CallerInfoCache}, by number.
+ *
+ * PSTN numbers are keyed by their last {@link #SUFFIX_LENGTH} normalized characters, packed into a
+ * long with 4 bits per character, in an open addressing table. SIP addresses, and the rare keys
+ * that can't be packed, are kept in a HashMap.
+ *
+ * Several contacts may have numbers with the same key. Each of them has its own {@link Entry},
+ * chained from the table slot, so that removing one contact keeps the others. A lookup prefers
+ * the entry that sends to voicemail.
+ *
+ * A table is filled by the refresh task and never modified once it's given to
+ * {@link CallerInfoCache#getCacheEntry(String)}; changes are made on a copy.
+ */
+/* package */ class NumberSuffixTable {
+
+    /** Number of trailing characters of a normalized PSTN number used as its key. */
+    static final int SUFFIX_LENGTH = 7;
+
+    /** Returned by {@link #packSuffix(CharSequence)} when the number must be normalized first. */
+    static final long NEEDS_NORMALIZATION = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The custom ringtone and send-to-voicemail setting a contact has for a number.
+     */
+    static final class Entry extends CacheEntry {
+        final long contactId;
+        /** The entry added before this one with the same key, or null. */
+        final Entry next;
+
+        Entry(long contactId, String customRingtone, boolean sendToVoicemail, Entry next) {
+            super(customRingtone, sendToVoicemail);
+            this.contactId = contactId;
+            this.next = next;
+        }
+    }
+
+    /** Packed keys, 0 for empty slots. The capacity is always a power of two. */
+    private long[] mKeys;
+    private Entry[] mEntries;
+    private int mSize;
+    private final HashMap<String, Entry> mAddresses;
+
+    /**
+     * @param expectedSize the number of entries expected, to avoid growing the table.
+     */
+    NumberSuffixTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // Keep the load factor under 1/2.
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mEntries = new Entry[capacity];
+        mAddresses = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Packs the last {@link #SUFFIX_LENGTH} characters of {@code number} after
+     * {@link android.telephony.PhoneNumberUtils#normalizeNumber(String)}, without normalizing the
+     * whole number.
+     *
+     * @return the packed key, or {@link #NEEDS_NORMALIZATION} if the number has letters or too few
+     * digits, in which case the key is {@link #packNormalizedSuffix(String)} of the normalized
+     * number.
+     */
+    static long packSuffix(CharSequence number) {
+        long key = 0;
+        int count = 0;
+        for (int i = number.length() - 1; i >= 0 && count < SUFFIX_LENGTH; i--) {
+            final char c = number.charAt(i);
+            // Same as normalizeNumber(): Unicode digits are kept, letters are converted to
+            // digits and anything else is dropped.
+            final int digit = Character.digit(c, 10);
+            if (digit != -1) {
+                key |= (long) (digit + 1) << (4 * count);
+                count++;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                return NEEDS_NORMALIZATION;
+            }
+        }
+        return count == SUFFIX_LENGTH ? key : NEEDS_NORMALIZATION;
+    }
+
+    /**
+     * Packs the last {@link #SUFFIX_LENGTH} characters of an already normalized number.
+     *
+     * @return the packed key, or 0 if it can't be packed, in which case the suffix should be used
+     * as an address.
+     */
+    static long packNormalizedSuffix(String normalizedNumber) {
+        final int length = normalizedNumber.length();
+        long key = 0;
+        for (int i = Math.max(length - SUFFIX_LENGTH, 0); i < length; i++) {
+            final char c = normalizedNumber.charAt(i);
+            final int value;
+            if (c >= '0' && c <= '9') {
+                value = c - '0' + 1;
+            } else if (c == '+') {
+                value = 11;
+            } else {
+                return 0;
+            }
+            key = (key << 4) | value;
+        }
+        return key;
+    }
+
+    static String getSuffix(String normalizedNumber) {
+        final int length = normalizedNumber.length();
+        return length > SUFFIX_LENGTH
+                ? normalizedNumber.substring(length - SUFFIX_LENGTH, length) : normalizedNumber;
+    }
+
+    void addNumber(long key, long contactId, String customRingtone, boolean sendToVoicemail) {
+        final int slot = findSlot(key);
+        if (mKeys[slot] == 0) {
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mEntries[slot] = new Entry(contactId, customRingtone, sendToVoicemail, mEntries[slot]);
+        if (mSize * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+    }
+
+    void addAddress(String address, long contactId, String customRingtone,
+            boolean sendToVoicemail) {
+        mAddresses.put(address,
+                new Entry(contactId, customRingtone, sendToVoicemail, mAddresses.get(address)));
+    }
+
+    CacheEntry getNumber(long key) {
+        return resolve(mEntries[findSlot(key)]);
+    }
+
+    CacheEntry getAddress(String address) {
+        return resolve(mAddresses.get(address));
+    }
+
+    /**
+     * @return the number of distinct keys, numbers and addresses.
+     */
+    int size() {
+        return mSize + mAddresses.size();
+    }
+
+    /**
+     * Returns a copy of this table without the entries of the given contacts.
+     *
+     * @param contactIds sorted ids of the contacts to drop.
+     * @param extraSize the number of entries expected to be added to the copy.
+     */
+    NumberSuffixTable copyWithoutContacts(long[] contactIds, int extraSize) {
+        final NumberSuffixTable table = new NumberSuffixTable(mSize + extraSize);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != 0) {
+                final Entry entry = without(mEntries[i], contactIds);
+                if (entry != null) {
+                    table.put(mKeys[i], entry);
+                }
+            }
+        }
+        for (Map.Entry<String, Entry> address : mAddresses.entrySet()) {
+            final Entry entry = without(address.getValue(), contactIds);
+            if (entry != null) {
+                table.mAddresses.put(address.getKey(), entry);
+            }
+        }
+        return table;
+    }
+
+    private void put(long key, Entry entry) {
+        final int slot = findSlot(key);
+        mKeys[slot] = key;
+        mEntries[slot] = entry;
+        mSize++;
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot where it should be inserted.
+     */
+    private int findSlot(long key) {
+        final int mask = mKeys.length - 1;
+        // Fibonacci hashing spreads the packed digits, which mostly differ in the low bits.
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (mKeys[slot] != 0 && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        final long[] keys = mKeys;
+        final Entry[] entries = mEntries;
+        mKeys = new long[capacity];
+        mEntries = new Entry[capacity];
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                put(keys[i], entries[i]);
+            }
+        }
+    }
+
+    private static Entry without(Entry entry, long[] contactIds) {
+        if (entry == null) {
+            return null;
+        }
+        final Entry next = without(entry.next, contactIds);
+        if (Arrays.binarySearch(contactIds, entry.contactId) >= 0) {
+            return next;
+        }
+        return next == entry.next ? entry
+                : new Entry(entry.contactId, entry.customRingtone, entry.sendToVoicemail, next);
+    }
+
+    /**
+     * There may be several contacts with the same key, and we should prioritize the
+     * "send-to-voicemail" flag in any case. Otherwise the entry added first is used.
+     */
+    private static CacheEntry resolve(Entry entry) {
+        Entry first = null;
+        for (Entry e = entry; e != null; e = e.next) {
+            if (e.sendToVoicemail) {
+                return e;
+            }
+            first = e;
+        }
+        return first;
+    }
+}
@@ -331,6 +331,9 @@ public class PhoneGlobals extends ContextWrapper {
             // The asynchronous caching will start just after this call.
             callerInfoCache = CallerInfoCache.init(this);
 
+            // Index the phones by the ICC id of their SIM, which is the id of their phone account.
+            IccIdIndex.init(this);
+
             phoneMgr = PhoneInterfaceManager.init(this, PhoneFactory.getDefaultPhone());
 
             configLoader = CarrierConfigLoader.init(this);
@@ -20,9 +20,11 @@ import static com.android.internal.telephony.PhoneConstants.SUBSCRIPTION_KEY;
 
 import android.app.ActivityManager;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -36,6 +38,7 @@ import android.os.Message;
 import android.os.Process;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -55,6 +58,7 @@ import android.telephony.RadioAccessFamily;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyHistogram;
 import android.telephony.TelephonyManager;
 import android.telephony.VisualVoicemailSmsFilterSettings;
@@ -63,6 +67,7 @@ import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
+import android.util.SparseArray;
 import com.android.ims.ImsManager;
 import com.android.internal.telephony.CallManager;
 import com.android.internal.telephony.CellNetworkScanResult;
@@ -93,6 +98,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Implementation of the ITelephony interface.
@@ -153,6 +160,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_SIM_GET_ATR_DONE = 48;
     private static final int CMD_OPEN_CHANNEL_WITH_P2 = 49;
 
+    // How long sendRequest() waits for commands that depend on a slow modem or SIM response.
+    private static final long SIM_REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long OEM_RIL_REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+    // Manual network scans legitimately take minutes on some modems.
+    private static final long NETWORK_SCAN_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
     private static final String PRIMARY_CARD_PROPERTY_NAME = "persist.radio.primarycard";
     private static final int CMD_TOGGLE_2G = 998;
     private static final int CMD_TOGGLE_LTE = 99; // not used yet
@@ -166,6 +179,20 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private UserManager mUserManager;
     private AppOpsManager mAppOps;
     private MainThreadHandler mMainThreadHandler;
+    private final RequestStats mRequestStats = new RequestStats();
+
+    // Read-through cache for the state getters, see getCachedState().
+    private final SubscriptionStateCache<CachedSubscriptionState> mCachedStates =
+            new SubscriptionStateCache<>(new SubscriptionStateCache.Loader<
+                    CachedSubscriptionState>() {
+                @Override
+                public CachedSubscriptionState load(int subId) {
+                    Phone phone = getPhone(subId);
+                    // Not cached, arbitrary subIds from callers would grow the cache.
+                    return phone == null ? null
+                            : new CachedSubscriptionState(phone, readLine1NumberForDisplay(subId));
+                }
+            });
     private SubscriptionController mSubscriptionController;
     private SharedPreferences mTelephonySharedPreferences;
     private int pNetwork;
@@ -207,8 +234,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters wait on or attach
+     * callbacks to {@link #future} after sending. The main thread completes the future with
+     * {@link #result} by calling {@link #notifyRequester} when the request is complete.
      */
     private static final class MainThreadRequest {
         /** The argument to use for the request */
@@ -218,6 +246,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         // The subscriber id that this request applies to. Defaults to
         // SubscriptionManager.INVALID_SUBSCRIPTION_ID
         public Integer subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        /** Completed with the result, or with the command's timeout result. */
+        public final CompletableFuture<Object> future = new CompletableFuture<>();
+        /** The command this request was sent with, set by {@link #enqueueRequest}. */
+        public int command;
+        /** When the request was sent, in {@link SystemClock#elapsedRealtime()} millis. */
+        public long sentMillis;
 
         public MainThreadRequest(Object argument) {
             this.argument = argument;
@@ -252,9 +286,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * on, which will be notified when the operation completes and will contain the result of the
      * request.
      *
-     * <p>If a MainThreadRequest object is provided in the msg.obj field,
-     * note that request.result must be set to something non-null for the calling thread to
-     * unblock.
+     * <p>If a MainThreadRequest object is provided in the msg.obj field, request.result must be
+     * set and {@link #notifyRequester} called for the calling thread to unblock.
      */
     private final class MainThreadHandler extends Handler {
         @Override
@@ -273,9 +306,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             getPhoneFromRequest(request).handlePinMmi((String) request.argument)
                             : false;
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
 
@@ -296,15 +327,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         request.result = new ArrayList<NeighboringCellInfo>(0);
                     }
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_ANSWER_RINGING_CALL:
                     request = (MainThreadRequest) msg.obj;
                     int answer_subId = request.subId;
                     answerRingingCallInternal(answer_subId);
+                    request.result = true;
+                    notifyRequester(request);
                     break;
 
                 case CMD_END_CALL:
@@ -314,6 +345,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     Phone phone = getPhone(end_subId);
                     if (phone == null) {
                         if (DBG) log("CMD_END_CALL: no phone for id: " + end_subId);
+                        request.result = false;
+                        notifyRequester(request);
                         break;
                     }
                     int phoneType = phone.getPhoneType();
@@ -330,9 +363,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (DBG) log("CMD_END_CALL: " + (hungUp ? "hung up!" : "no call to hang up"));
                     request.result = hungUp;
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
@@ -342,9 +373,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccTransmitApduLogicalChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_LOGICAL_CHANNEL_DONE,
                             request);
@@ -374,9 +403,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduLogicalChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
@@ -386,9 +413,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccTransmitApduBasicChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE,
                             request);
@@ -416,9 +441,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_EXCHANGE_SIM_IO:
@@ -428,9 +451,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccExchangeSimIO: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_EXCHANGE_SIM_IO_DONE,
                                 request);
@@ -458,9 +479,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SEND_ENVELOPE:
@@ -469,9 +488,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("sendEnvelopeWithStatus: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_SEND_ENVELOPE_DONE, request);
                         uiccCard.sendEnvelopeWithStatus((String)request.argument, onCompleted);
@@ -494,9 +511,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("sendEnvelopeWithStatus: exception:" + ar.exception);
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_OPEN_CHANNEL:
@@ -506,9 +521,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         loge("iccOpenLogicalChannel: No UICC");
                         request.result = new IccOpenLogicalChannelResponse(-1,
                             IccOpenLogicalChannelResponse.STATUS_MISSING_RESOURCE, null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_OPEN_CHANNEL_DONE, request);
                         uiccCard.iccOpenLogicalChannel((String)request.argument, onCompleted);
@@ -523,9 +536,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         loge("iccOpenLogicalChannel: No UICC");
                         request.result = new IccOpenLogicalChannelResponse(-1,
                             IccOpenLogicalChannelResponse.STATUS_MISSING_RESOURCE, null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_OPEN_CHANNEL_DONE, request);
                         uiccCard.iccOpenLogicalChannel(openChannelArgs.first,
@@ -571,9 +582,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             IccOpenLogicalChannelResponse.INVALID_CHANNEL, errorCode, null);
                     }
                     request.result = openChannelResp;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_CLOSE_CHANNEL:
@@ -582,9 +591,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccCloseLogicalChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_CLOSE_CHANNEL_DONE, request);
                         uiccCard.iccCloseLogicalChannel((Integer) request.argument, onCompleted);
@@ -617,9 +624,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("nvReadItem: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_NV_WRITE_ITEM:
@@ -675,9 +680,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("getPreferredNetworkType: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_PREFERRED_NETWORK_TYPE:
@@ -701,9 +704,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     ar = (AsyncResult)msg.obj;
                     request = (MainThreadRequest)ar.userObj;
                     request.result = ar;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_VOICEMAIL_NUMBER:
@@ -763,9 +764,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         cellScanResult = new CellNetworkScanResult(errorCode, null);
                     }
                     request.result = cellScanResult;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
@@ -807,9 +806,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new ModemActivityInfo(0, 0, 0, null, 0, 0);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_ALLOWED_CARRIERS:
@@ -839,9 +836,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new int[]{-1};
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_GET_ALLOWED_CARRIERS:
@@ -869,9 +864,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new ArrayList<CarrierIdentifier>(0);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SIM_GET_ATR:
@@ -880,9 +873,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("getAtr: No UICC");
                         request.result = "";
-                         synchronized (request) {
-                            request.notifyAll();
-                        }
+                         notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_SIM_GET_ATR_DONE, request);
                         uiccCard.getAtr(onCompleted);
@@ -905,9 +896,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 default:
@@ -929,9 +918,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     loge(command + ": Unknown exception");
                 }
             }
-            synchronized (request) {
-                request.notifyAll();
-            }
+            notifyRequester(request);
         }
     }
 
@@ -947,6 +934,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     /**
      * Posts the specified command to be executed on the main thread,
      * waits for the request to complete, and returns the result.
+     *
+     * <p>Commands with a {@link #getRequestTimeoutMillis timeout} return
+     * {@link #createTimeoutResult} if the main thread has not completed them in time, so a RIL
+     * or SIM that never answers cannot pin the binder thread.
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument, Integer subId) {
@@ -954,21 +945,19 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             throw new RuntimeException("This method will deadlock if called from the main thread.");
         }
 
-        MainThreadRequest request = new MainThreadRequest(argument, subId);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+        CompletableFuture<Object> future = sendRequestAsync(command, argument, subId);
 
         // Wait for the request to complete
-        synchronized (request) {
-            while (request.result == null) {
-                try {
-                    request.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
-                }
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                // Do nothing, go back and wait until the request is complete
+            } catch (ExecutionException e) {
+                // Requests are never completed exceptionally.
+                throw new RuntimeException(e.getCause());
             }
         }
-        return request.result;
     }
 
     /**
@@ -986,11 +975,142 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @see {@link #sendRequest(int,Object)}
      */
     private void sendRequestAsync(int command, Object argument) {
-        MainThreadRequest request = new MainThreadRequest(argument);
+        sendRequestAsync(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    /**
+     * Posts the specified command to be executed on the main thread and returns a future that
+     * completes with the result, for callers that can take a callback instead of blocking.
+     * Dependent actions added without an executor run on the main thread, so they must not
+     * block either. The same timeout as {@link #sendRequest} applies.
+     */
+    private CompletableFuture<Object> sendRequestAsync(int command, Object argument,
+            Integer subId) {
+        MainThreadRequest request = new MainThreadRequest(argument, subId);
+        enqueueRequest(command, request);
+        return request.future;
+    }
+
+    private void enqueueRequest(int command, MainThreadRequest request) {
+        request.command = command;
+        request.sentMillis = SystemClock.elapsedRealtime();
+        mRequestStats.onSent(request);
+        long timeoutMillis = getRequestTimeoutMillis(command);
+        if (timeoutMillis > 0) {
+            mMainThreadHandler.postDelayed(() -> {
+                if (request.future.complete(createTimeoutResult(command))) {
+                    loge("Command " + command + " timed out after " + timeoutMillis + "ms");
+                    mRequestStats.onTimedOut(request);
+                }
+            }, timeoutMillis);
+        }
         Message msg = mMainThreadHandler.obtainMessage(command, request);
         msg.sendToTarget();
     }
 
+    /**
+     * Called on the main thread once {@code request.result} is set. Wakes up the thread waiting
+     * in {@link #sendRequest}, or runs the callbacks of {@link #sendRequestAsync}.
+     */
+    private void notifyRequester(MainThreadRequest request) {
+        mRequestStats.onCompleted(request);
+        if (!request.future.complete(request.result)) {
+            log("Command " + request.command + " completed after its timeout");
+        }
+    }
+
+    /**
+     * Returns how long the requester waits for {@code command}, or 0 to wait until it completes.
+     * Only commands that wait on the modem or the SIM, and have a result that can report a
+     * failure, have a timeout.
+     */
+    private static long getRequestTimeoutMillis(int command) {
+        switch (command) {
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+                return SIM_REQUEST_TIMEOUT_MILLIS;
+            case CMD_INVOKE_OEM_RIL_REQUEST_RAW:
+                return OEM_RIL_REQUEST_TIMEOUT_MILLIS;
+            case CMD_PERFORM_NETWORK_SCAN:
+                return NETWORK_SCAN_TIMEOUT_MILLIS;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the result reported for {@code command} when it times out. Matches what the main
+     * thread reports when the same command fails.
+     */
+    private static Object createTimeoutResult(int command) {
+        switch (command) {
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+                return new IccIoResult(0x6F, 0, (byte[]) null);
+            case CMD_INVOKE_OEM_RIL_REQUEST_RAW:
+                return new AsyncResult(null, null,
+                        new CommandException(CommandException.Error.GENERIC_FAILURE));
+            case CMD_PERFORM_NETWORK_SCAN:
+                return new CellNetworkScanResult(CellNetworkScanResult.STATUS_UNKNOWN_ERROR, null);
+            default:
+                throw new IllegalArgumentException("No timeout for command " + command);
+        }
+    }
+
+    /**
+     * Per-command latency and the number of requests the main thread has not completed yet, for
+     * dumpsys.
+     */
+    private static final class RequestStats {
+        /** count, timeouts, total latency and max latency in millis, indexed by command. */
+        private final SparseArray<long[]> mCommands = new SparseArray<>();
+        private int mPending;
+        private int mMaxPending;
+
+        synchronized void onSent(MainThreadRequest request) {
+            mPending++;
+            mMaxPending = Math.max(mMaxPending, mPending);
+        }
+
+        synchronized void onCompleted(MainThreadRequest request) {
+            mPending--;
+            long latency = SystemClock.elapsedRealtime() - request.sentMillis;
+            long[] stats = getStats(request.command);
+            stats[0]++;
+            stats[2] += latency;
+            stats[3] = Math.max(stats[3], latency);
+        }
+
+        synchronized void onTimedOut(MainThreadRequest request) {
+            getStats(request.command)[1]++;
+        }
+
+        private long[] getStats(int command) {
+            long[] stats = mCommands.get(command);
+            if (stats == null) {
+                stats = new long[4];
+                mCommands.put(command, stats);
+            }
+            return stats;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.println("Main thread requests: pending=" + mPending
+                    + " maxPending=" + mMaxPending);
+            for (int i = 0; i < mCommands.size(); i++) {
+                long[] stats = mCommands.valueAt(i);
+                writer.println("  command " + mCommands.keyAt(i) + ": count=" + stats[0]
+                        + " timeouts=" + stats[1]
+                        + " avgMillis=" + (stats[0] > 0 ? stats[2] / stats[0] : 0)
+                        + " maxMillis=" + stats[3]);
+            }
+        }
+    }
+
     /**
      * Initialize the singleton PhoneInterfaceManager instance.
      * This is only done once, at startup, from PhoneApp.onCreate().
@@ -1018,6 +1138,20 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 PreferenceManager.getDefaultSharedPreferences(mPhone.getContext());
         mSubscriptionController = SubscriptionController.getInstance();
 
+        SubscriptionManager.from(app).addOnSubscriptionsChangedListener(
+                new OnSubscriptionsChangedListener() {
+                    @Override
+                    public void onSubscriptionsChanged() {
+                        invalidateCachedStates();
+                    }
+                });
+        app.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateCachedStates();
+            }
+        }, new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+
         publish();
     }
 
@@ -1043,6 +1177,44 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return PhoneFactory.getPhone(mSubscriptionController.getPhoneId(subId));
     }
 
+    /**
+     * Snapshot of the state of a subscription returned by the frequently polled getters. Never
+     * modified.
+     *
+     * <p>The service state isn't part of it: it also changes with the IMS registration, e.g. for
+     * VoWiFi, which isn't notified. The getters read it from {@link #phone}.
+     */
+    private static final class CachedSubscriptionState {
+        /** The phone of the subscription, or null if there is none. */
+        public final Phone phone;
+        public final String line1NumberForDisplay;
+
+        public CachedSubscriptionState(Phone phone, String line1NumberForDisplay) {
+            this.phone = phone;
+            this.line1NumberForDisplay = line1NumberForDisplay;
+        }
+    }
+
+    private static final CachedSubscriptionState NO_PHONE_STATE =
+            new CachedSubscriptionState(null, null);
+
+    /**
+     * Returns the state of {@code subId}, resolving it only if it changed since the last call.
+     * Permission checks are per caller and must still be done before using the result.
+     */
+    private CachedSubscriptionState getCachedState(int subId) {
+        CachedSubscriptionState state = mCachedStates.get(subId);
+        return state != null ? state : NO_PHONE_STATE;
+    }
+
+    /**
+     * Drops all cached subscription states. Called on subscription and carrier config changes,
+     * and when the line 1 number override is changed.
+     */
+    private void invalidateCachedStates() {
+        mCachedStates.invalidate();
+    }
+
     private UiccCard getUiccCardUsingSubId(int subId) {
         Phone phone = getPhone(subId);
         return UiccController.getInstance().getUiccCard(phone.getPhoneId());
@@ -1145,7 +1317,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         // but that can probably wait till the big TelephonyManager API overhaul.
         // For now, protect this call with the MODIFY_PHONE_STATE permission.
         enforceModifyPermission();
-        sendRequest(CMD_ANSWER_RINGING_CALL, null, new Integer(subId));
+        // Nothing is returned to the caller, don't hold the binder thread while answering.
+        sendRequestAsync(CMD_ANSWER_RINGING_CALL, null, new Integer(subId));
     }
 
     /**
@@ -2189,7 +2362,7 @@ public void toggleLTE(boolean on) {
             return TelephonyManager.NETWORK_TYPE_UNKNOWN;
         }
 
-        final Phone phone = getPhone(subId);
+        final Phone phone = getCachedState(subId).phone;
         if (phone != null) {
             return phone.getServiceState().getDataNetworkType();
         } else {
@@ -2215,7 +2388,7 @@ public void toggleLTE(boolean on) {
             return TelephonyManager.NETWORK_TYPE_UNKNOWN;
         }
 
-        final Phone phone = getPhone(subId);
+        final Phone phone = getCachedState(subId).phone;
         if (phone != null) {
             return phone.getServiceState().getDataNetworkType();
         } else {
@@ -2232,7 +2405,7 @@ public void toggleLTE(boolean on) {
             return TelephonyManager.NETWORK_TYPE_UNKNOWN;
         }
 
-        final Phone phone = getPhone(subId);
+        final Phone phone = getCachedState(subId).phone;
         if (phone != null) {
             return phone.getServiceState().getVoiceNetworkType();
         } else {
@@ -2719,7 +2892,7 @@ public void toggleLTE(boolean on) {
 
     @Override
     public int getCarrierPrivilegeStatus(int subId) {
-        final Phone phone = getPhone(subId);
+        final Phone phone = getCachedState(subId).phone;
         if (phone == null) {
             loge("getCarrierPrivilegeStatus: Invalid subId");
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
@@ -2872,6 +3045,7 @@ public void toggleLTE(boolean on) {
         }
 
         editor.commit();
+        invalidateCachedStates();
         return true;
     }
 
@@ -2883,6 +3057,10 @@ public void toggleLTE(boolean on) {
             return null;
         }
 
+        return getCachedState(subId).line1NumberForDisplay;
+    }
+
+    private String readLine1NumberForDisplay(int subId) {
         String iccId = getIccId(subId);
         if (iccId != null) {
             String numberPrefKey = PREF_CARRIERS_NUMBER_PREFIX + iccId;
@@ -3130,7 +3308,7 @@ public void toggleLTE(boolean on) {
      * Returns the IMS Registration Status based on subId
      */
     public boolean isImsRegisteredForSubscriber(int subId) {
-        final Phone phone = getPhone(subId);
+        final Phone phone = getCachedState(subId).phone;
 
         if (phone != null) {
             return phone.isImsRegistered();
@@ -3365,7 +3543,7 @@ public void toggleLTE(boolean on) {
             return null;
         }
 
-        final Phone phone = getPhone(subId);
+        final Phone phone = getCachedState(subId).phone;
         if (phone == null) {
             return null;
         }
@@ -3584,6 +3762,8 @@ public void toggleLTE(boolean on) {
                     + android.Manifest.permission.DUMP);
             return;
         }
+        mRequestStats.dump(writer);
+        writer.println("Cached subscription states: " + mCachedStates);
         DumpsysHandler.dump(mPhone.getContext(), fd, writer, args);
     }
 
@@ -2482,6 +2482,12 @@ public class PhoneUtils {
     }
 
     private static Phone getPhoneFromIccId(String iccId) {
+        IccIdIndex index = IccIdIndex.getInstance();
+        if (index != null) {
+            int phoneId = index.getPhoneId(iccId);
+            return SubscriptionManager.isValidPhoneId(phoneId)
+                    ? PhoneFactory.getPhone(phoneId) : null;
+        }
         if (!TextUtils.isEmpty(iccId)) {
             for (Phone phone : PhoneFactory.getPhones()) {
                 String phoneIccId = phone.getFullIccSerialNumber();
@@ -2522,45 +2528,16 @@ public class PhoneUtils {
     }
 
     public static boolean isLocalEmergencyNumber(Context context, String address) {
-        IExtTelephony extTelephony = getIExtTelephony();
-        if (extTelephony == null) {
-            return PhoneNumberUtils.isLocalEmergencyNumber(context, address);
-        }
-
-        try {
-            return extTelephony.isLocalEmergencyNumber(address);
-        } catch (RemoteException ex) {
-            Log.e("TelephonyConnectionService", "Exception: " + ex);
-            return PhoneNumberUtils.isLocalEmergencyNumber(context, address);
-        }
+        return EmergencyNumberClassifier.getInstance(context).isLocalEmergencyNumber(address);
     }
 
     public static boolean isPotentialLocalEmergencyNumber(Context context, String address) {
-        IExtTelephony extTelephony = getIExtTelephony();
-        if (extTelephony == null) {
-            return PhoneNumberUtils.isPotentialLocalEmergencyNumber(context, address);
-        }
-
-        try {
-            return extTelephony.isPotentialLocalEmergencyNumber(address);
-        } catch (RemoteException ex) {
-            Log.e("TelephonyConnectionService", "Exception: " + ex);
-            return PhoneNumberUtils.isPotentialLocalEmergencyNumber(context, address);
-        }
+        return EmergencyNumberClassifier.getInstance(context)
+                .isPotentialLocalEmergencyNumber(address);
     }
 
-    public static boolean isEmergencyNumber(String address) {
-        IExtTelephony extTelephony = getIExtTelephony();
-        if (extTelephony == null) {
-            return PhoneNumberUtils.isEmergencyNumber(address);
-        }
-
-        try {
-            return extTelephony.isEmergencyNumber(address);
-        } catch (RemoteException ex) {
-            Log.e("TelephonyConnectionService", "Exception: " + ex);
-            return PhoneNumberUtils.isEmergencyNumber(address);
-        }
+    public static boolean isEmergencyNumber(Context context, String address) {
+        return EmergencyNumberClassifier.getInstance(context).isEmergencyNumber(address);
     }
 
     public static boolean isDeviceInSingleStandBy() {
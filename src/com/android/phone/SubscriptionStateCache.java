@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of a state per subscription, for the getters of
+ * {@link PhoneInterfaceManager} that apps poll.
+ *
+ * <p>Reads do not lock. {@link #invalidate()} bumps a generation instead of racing with the
+ * readers, so a state loaded while it was changing is never served.
+ *
+ * @param <T> the state of a subscription, never modified once loaded.
+ */
+class SubscriptionStateCache<T> {
+
+    interface Loader<T> {
+        /**
+         * @return the state of {@code subId}, or null if it isn't cached, e.g. because no phone has
+         * the subscription.
+         */
+        T load(int subId);
+    }
+
+    private static final class Entry<T> {
+        final int generation;
+        final T state;
+
+        Entry(int generation, T state) {
+            this.generation = generation;
+            this.state = state;
+        }
+    }
+
+    private final Loader<T> mLoader;
+    private final ConcurrentHashMap<Integer, Entry<T>> mEntries = new ConcurrentHashMap<>();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    SubscriptionStateCache(Loader<T> loader) {
+        mLoader = loader;
+    }
+
+    /**
+     * Returns the state of {@code subId}, loading it only if it was invalidated since it was last
+     * loaded.
+     */
+    T get(int subId) {
+        final int generation = mGeneration.get();
+        final Entry<T> entry = mEntries.get(subId);
+        if (entry != null && entry.generation == generation) {
+            mHits.incrementAndGet();
+            return entry.state;
+        }
+        mMisses.incrementAndGet();
+        final T state = mLoader.load(subId);
+        if (state != null) {
+            mEntries.put(subId, new Entry<T>(generation, state));
+        }
+        return state;
+    }
+
+    /**
+     * Drops all the states. A state being loaded meanwhile is not served.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+        mEntries.clear();
+    }
+
+    long getHits() {
+        return mHits.get();
+    }
+
+    long getMisses() {
+        return mMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + mEntries.size() + " generation=" + mGeneration.get()
+                + " hits=" + mHits.get() + " misses=" + mMisses.get();
+    }
+}
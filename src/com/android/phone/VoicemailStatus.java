@@ -24,12 +24,32 @@ import android.net.Uri;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.vvm.omtp.VvmLog;
 
 public class VoicemailStatus {
 
     private static final String TAG = "VvmStatus";
 
+    /**
+     * Voicemail payloads prefetched by syncs since the phone process started, by account. The
+     * status table of the provider has no columns for these, they are only kept in memory and
+     * printed by the visual voicemail dump.
+     */
+    private static final ArrayMap<PhoneAccountHandle, PrefetchStats> sPrefetchStats =
+            new ArrayMap<>();
+
+    private static class PrefetchStats {
+
+        int count;
+        long totalBytes;
+        long totalLatencyMillis;
+        long maxLatencyMillis;
+        long lastBytes;
+        long lastLatencyMillis;
+    }
+
     public static class Editor {
 
         private final Context mContext;
@@ -152,6 +172,43 @@ public class VoicemailStatus {
                 .apply();
     }
 
+    /**
+     * Records a voicemail payload fetched from the server before the user requested it.
+     *
+     * @param latencyMillis how long it took to receive the payload.
+     * @param bytes the size of the payload written to the provider.
+     */
+    public static void recordPrefetch(PhoneAccountHandle phoneAccountHandle, long latencyMillis,
+            long bytes) {
+        VvmLog.i(TAG, "Prefetched " + bytes + " bytes in " + latencyMillis + "ms");
+        synchronized (sPrefetchStats) {
+            PrefetchStats stats = sPrefetchStats.get(phoneAccountHandle);
+            if (stats == null) {
+                stats = new PrefetchStats();
+                sPrefetchStats.put(phoneAccountHandle, stats);
+            }
+            stats.count++;
+            stats.totalBytes += bytes;
+            stats.totalLatencyMillis += latencyMillis;
+            stats.maxLatencyMillis = Math.max(stats.maxLatencyMillis, latencyMillis);
+            stats.lastBytes = bytes;
+            stats.lastLatencyMillis = latencyMillis;
+        }
+    }
+
+    public static void dumpPrefetchStats(IndentingPrintWriter writer) {
+        synchronized (sPrefetchStats) {
+            for (int i = 0; i < sPrefetchStats.size(); i++) {
+                PrefetchStats stats = sPrefetchStats.valueAt(i);
+                writer.println(sPrefetchStats.keyAt(i) + ": count=" + stats.count
+                        + " bytes=" + stats.totalBytes
+                        + " avgLatencyMs=" + stats.totalLatencyMillis / stats.count
+                        + " maxLatencyMs=" + stats.maxLatencyMillis
+                        + " last=" + stats.lastBytes + "B/" + stats.lastLatencyMillis + "ms");
+            }
+        }
+    }
+
     public static DeferredEditor deferredEdit(Context context,
             PhoneAccountHandle phoneAccountHandle) {
         return new DeferredEditor(context, phoneAccountHandle);
@@ -289,10 +289,32 @@ public class MailTransport {
         mSocket = null;
     }
 
+    /**
+     * Changes how long a read may block before failing. Used to wait on long running commands
+     * such as IMAP IDLE.
+     */
+    public void setSoTimeout(int timeoutMillis) throws IOException {
+        if (mSocket != null) {
+            mSocket.setSoTimeout(timeoutMillis);
+        }
+    }
+
     public String getHost() {
         return mHost;
     }
 
+    public Network getNetwork() {
+        return mNetwork;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
     public InputStream getInputStream() {
         return mIn;
     }
@@ -15,6 +15,7 @@
  */
 package com.android.phone.common.mail.store;
 
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Base64;
 import com.android.phone.common.mail.AuthenticationFailedException;
@@ -35,6 +36,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLException;
 
@@ -49,6 +52,13 @@ public class ImapConnection {
     private MailTransport mTransport;
     private ImapResponseParser mParser;
     private Set<String> mCapabilities = new ArraySet<>();
+    private boolean mQresyncEnabled;
+
+    /**
+     * Whether DONE has been sent for the current IDLE command. Written from the thread stopping
+     * the IDLE, so it must be atomic.
+     */
+    private final AtomicBoolean mIdleDone = new AtomicBoolean(true);
 
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
 
@@ -136,6 +146,109 @@ public class ImapConnection {
         }
     }
 
+    /**
+     * @return whether the underlying transport is still connected.
+     */
+    boolean isOpen() {
+        return mTransport != null && mTransport.isOpen();
+    }
+
+    /**
+     * Checks an already open connection is still usable by sending a NOOP. Never opens a new
+     * connection.
+     */
+    boolean isAlive() {
+        if (!isOpen()) {
+            return false;
+        }
+        try {
+            executeSimpleCommand(ImapConstants.NOOP);
+            return true;
+        } catch (IOException | MessagingException e) {
+            LogUtils.d(TAG, "NOOP failed, connection is stale", e);
+            return false;
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Starts an IDLE command (RFC 2177) on the selected folder. The caller must then call {@link
+     * #waitForIdleChange()}, and {@link #stopIdle()} from any thread to end the IDLE.
+     *
+     * @param timeoutMillis how long the IDLE is expected to last at most. Reads will not time out
+     * before this.
+     */
+    public void startIdle(long timeoutMillis) throws IOException, MessagingException {
+        sendCommand(ImapConstants.IDLE, false);
+        ImapResponse response = readResponse();
+        if (!response.isContinuationRequest()) {
+            destroyResponses();
+            throw new MessagingException(MessagingException.PROTOCOL_VERSION_UNSUPPORTED,
+                    "IDLE rejected: " + response);
+        }
+        destroyResponses();
+        mIdleDone.set(false);
+        if (mTransport != null) {
+            mTransport.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+                    timeoutMillis + MailTransport.SOCKET_READ_TIMEOUT));
+        }
+    }
+
+    /**
+     * Ends the current IDLE command by sending DONE. Safe to call from any thread and more than
+     * once.
+     */
+    public void stopIdle() {
+        if (mIdleDone.getAndSet(true)) {
+            return;
+        }
+        try {
+            MailTransport transport = mTransport;
+            if (transport != null) {
+                transport.writeLine(ImapConstants.IDLE_DONE, null);
+            }
+        } catch (IOException e) {
+            // The reading thread will see the failure too.
+            LogUtils.d(TAG, "Unable to send DONE", e);
+        }
+    }
+
+    /**
+     * Blocks until the IDLE started by {@link #startIdle(long)} completes. If the server reports
+     * a mailbox change the IDLE is stopped immediately.
+     *
+     * @return whether the server reported new, expunged or changed messages.
+     * @throws IOException if the server closed the connection with BYE, which servers do to IDLE
+     * sessions they consider too long.
+     */
+    public boolean waitForIdleChange() throws IOException, MessagingException {
+        boolean changed = false;
+        try {
+            ImapResponse response;
+            do {
+                response = readResponse();
+                if (response.is(0, ImapConstants.BYE)) {
+                    throw new IOException("Server closed the connection during IDLE");
+                }
+                if (response.isDataResponse(1, ImapConstants.EXISTS)
+                        || response.isDataResponse(1, ImapConstants.EXPUNGE)
+                        || response.isDataResponse(1, ImapConstants.FETCH)
+                        || response.isDataResponse(0, ImapConstants.VANISHED)) {
+                    changed = true;
+                    stopIdle();
+                }
+                destroyResponses();
+            } while (!response.isTagged());
+        } finally {
+            mIdleDone.set(true);
+            if (mTransport != null) {
+                mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+            }
+        }
+        return changed;
+    }
+
     void logout() {
         try {
             sendCommand(ImapConstants.LOGOUT, false);
@@ -160,8 +273,11 @@ public class ImapConnection {
             mTransport.close();
             mTransport = null;
         }
-        destroyResponses();
-        mParser = null;
+        mQresyncEnabled = false;
+        if (mParser != null) {
+            mParser.release();
+            mParser = null;
+        }
         mImapStore = null;
     }
 
@@ -313,18 +429,50 @@ public class ImapConnection {
         LogUtils.d(TAG, "Capabilities: " + mCapabilities.toString());
     }
 
-    private boolean hasCapability(String capability) {
+    /**
+     * @return whether the server advertised {@code capability}, excluding capabilities disabled by
+     * the carrier config. Only meaningful after the connection is opened.
+     */
+    public boolean hasCapability(String capability) {
         return mCapabilities.contains(capability);
     }
+
+    /**
+     * Enables QRESYNC (RFC 7162) on this connection if the server supports it, so VANISHED
+     * responses can be requested. QRESYNC implies CONDSTORE.
+     *
+     * @return whether QRESYNC is enabled on this connection.
+     */
+    public boolean maybeEnableQresync() throws IOException, MessagingException {
+        open();
+        if (mQresyncEnabled) {
+            return true;
+        }
+        if (!hasCapability(ImapConstants.CAPABILITY_QRESYNC)) {
+            return false;
+        }
+        try {
+            executeSimpleCommand(
+                    ImapConstants.ENABLE + " " + ImapConstants.CAPABILITY_QRESYNC);
+            mQresyncEnabled = true;
+        } catch (ImapException e) {
+            LogUtils.w(TAG, "Server rejected ENABLE QRESYNC", e);
+        } finally {
+            destroyResponses();
+        }
+        return mQresyncEnabled;
+    }
     /**
      * Create an {@link ImapResponseParser} from {@code mTransport.getInputStream()} and
      * set it to {@link #mParser}.
      *
      * If we already have an {@link ImapResponseParser}, we
-     * {@link #destroyResponses()} and throw it away.
+     * {@link ImapResponseParser#release()} it and throw it away.
      */
     private void createParser() {
-        destroyResponses();
+        if (mParser != null) {
+            mParser.release();
+        }
         mParser = new ImapResponseParser(mTransport.getInputStream());
     }
 
@@ -377,6 +525,58 @@ public class ImapConnection {
         return tag;
     }
 
+    /**
+     * Sends all of {@code commands} before reading any response, so they take a single round trip
+     * instead of one each, then reads the responses and completes the future of each command when
+     * its tagged response arrives. Untagged responses are given to the command completed after
+     * them, as with {@link #executeSimpleCommand(String)}. The commands must not need a
+     * continuation, and should not depend on each other since a command is sent even if one before
+     * it fails.
+     *
+     * <p>The responses must be destroyed with {@link #destroyResponses()} once they are processed.
+     *
+     * @return the future of each command, in the same order, completed with its responses, or
+     * exceptionally with an {@link ImapException} if the server rejected it. All futures are
+     * completed when this method returns.
+     * @throws IOException if the connection failed. Commands may have been executed.
+     */
+    public List<CompletableFuture<List<ImapResponse>>> executePipelinedCommands(
+            List<String> commands) throws IOException, MessagingException {
+        Map<String, CompletableFuture<List<ImapResponse>>> pending = new ArrayMap<>();
+        List<CompletableFuture<List<ImapResponse>>> futures = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            CompletableFuture<List<ImapResponse>> future = new CompletableFuture<>();
+            pending.put(sendCommand(command, false), future);
+            futures.add(future);
+        }
+
+        List<ImapResponse> responses = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            ImapResponse response = readResponse();
+            if (response.isContinuationRequest()) {
+                throw new MessagingException("Unexpected continuation request in pipeline");
+            }
+            responses.add(response);
+            if (!response.isTagged()) {
+                continue;
+            }
+            CompletableFuture<List<ImapResponse>> future = pending.remove(response.getTag());
+            if (future == null) {
+                LogUtils.w(TAG, "Response to unknown command: " + response);
+            } else if (response.isOk()) {
+                future.complete(responses);
+            } else {
+                future.completeExceptionally(new ImapException(response.toString(),
+                        response.getStatusOrEmpty().getString(),
+                        response.getStatusResponseTextOrEmpty().getString(),
+                        response.getAlertTextOrEmpty().getString(),
+                        response.getResponseCodeOrEmpty().getString()));
+            }
+            responses = new ArrayList<>();
+        }
+        return futures;
+    }
+
     List<ImapResponse> executeContinuationResponse(String response, boolean sensitive)
             throws IOException, MessagingException {
         mTransport.writeLine(response, (sensitive ? IMAP_REDACTED_LOG : response));
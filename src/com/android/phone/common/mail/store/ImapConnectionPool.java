@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store;
+
+import android.net.Network;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.common.mail.utils.LogUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps logged in {@link ImapConnection}s open for a short while after a task is done with them,
+ * so the next task on the same account and network can skip the socket, TLS handshake and login.
+ * At most one idle connection is kept per account. Connections are checked with NOOP before they
+ * are handed out again, and closed once their idle window expires. The pool's thread only runs
+ * while it holds connections.
+ */
+public class ImapConnectionPool {
+
+    private static final String TAG = "ImapConnectionPool";
+
+    private static final ImapConnectionPool sInstance = new ImapConnectionPool();
+
+    /**
+     * Identifies the server, credentials and network a connection was opened with. A connection
+     * is only reused if all of them match.
+     */
+    static final class Key {
+
+        private final String mUsername;
+        private final String mPassword;
+        private final String mHost;
+        private final int mPort;
+        private final int mFlags;
+        private final Network mNetwork;
+
+        Key(String username, String password, String host, int port, int flags,
+                Network network) {
+            mUsername = username;
+            mPassword = password;
+            mHost = host;
+            mPort = port;
+            mFlags = flags;
+            mNetwork = network;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mPort == other.mPort
+                    && mFlags == other.mFlags
+                    && Objects.equals(mUsername, other.mUsername)
+                    && Objects.equals(mPassword, other.mPassword)
+                    && Objects.equals(mHost, other.mHost)
+                    && Objects.equals(mNetwork, other.mNetwork);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUsername, mPassword, mHost, mPort, mFlags, mNetwork);
+        }
+    }
+
+    private static final class Entry {
+
+        final ImapConnection connection;
+        final long expiryMillis;
+
+        Entry(ImapConnection connection, long expiryMillis) {
+            this.connection = connection;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Map<Key, Entry> mIdleConnections = new HashMap<>();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private int mReused;
+    private int mStale;
+    private int mExpired;
+
+    @VisibleForTesting
+    ImapConnectionPool() {
+    }
+
+    public static ImapConnectionPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Takes the idle connection for {@code key} out of the pool, if there is one that still
+     * responds. The connection is attached to {@code store}.
+     *
+     * @return a logged in connection, or {@code null} if a new one must be opened.
+     */
+    ImapConnection acquire(Key key, ImapStore store) {
+        Entry entry;
+        synchronized (mLock) {
+            entry = mIdleConnections.remove(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        entry.connection.setStore(store);
+        if (SystemClock.elapsedRealtime() >= entry.expiryMillis || !entry.connection.isAlive()) {
+            synchronized (mLock) {
+                mStale++;
+            }
+            entry.connection.close();
+            return null;
+        }
+        synchronized (mLock) {
+            mReused++;
+        }
+        LogUtils.d(TAG, "Reusing pooled connection");
+        return entry.connection;
+    }
+
+    /**
+     * Returns {@code connection} to the pool, where it stays open for {@code idleTimeoutMillis}.
+     * If the timeout is not positive or the connection is already closed it is closed instead.
+     */
+    void release(Key key, ImapConnection connection, long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0 || !connection.isOpen()) {
+            connection.close();
+            return;
+        }
+        Entry previous;
+        synchronized (mLock) {
+            previous = mIdleConnections.put(key,
+                    new Entry(connection, SystemClock.elapsedRealtime() + idleTimeoutMillis));
+            getHandlerLocked().postDelayed(mEvictRunnable, idleTimeoutMillis);
+        }
+        if (previous != null && previous.connection != connection) {
+            // Another task released a connection for the same account first.
+            previous.connection.close();
+        }
+    }
+
+    /**
+     * Closes every idle connection, for example because the account has been deactivated, and
+     * quits the pool's thread. Safe to call from the main thread, the connections are logged out
+     * on the pool's thread before it quits.
+     */
+    public void closeAll() {
+        synchronized (mLock) {
+            if (!mIdleConnections.isEmpty()) {
+                final Map<Key, Entry> connections = new HashMap<>(mIdleConnections);
+                mIdleConnections.clear();
+                getHandlerLocked().post(() -> {
+                    for (Entry entry : connections.values()) {
+                        entry.connection.close();
+                    }
+                });
+            }
+            quitThreadLocked();
+        }
+    }
+
+    private final Runnable mEvictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evictExpired();
+        }
+    };
+
+    private void evictExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Map<Key, Entry> expired = new HashMap<>();
+        synchronized (mLock) {
+            for (Map.Entry<Key, Entry> entry : mIdleConnections.entrySet()) {
+                if (now >= entry.getValue().expiryMillis) {
+                    expired.put(entry.getKey(), entry.getValue());
+                }
+            }
+            mIdleConnections.keySet().removeAll(expired.keySet());
+            mExpired += expired.size();
+            if (mIdleConnections.isEmpty()) {
+                // Nothing left to evict. The connections below are still closed by this message.
+                quitThreadLocked();
+            }
+        }
+        // Logging out is network I/O, which is why this runs on the pool's own thread.
+        for (Entry entry : expired.values()) {
+            entry.connection.close();
+        }
+    }
+
+    private Handler getHandlerLocked() {
+        if (mHandler == null) {
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        return mHandler;
+    }
+
+    /**
+     * Quits the pool's thread once the messages already due have been handled. A new thread is
+     * started by the next {@link #release}.
+     */
+    private void quitThreadLocked() {
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    @VisibleForTesting
+    HandlerThread getThread() {
+        synchronized (mLock) {
+            return mThread;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "ImapConnectionPool [idle: " + mIdleConnections.size()
+                    + ", reused: " + mReused
+                    + ", stale: " + mStale
+                    + ", expired: " + mExpired + "]";
+        }
+    }
+}
@@ -17,7 +17,9 @@ package com.android.phone.common.mail.store;
 
 import android.annotation.Nullable;
 import android.content.Context;
+import android.os.Handler;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Base64DataException;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -49,11 +51,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class ImapFolder {
     private static final String TAG = "ImapFolder";
@@ -67,12 +74,22 @@ public class ImapFolder {
     private ImapConnection mConnection;
     private String mMode;
     private boolean mExists;
+    private long mUidValidity = UNKNOWN;
+    private long mUidNext = UNKNOWN;
+    private long mHighestModSeq = UNKNOWN;
+    private boolean mQresyncEnabled;
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
 
     public static final String MODE_READ_ONLY = "mode_read_only";
     public static final String MODE_READ_WRITE = "mode_read_write";
 
+    /**
+     * Value of {@link #getUidValidity()}, {@link #getUidNext()} and {@link #getHighestModSeq()}
+     * when the server did not report it.
+     */
+    public static final long UNKNOWN = 0;
+
     public ImapFolder(ImapStore store, String name) {
         mStore = store;
         mName = name;
@@ -153,6 +170,35 @@ public class ImapFolder {
         return mMessageCount;
     }
 
+    /**
+     * @return the UIDVALIDITY reported when the folder was selected, or {@link #UNKNOWN}.
+     */
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * @return the UIDNEXT reported when the folder was selected, or {@link #UNKNOWN}.
+     */
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    /**
+     * @return the CONDSTORE HIGHESTMODSEQ reported when the folder was selected, or {@link
+     * #UNKNOWN} if the server does not support mod-sequences for this folder.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * @return whether VANISHED responses will be sent for {@link #fetchChangedFlags}.
+     */
+    public boolean isQresyncEnabled() {
+        return mQresyncEnabled;
+    }
+
     String[] getSearchUids(List<ImapResponse> responses) {
         // S: * SEARCH 2 3 6
         final ArrayList<String> uids = new ArrayList<String>();
@@ -218,6 +264,21 @@ public class ImapFolder {
         return true;
     }
 
+    /**
+     * Returns the UIDs within {@code uidRange} (for example "1:41" or "42:*") of messages not
+     * flagged as deleted.
+     *
+     * @param seenOnly only return messages with the \Seen flag.
+     */
+    public String[] getUndeletedUids(String uidRange, boolean seenOnly)
+            throws MessagingException {
+        String criteria = ImapConstants.UID + " " + uidRange;
+        if (seenOnly) {
+            criteria += " " + ImapConstants.SEEN;
+        }
+        return searchForUids(criteria + " NOT " + ImapConstants.DELETED);
+    }
+
     public Message[] getMessages(String[] uids) throws MessagingException {
         if (uids == null) {
             uids = searchForUids("1:* NOT DELETED");
@@ -245,6 +306,27 @@ public class ImapFolder {
         }
     }
 
+    /**
+     * Same as {@link #fetch(Message[], FetchProfile, MessageRetrievalListener)}, but at most
+     * {@code batchSize} UIDs are requested per UID FETCH command. Each chunk is a single round trip
+     * regardless of how many messages it contains, and {@code listener} is notified as every
+     * message in the chunk is parsed.
+     *
+     * @param batchSize the maximum number of UIDs per command, or a non-positive value to request
+     * all of them at once.
+     */
+    public void fetch(Message[] messages, FetchProfile fp, int batchSize,
+            MessageRetrievalListener listener) throws MessagingException {
+        if (batchSize <= 0 || messages.length <= batchSize) {
+            fetch(messages, fp, listener);
+            return;
+        }
+        for (int start = 0; start < messages.length; start += batchSize) {
+            int end = Math.min(start + batchSize, messages.length);
+            fetch(Arrays.copyOfRange(messages, start, end), fp, listener);
+        }
+    }
+
     public void fetchInternal(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
@@ -325,20 +407,7 @@ public class ImapFolder {
                     if (message == null) continue;
 
                     if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
+                        parseFlags(fetchList, message);
                     }
                     if (fp.contains(FetchProfile.Item.ENVELOPE)) {
                         final Date internalDate = fetchList.getKeyedStringOrEmpty(
@@ -417,6 +486,123 @@ public class ImapFolder {
         }
     }
 
+    /**
+     * Fetches the FLAGS of the messages in {@code uidRange} whose mod-sequence is greater than
+     * {@code changedSince} (RFC 7162 CHANGEDSINCE). The folder must have been selected with a
+     * known {@link #getHighestModSeq()}. If {@link #isQresyncEnabled()}, messages expunged since
+     * {@code changedSince} are reported as well.
+     *
+     * @param listener notified with a message carrying only its UID and flags for every change.
+     * @return the UID sets of all VANISHED (EARLIER) responses, e.g. "41,43:116". Always empty
+     * if QRESYNC is not enabled.
+     */
+    public List<String> fetchChangedFlags(String uidRange, long changedSince,
+            MessageRetrievalListener listener) throws MessagingException {
+        checkOpen();
+        final List<String> vanished = new ArrayList<String>();
+        try {
+            mConnection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " %s (%s %s) (%s %d%s)", uidRange,
+                    ImapConstants.UID, ImapConstants.FLAGS, ImapConstants.CHANGEDSINCE,
+                    changedSince, mQresyncEnabled ? " " + ImapConstants.VANISHED : ""), false);
+            ImapResponse response;
+            String failure = null;
+            do {
+                response = null;
+                try {
+                    response = mConnection.readResponse();
+                    if (response.isTagged() && !response.isOk()) {
+                        failure = response.getStatusResponseTextOrEmpty().getString();
+                    }
+                    if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                        // * VANISHED (EARLIER) 41,43:116
+                        vanished.add(response.getStringOrEmpty(response.size() - 1).getString());
+                        continue;
+                    }
+                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                        continue; // Ignore
+                    }
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString();
+                    if (TextUtils.isEmpty(uid)) continue;
+
+                    ImapMessage message = new ImapMessage(uid, this);
+                    parseFlags(fetchList, message);
+                    if (listener != null) {
+                        listener.messageRetrieved(message);
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+            if (failure != null) {
+                throw new MessagingException(MessagingException.SERVER_ERROR,
+                        "CHANGEDSINCE fetch failed: " + failure);
+            }
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+        return vanished;
+    }
+
+    /**
+     * Waits with IDLE (RFC 2177) until the server reports a change in this folder or {@code
+     * timeoutMillis} passes. The folder must be open. Blocks the calling thread.
+     *
+     * @param handler used to send DONE once the timeout expires.
+     * @return whether the folder changed.
+     */
+    public boolean idle(long timeoutMillis, Handler handler) throws MessagingException {
+        checkOpen();
+        final ImapConnection connection = mConnection;
+        if (!connection.hasCapability(ImapConstants.CAPABILITY_IDLE)) {
+            throw new MessagingException(MessagingException.PROTOCOL_VERSION_UNSUPPORTED,
+                    "IDLE not supported");
+        }
+        Runnable stopIdle = connection::stopIdle;
+        try {
+            connection.startIdle(timeoutMillis);
+            handler.postDelayed(stopIdle, timeoutMillis);
+            return connection.waitForIdleChange();
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        } finally {
+            handler.removeCallbacks(stopIdle);
+        }
+    }
+
+    /**
+     * Ends an ongoing {@link #idle(long, Handler)}. Can be called from any thread.
+     */
+    public void stopIdle() {
+        ImapConnection connection;
+        synchronized (this) {
+            connection = mConnection;
+        }
+        if (connection != null) {
+            connection.stopIdle();
+        }
+    }
+
+    private static void parseFlags(ImapList fetchList, ImapMessage message)
+            throws MessagingException {
+        final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -659,7 +845,108 @@ public class ImapFolder {
     public void setFlags(Message[] messages, String[] flags, boolean value)
             throws MessagingException {
         checkOpen();
+        try {
+            mConnection.executeSimpleCommand(createSetFlagsCommand(messages, flags, value));
+
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
 
+    /**
+     * The outcome of {@link #setFlagsAndExpunge(Map)}, for each of its commands.
+     */
+    public class SetFlagsResult {
+
+        /** The flags the server accepted to add. */
+        public final Set<String> flagsSet;
+        /** The quota after the expunge, or {@code null} if it is not available. */
+        @Nullable
+        public final Quota quota;
+
+        public SetFlagsResult(Set<String> flagsSet, @Nullable Quota quota) {
+            this.flagsSet = flagsSet;
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * Adds a flag to each set of messages in {@code messagesByFlag}, expunges the folder and gets
+     * the quota. All the commands are pipelined, so this takes a single round trip. Since the
+     * server executes each command even if one before it was rejected, a rejected command doesn't
+     * fail the others.
+     *
+     * @param messagesByFlag the messages to add each flag to.
+     * @return which of the flags were added, and the quota.
+     * @throws MessagingException if the connection failed. Any of the commands may have been
+     * executed.
+     */
+    public SetFlagsResult setFlagsAndExpunge(Map<String, Message[]> messagesByFlag)
+            throws MessagingException {
+        checkOpen();
+        List<String> flags = new ArrayList<>();
+        List<String> commands = new ArrayList<>();
+        for (Map.Entry<String, Message[]> entry : messagesByFlag.entrySet()) {
+            if (entry.getValue().length > 0) {
+                flags.add(entry.getKey());
+                commands.add(createSetFlagsCommand(entry.getValue(),
+                        new String[] {entry.getKey()}, true));
+            }
+        }
+        commands.add(ImapConstants.EXPUNGE);
+        commands.add(createGetQuotaCommand());
+        try {
+            List<CompletableFuture<List<ImapResponse>>> results =
+                    mConnection.executePipelinedCommands(commands);
+            Set<String> flagsSet = new ArraySet<>();
+            for (int i = 0; i < flags.size(); i++) {
+                try {
+                    getPipelinedResponses(results.get(i));
+                    flagsSet.add(flags.get(i));
+                } catch (ImapException e) {
+                    LogUtils.w(TAG, "Unable to set flag " + flags.get(i), e);
+                }
+            }
+            try {
+                handleUntaggedResponses(getPipelinedResponses(results.get(flags.size())));
+            } catch (ImapException e) {
+                // The messages stay flagged as deleted until the next expunge.
+                LogUtils.w(TAG, "Unable to expunge", e);
+            }
+            Quota quota = null;
+            try {
+                quota = parseQuota(getPipelinedResponses(results.get(flags.size() + 1)));
+            } catch (ImapException e) {
+                LogUtils.w(TAG, "Unable to get quota", e);
+            }
+            return new SetFlagsResult(flagsSet, quota);
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * @return the responses of a command completed by {@link
+     * ImapConnection#executePipelinedCommands(List)}.
+     * @throws ImapException if the server rejected the command.
+     */
+    private static List<ImapResponse> getPipelinedResponses(
+            CompletableFuture<List<ImapResponse>> result) throws ImapException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            throw (ImapException) e.getCause();
+        }
+    }
+
+    private static String createSetFlagsCommand(Message[] messages, String[] flags,
+            boolean value) {
         String allFlags = "";
         if (flags.length > 0) {
             StringBuilder flagList = new StringBuilder();
@@ -677,19 +964,11 @@ public class ImapFolder {
             }
             allFlags = flagList.substring(1);
         }
-        try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
-        } catch (IOException ioe) {
-            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
-            throw ioExceptionHandler(mConnection, ioe);
-        } finally {
-            destroyResponses();
-        }
+        return String.format(Locale.US,
+                ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
+                ImapStore.joinMessageUids(messages),
+                value ? "+" : "-",
+                allFlags);
     }
 
     /**
@@ -697,11 +976,21 @@ public class ImapFolder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
+        // Capabilities are only known once the connection is open.
+        mConnection.open();
+        mQresyncEnabled = mConnection.maybeEnableQresync();
+        // Ask for HIGHESTMODSEQ so changes can be fetched incrementally.
+        final boolean condstore = mQresyncEnabled
+                || mConnection.hasCapability(ImapConstants.CAPABILITY_CONDSTORE);
         final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", mName));
+                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"%s", mName,
+                        condstore ? " (" + ImapConstants.CAPABILITY_CONDSTORE + ")" : ""));
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = MODE_READ_WRITE;
+        mUidValidity = UNKNOWN;
+        mUidNext = UNKNOWN;
+        mHighestModSeq = UNKNOWN;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -712,6 +1001,14 @@ public class ImapFolder {
                     mMode = MODE_READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = MODE_READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = getResponseCodeValue(response);
+                } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+                    mUidNext = getResponseCodeValue(response);
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    mHighestModSeq = getResponseCodeValue(response);
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    mHighestModSeq = UNKNOWN;
                 }
             } else if (response.isTagged()) { // Not OK
                 mStore.getImapHelper().handleEvent(OmtpEvents.DATA_MAILBOX_OPEN_FAILED);
@@ -726,6 +1023,20 @@ public class ImapFolder {
         mExists = true;
     }
 
+    /**
+     * @return the unsigned numeric argument of a response code such as "[UIDNEXT 4392]", or
+     * {@link #UNKNOWN} if it is missing or malformed.
+     */
+    private static long getResponseCodeValue(ImapResponse response) {
+        final String value = response.getListOrEmpty(1).getStringOrEmpty(1).getString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LogUtils.w(TAG, "Invalid response code value: " + value);
+            return UNKNOWN;
+        }
+    }
+
     public class Quota {
 
         public final int occupied;
@@ -739,29 +1050,35 @@ public class ImapFolder {
 
     public Quota getQuota() throws MessagingException {
         try {
-            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                    String.format(Locale.US, ImapConstants.GETQUOTAROOT + " \"%s\"", mName));
-
-            for (ImapResponse response : responses) {
-                if (!response.isDataResponse(0, ImapConstants.QUOTA)) {
-                    continue;
-                }
-                ImapList list = response.getListOrEmpty(2);
-                for (int i = 0; i < list.size(); i += 3) {
-                    if (!list.getStringOrEmpty(i).is("voice")) {
-                        continue;
-                    }
-                    return new Quota(
-                            list.getStringOrEmpty(i + 1).getNumber(-1),
-                            list.getStringOrEmpty(i + 2).getNumber(-1));
-                }
-            }
+            return parseQuota(mConnection.executeSimpleCommand(createGetQuotaCommand()));
         } catch (IOException ioe) {
             mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
             destroyResponses();
         }
+    }
+
+    private String createGetQuotaCommand() {
+        return String.format(Locale.US, ImapConstants.GETQUOTAROOT + " \"%s\"", mName);
+    }
+
+    @Nullable
+    private Quota parseQuota(List<ImapResponse> responses) {
+        for (ImapResponse response : responses) {
+            if (!response.isDataResponse(0, ImapConstants.QUOTA)) {
+                continue;
+            }
+            ImapList list = response.getListOrEmpty(2);
+            for (int i = 0; i < list.size(); i += 3) {
+                if (!list.getStringOrEmpty(i).is("voice")) {
+                    continue;
+                }
+                return new Quota(
+                        list.getStringOrEmpty(i + 1).getNumber(-1),
+                        list.getStringOrEmpty(i + 2).getNumber(-1));
+            }
+        }
         return null;
     }
 
@@ -774,6 +1091,7 @@ public class ImapFolder {
     private MessagingException ioExceptionHandler(ImapConnection connection, IOException ioe) {
         LogUtils.d(TAG, "IO Exception detected: ", ioe);
         connection.close();
+        mStore.discardConnection(connection);
         if (connection == mConnection) {
             mConnection = null; // To prevent close() from returning the connection to the pool.
             close(false);
@@ -39,6 +39,7 @@ public class ImapStore {
     private final String mUsername;
     private final String mPassword;
     private final MailTransport mTransport;
+    private final ImapConnectionPool.Key mPoolKey;
     private ImapConnection mConnection;
 
     public static final int FLAG_NONE         = 0x00;    // No flags
@@ -59,6 +60,8 @@ public class ImapStore {
         mPassword = password;
         mTransport = new MailTransport(context, this.getImapHelper(),
                 network, serverName, port, flags);
+        mPoolKey = new ImapConnectionPool.Key(username, password, serverName, port, flags,
+                network);
     }
 
     public Context getContext() {
@@ -160,14 +163,32 @@ public class ImapStore {
         }
     }
 
+    /**
+     * Releases the connection. It is kept open in the {@link ImapConnectionPool} for the idle
+     * window configured for the carrier so the next task can reuse it.
+     */
     public void closeConnection() {
         if (mConnection != null) {
-            mConnection.close();
+            ImapConnectionPool.getInstance().release(mPoolKey, mConnection,
+                    mHelper.getConfig().getImapConnectionIdleTimeoutMillis());
+            mConnection = null;
+        }
+    }
+
+    /**
+     * Forgets {@code connection} once it has been closed because of an I/O error, so the next
+     * {@link #getConnection()} opens a new one instead of returning it.
+     */
+    void discardConnection(ImapConnection connection) {
+        if (mConnection == connection) {
             mConnection = null;
         }
     }
 
     public ImapConnection getConnection() {
+        if (mConnection == null) {
+            mConnection = ImapConnectionPool.getInstance().acquire(mPoolKey, this);
+        }
         if (mConnection == null) {
             mConnection = new ImapConnection(this);
         }
@@ -39,6 +39,7 @@ public final class ImapConstants {
     public static final String BODY_BRACKET_HEADER = "BODY[HEADER";
     public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
     public static final String BYE = "BYE";
+    public static final String CHANGEDSINCE = "CHANGEDSINCE";
     public static final String CAPABILITY = "CAPABILITY";
     public static final String CHECK = "CHECK";
     public static final String CLOSE = "CLOSE";
@@ -46,6 +47,8 @@ public final class ImapConstants {
     public static final String COPYUID = "COPYUID";
     public static final String CREATE = "CREATE";
     public static final String DELETE = "DELETE";
+    public static final String DELETED = "DELETED";
+    public static final String ENABLE = "ENABLE";
     public static final String EXAMINE = "EXAMINE";
     public static final String EXISTS = "EXISTS";
     public static final String EXPUNGE = "EXPUNGE";
@@ -57,7 +60,10 @@ public final class ImapConstants {
     public static final String FLAG_SEEN = "\\SEEN";
     public static final String FLAGS = "FLAGS";
     public static final String FLAGS_SILENT = "FLAGS.SILENT";
+    public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
     public static final String ID = "ID";
+    public static final String IDLE = "IDLE";
+    public static final String IDLE_DONE = "DONE";
     public static final String INBOX = "INBOX";
     public static final String INTERNALDATE = "INTERNALDATE";
     public static final String LIST = "LIST";
@@ -66,6 +72,7 @@ public final class ImapConstants {
     public static final String LSUB = "LSUB";
     public static final String NAMESPACE = "NAMESPACE";
     public static final String NO = "NO";
+    public static final String NOMODSEQ = "NOMODSEQ";
     public static final String NOOP = "NOOP";
     public static final String OK = "OK";
     public static final String PARSE = "PARSE";
@@ -76,6 +83,7 @@ public final class ImapConstants {
     public static final String RENAME = "RENAME";
     public static final String RFC822_SIZE = "RFC822.SIZE";
     public static final String SEARCH = "SEARCH";
+    public static final String SEEN = "SEEN";
     public static final String SELECT = "SELECT";
     public static final String STARTTLS = "STARTTLS";
     public static final String STATUS = "STATUS";
@@ -93,6 +101,7 @@ public final class ImapConstants {
     public static final String UIDVALIDITY = "UIDVALIDITY";
     public static final String UNSEEN = "UNSEEN";
     public static final String UNSUBSCRIBE = "UNSUBSCRIBE";
+    public static final String VANISHED = "VANISHED";
     public static final String XOAUTH2 = "XOAUTH2";
     public static final String APPENDUID = "APPENDUID";
     public static final String NIL = "NIL";
@@ -136,6 +145,9 @@ public final class ImapConstants {
      */
     public static final String CAPABILITY_AUTH_DIGEST_MD5 = "AUTH=DIGEST-MD5";
     public static final String CAPABILITY_STARTTLS = "STARTTLS";
+    public static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    public static final String CAPABILITY_QRESYNC = "QRESYNC";
+    public static final String CAPABILITY_IDLE = "IDLE";
 
     /**
      * authentication
@@ -19,17 +19,25 @@ package com.android.phone.common.mail.store.imap;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.common.mail.FixedLengthInputStream;
 import com.android.phone.common.mail.MessagingException;
-import com.android.phone.common.mail.PeekableInputStream;
 import com.android.phone.vvm.omtp.VvmLog;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 
 /**
  * IMAP response parser.
+ *
+ * <p>The stream is read through a buffer owned by the parser, taken from a pool shared by all
+ * parsers and returned by {@link #release()}. Atoms, quoted strings and the text of status
+ * responses are located by scanning the buffer and converted to a string in one step, without
+ * going through a {@link StringBuilder} byte by byte. Literals are copied out of the buffer in
+ * blocks.
  */
 public class ImapResponseParser {
     private static final String TAG = "ImapResponseParser";
@@ -39,16 +47,65 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
-    /** Input stream */
-    private final PeekableInputStream mIn;
+    /**
+     * Size of the buffer the stream is read through.
+     */
+    @VisibleForTesting
+    static final int BUFFER_SIZE = 8 * 1024;
 
-    private final int mLiteralKeepInMemoryThreshold;
+    /**
+     * Buffers of released parsers. A device only has a few IMAP connections open at a time.
+     */
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<byte[]>();
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    /** The stream the responses are read from */
+    private final InputStream mSource;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /** Bytes read from {@link #mSource}, valid from {@link #mPosition} to {@link #mLimit}. */
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /**
+     * Holds the start of a token that does not end before the end of {@link #mBuffer}, until the
+     * rest of it is read.
+     */
+    private byte[] mToken = new byte[64];
+    private int mTokenLength;
+
+    /** Reads the remaining bytes of {@link #mBuffer} before reading from {@link #mSource}. */
+    private final InputStream mIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mPosition == mLimit && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPosition == mLimit) {
+                if (length >= mBuffer.length) {
+                    // Copying through the buffer would not save any read.
+                    return mSource.read(b, offset, length);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(length, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, offset, count);
+            mPosition += count;
+            return count;
+        }
+    };
+
+    private final int mLiteralKeepInMemoryThreshold;
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -78,8 +135,63 @@ public class ImapResponseParser {
      * Constructor for testing to override the literal size threshold.
      */
     /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold) {
-        mIn = new PeekableInputStream(in);
+        this(in, literalKeepInMemoryThreshold, obtainBuffer());
+    }
+
+    /**
+     * Constructor for testing to read through a buffer of a given size.
+     */
+    @VisibleForTesting
+    ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold, byte[] buffer) {
+        mSource = in;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
+        mBuffer = buffer;
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            byte[] buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Returns the buffer of this parser to the pool. Bytes read from the stream but not parsed yet
+     * are discarded, and the parser can not be used anymore.
+     */
+    public void release() {
+        destroyResponses();
+        byte[] buffer = mBuffer;
+        mBuffer = null;
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of {@link #mBuffer} with the next bytes of the stream.
+     *
+     * @return {@code false} if the end of the stream was reached.
+     */
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = mSource.read(mBuffer, 0, mBuffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            return false;
+        }
+        mPosition = 0;
+        mLimit = read;
+        return true;
     }
 
     private static IOException newEOSException() {
@@ -95,27 +207,57 @@ public class ImapResponseParser {
      * we shouldn't see EOF during parsing.
      */
     private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
+        if (mPosition == mLimit && !fill()) {
             throw newEOSException();
         }
-        return next;
+        return mBuffer[mPosition] & 0xff;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Read and return one byte from the stream.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
-            throw newEOSException();
-        }
+        final int next = peek();
+        mPosition++;
         return next;
     }
 
+    /**
+     * Appends the bytes of {@link #mBuffer} from {@link #mPosition} to {@code end} to {@link
+     * #mToken}, and consumes them.
+     */
+    private void appendToToken(int end) {
+        int length = end - mPosition;
+        if (mTokenLength + length > mToken.length) {
+            byte[] token = new byte[Math.max(mToken.length * 2, mTokenLength + length)];
+            System.arraycopy(mToken, 0, token, 0, mTokenLength);
+            mToken = token;
+        }
+        System.arraycopy(mBuffer, mPosition, mToken, mTokenLength, length);
+        mTokenLength += length;
+        mPosition = end;
+    }
+
+    /**
+     * Consumes the bytes of {@link #mBuffer} from {@link #mPosition} to {@code end} and returns
+     * them, preceded by {@link #mToken}, as a string with one char per byte.
+     */
+    private String takeToken(int end) {
+        String token;
+        if (mTokenLength == 0) {
+            token = new String(mBuffer, mPosition, end - mPosition, StandardCharsets.ISO_8859_1);
+            mPosition = end;
+        } else {
+            appendToToken(end);
+            token = new String(mToken, 0, mTokenLength, StandardCharsets.ISO_8859_1);
+            mTokenLength = 0;
+        }
+        return token;
+    }
+
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
      *
@@ -201,14 +343,19 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+        mTokenLength = 0;
         for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
+            if (mPosition == mLimit && !fill()) {
+                throw newEOSException();
+            }
+            for (int i = mPosition; i < mLimit; i++) {
+                if ((mBuffer[i] & 0xff) == end) {
+                    String result = takeToken(i);
+                    mPosition++; // Skip end.
+                    return result;
+                }
             }
+            appendToToken(mLimit);
         }
     }
 
@@ -340,44 +487,66 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mTokenLength = 0;
+        boolean inBrackets = false;
         for (;;) {
-            final int ch = peek();
-
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
-
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
+            if (mPosition == mLimit && !fill()) {
+                throw newEOSException();
+            }
+            for (int i = mPosition; i < mLimit; i++) {
+                final int ch = mBuffer[i] & 0xff;
+                if (inBrackets) {
+                    // Eat all until next ']'
+                    inBrackets = ch != ']';
+                } else if (ch == '[') {
+                    inBrackets = true;
+                } else if (isBareStringEnd(ch)) {
+                    if (mTokenLength == 0 && i == mPosition) {
+                        throw new MessagingException("Expected string, none found.");
+                    }
+                    // NIL will be always converted into the empty string.
+                    if (mTokenLength == 0 && isNil(i)) {
+                        mPosition = i;
+                        return ImapString.EMPTY;
+                    }
+                    String s = takeToken(i);
+                    if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                        return ImapString.EMPTY;
+                    }
+                    return new ImapSimpleString(s);
                 }
-                return new ImapSimpleString(s);
-            } else if (ch == '[') {
-                // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
-            } else {
-                mParseBareString.append((char) readByte());
             }
+            appendToToken(mLimit);
         }
     }
 
+    private static boolean isBareStringEnd(int ch) {
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        return ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                // ']' is not part of atom (it's in resp-specials)
+                ch == ']' ||
+                // docs claim that flags are \ atom but atom isn't supposed to
+                // contain
+                // * and some flags contain *
+                // ch == '%' || ch == '*' ||
+                ch == '%' ||
+                // TODO probably should not allow \ and should recognize
+                // it as a flag instead
+                // ch == '"' || ch == '\' ||
+                ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f;
+    }
+
+    /**
+     * Whether the bytes of {@link #mBuffer} from {@link #mPosition} to {@code end} are "NIL",
+     * ignoring case.
+     */
+    private boolean isNil(int end) {
+        return end - mPosition == 3
+                && (mBuffer[mPosition] | 0x20) == 'n'
+                && (mBuffer[mPosition + 1] | 0x20) == 'i'
+                && (mBuffer[mPosition + 2] | 0x20) == 'l';
+    }
+
     private void parseElements(ImapList list, char end)
             throws IOException, MessagingException {
         for (;;) {
@@ -88,6 +88,35 @@ public class ImapUtility {
         return list.toArray(stringList);
     }
 
+    /**
+     * Returns whether {@code value} is a member of the sequence set per RFC 3501, without
+     * expanding any ranges. "*" is not supported and never matches.
+     */
+    public static boolean sequenceSetContains(String set, long value) {
+        if (set == null) {
+            return false;
+        }
+        for (String item : set.split(",")) {
+            try {
+                int colonPos = item.indexOf(':');
+                if (colonPos == -1) {
+                    if (Long.parseLong(item) == value) {
+                        return true;
+                    }
+                } else {
+                    long first = Long.parseLong(item.substring(0, colonPos));
+                    long second = Long.parseLong(item.substring(colonPos + 1));
+                    if (Math.min(first, second) <= value && value <= Math.max(first, second)) {
+                        return true;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                LogUtils.d(TAG, "Invalid sequence set item", e);
+            }
+        }
+        return false;
+    }
+
     /**
      * Expand the given number range into a list of individual numbers. If the range is not valid,
      * an empty array is returned.
@@ -33,6 +33,7 @@ import com.android.phone.VoicemailStatus;
 import com.android.phone.vvm.omtp.protocol.VisualVoicemailProtocol;
 import com.android.phone.vvm.omtp.protocol.VisualVoicemailProtocolFactory;
 import com.android.phone.vvm.omtp.sms.StatusMessage;
+import com.android.phone.vvm.omtp.sync.VoicemailsQueryHelper;
 import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
 import java.util.Arrays;
 import java.util.Set;
@@ -47,6 +48,9 @@ import java.util.Set;
  * may clutter CarrierConfigManager too much.
  *
  * The current hidden configs are: {@link #getSslPort()} {@link #getDisabledCapabilities()}
+ * {@link #getImapFetchBatchSize()} {@link #getImapConnectionIdleTimeoutMillis()}
+ * {@link #isImapIdleEnabled()} {@link #getProviderBatchSize()}
+ * {@link #getPrefetchBatchSize()}
  */
 public class OmtpVvmCarrierConfigHelper {
 
@@ -89,6 +93,42 @@ public class OmtpVvmCarrierConfigHelper {
     static final String KEY_VVM_CLIENT_PREFIX_STRING =
             "vvm_client_prefix_string";
 
+    /**
+     * @see #getImapFetchBatchSize()
+     */
+    static final String KEY_VVM_IMAP_FETCH_BATCH_SIZE_INT =
+            "vvm_imap_fetch_batch_size_int";
+
+    private static final int DEFAULT_IMAP_FETCH_BATCH_SIZE = 50;
+
+    /**
+     * @see #getImapConnectionIdleTimeoutMillis()
+     */
+    static final String KEY_VVM_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS_INT =
+            "vvm_imap_connection_idle_timeout_millis_int";
+
+    private static final int DEFAULT_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * @see #getProviderBatchSize()
+     */
+    static final String KEY_VVM_PROVIDER_BATCH_SIZE_INT =
+            "vvm_provider_batch_size_int";
+
+    /**
+     * @see #getPrefetchBatchSize()
+     */
+    static final String KEY_VVM_PREFETCH_BATCH_SIZE_INT =
+            "vvm_prefetch_batch_size_int";
+
+    private static final int DEFAULT_PREFETCH_BATCH_SIZE = 10;
+
+    /**
+     * @see #isImapIdleEnabled()
+     */
+    static final String KEY_VVM_IMAP_IDLE_ENABLED_BOOL =
+            "vvm_imap_idle_enabled_bool";
+
     private final Context mContext;
     private final int mSubId;
     private final PersistableBundle mCarrierConfig;
@@ -253,6 +293,60 @@ public class OmtpVvmCarrierConfigHelper {
         return (int) getValue(KEY_VVM_SSL_PORT_NUMBER_INT, 0);
     }
 
+    /**
+     * Hidden config.
+     *
+     * @return The maximum number of UIDs to request in a single IMAP UID FETCH command when
+     * retrieving the structure of every message on the server. A non-positive value fetches all of
+     * them in one command.
+     */
+    public int getImapFetchBatchSize() {
+        return (int) getValue(KEY_VVM_IMAP_FETCH_BATCH_SIZE_INT, DEFAULT_IMAP_FETCH_BATCH_SIZE);
+    }
+
+    /**
+     * Hidden config.
+     *
+     * @return How long a logged in IMAP connection is kept open after a task is done with it, so
+     * following tasks can reuse it. 0 closes connections immediately.
+     */
+    public int getImapConnectionIdleTimeoutMillis() {
+        return (int) getValue(KEY_VVM_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS_INT,
+                DEFAULT_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Hidden config.
+     *
+     * @return The maximum number of voicemail provider operations a sync writes in a single
+     * applyBatch call. A non-positive value writes all of them in one call.
+     */
+    public int getProviderBatchSize() {
+        return (int) getValue(KEY_VVM_PROVIDER_BATCH_SIZE_INT,
+                VoicemailsQueryHelper.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Hidden config.
+     *
+     * @return The maximum number of voicemail payloads a sync prefetches with a single IMAP UID
+     * FETCH command. A non-positive value fetches all of them in one command.
+     */
+    public int getPrefetchBatchSize() {
+        return (int) getValue(KEY_VVM_PREFETCH_BATCH_SIZE_INT, DEFAULT_PREFETCH_BATCH_SIZE);
+    }
+
+    /**
+     * Hidden config.
+     *
+     * <p>If the server supports IMAP IDLE, keep a connection open while visual voicemail is active
+     * so new voicemails are synced as soon as the server reports them, without waiting for a SYNC
+     * SMS. This holds a network request for as long as the account is active.
+     */
+    public boolean isImapIdleEnabled() {
+        return (boolean) getValue(KEY_VVM_IMAP_IDLE_ENABLED_BOOL, false);
+    }
+
     /**
      * Hidden Config.
      *
@@ -71,7 +71,6 @@ public class VisualVoicemailPreferences {
             return this;
         }
 
-        @NeededForTesting
         public Editor putLong(String key, long value) {
             mEditor.putLong(getKey(key), value);
             return this;
@@ -106,7 +105,6 @@ public class VisualVoicemailPreferences {
         return getValue(key, defValue);
     }
 
-    @NeededForTesting
     public long getLong(String key, long defValue) {
         return getValue(key, defValue);
     }
@@ -24,6 +24,7 @@ import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import com.android.phone.R;
+import com.android.phone.common.mail.MessagingException;
 import com.android.phone.vvm.omtp.VvmLog;
 import com.android.phone.vvm.omtp.imap.VoicemailPayload;
 import java.io.IOException;
@@ -55,8 +56,9 @@ public class VoicemailFetchedCallback {
      * of the voicemail to "1".
      *
      * @param voicemailPayload The object containing the content data for the voicemail
+     * @return the number of bytes of content written.
      */
-    public void setVoicemailContent(@Nullable VoicemailPayload voicemailPayload) {
+    public long setVoicemailContent(@Nullable VoicemailPayload voicemailPayload) {
         if (voicemailPayload == null) {
             VvmLog.i(TAG, "Payload not found, message has unsupported format");
             ContentValues values = new ContentValues();
@@ -64,21 +66,23 @@ public class VoicemailFetchedCallback {
                 mContext.getString(R.string.vvm_unsupported_message_format,
                     TelecomManager.from(mContext).getVoiceMailNumber(mPhoneAccountHandle)));
             updateVoicemail(values);
-            return;
+            return 0;
         }
 
         VvmLog.d(TAG, String.format("Writing new voicemail content: %s", mUri));
         OutputStream outputStream = null;
+        long written;
 
         try {
             outputStream = mContentResolver.openOutputStream(mUri);
-            byte[] inputBytes = voicemailPayload.getBytes();
-            if (inputBytes != null) {
-                outputStream.write(inputBytes);
-            }
+            written = voicemailPayload.writeTo(outputStream);
+            VvmLog.d(TAG, String.format("Wrote %d bytes of voicemail content", written));
         } catch (IOException e) {
             VvmLog.w(TAG, String.format("File not found for %s", mUri));
-            return;
+            return 0;
+        } catch (MessagingException e) {
+            VvmLog.w(TAG, String.format("Unable to read voicemail content for %s", mUri));
+            return 0;
         } finally {
             IoUtils.closeQuietly(outputStream);
         }
@@ -88,6 +92,7 @@ public class VoicemailFetchedCallback {
         values.put(Voicemails.MIME_TYPE, voicemailPayload.getMimeType());
         values.put(Voicemails.HAS_CONTENT, true);
         updateVoicemail(values);
+        return written;
     }
 
     private void updateVoicemail(ContentValues values) {
@@ -15,14 +15,18 @@
  */
 package com.android.phone.vvm.omtp.imap;
 
+import android.annotation.Nullable;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import android.util.Base64;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.PhoneUtils;
 import com.android.phone.VoicemailStatus;
 import com.android.phone.common.mail.Address;
@@ -40,6 +44,7 @@ import com.android.phone.common.mail.store.ImapFolder;
 import com.android.phone.common.mail.store.ImapStore;
 import com.android.phone.common.mail.store.imap.ImapConstants;
 import com.android.phone.common.mail.store.imap.ImapResponse;
+import com.android.phone.common.mail.store.imap.ImapUtility;
 import com.android.phone.common.mail.utils.LogUtils;
 import com.android.phone.vvm.omtp.OmtpConstants;
 import com.android.phone.vvm.omtp.OmtpConstants.ChangePinResult;
@@ -55,8 +60,14 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import libcore.io.IoUtils;
 
 /**
@@ -80,6 +91,15 @@ public class ImapHelper implements Closeable {
 
     private int mQuotaOccupied;
     private int mQuotaTotal;
+    /**
+     * Whether the quota was already fetched after the last change to the mailbox, so {@link
+     * #updateQuota()} does not need to fetch it again.
+     */
+    private boolean mQuotaUpToDate;
+
+    private MailboxState mMailboxState = MailboxState.UNKNOWN;
+
+    private volatile ImapFolder mIdleFolder;
 
     private final OmtpVvmCarrierConfigHelper mConfig;
 
@@ -138,6 +158,24 @@ public class ImapHelper implements Closeable {
                 .getInt(PREF_KEY_QUOTA_TOTAL, VoicemailContract.Status.QUOTA_UNAVAILABLE);
     }
 
+    @VisibleForTesting
+    public ImapHelper(Context context, OmtpVvmCarrierConfigHelper config,
+            PhoneAccountHandle phoneAccount, ImapStore imapStore, VoicemailStatus.Editor status) {
+        mContext = context;
+        mPhoneAccount = phoneAccount;
+        mNetwork = null;
+        mStatus = status;
+        mConfig = config;
+        mPrefs = new VisualVoicemailPreferences(context, phoneAccount);
+        mImapStore = imapStore;
+        TempDirectory.setTempDirectory(context);
+
+        mQuotaOccupied = mPrefs
+                .getInt(PREF_KEY_QUOTA_OCCUPIED, VoicemailContract.Status.QUOTA_UNAVAILABLE);
+        mQuotaTotal = mPrefs
+                .getInt(PREF_KEY_QUOTA_TOTAL, VoicemailContract.Status.QUOTA_UNAVAILABLE);
+    }
+
     @Override
     public void close() {
         mImapStore.closeConnection();
@@ -161,6 +199,13 @@ public class ImapHelper implements Closeable {
         return mImapStore.getConnection();
     }
 
+    /**
+     * @return the state of the voicemail folder when it was last opened by this helper.
+     */
+    public MailboxState getMailboxState() {
+        return mMailboxState;
+    }
+
     /**
      * The caller thread will block until the method returns.
      */
@@ -175,6 +220,43 @@ public class ImapHelper implements Closeable {
         return setFlags(voicemails, Flag.DELETED);
     }
 
+    /**
+     * Marks {@code readVoicemails} as read and {@code deletedVoicemails} as deleted on the server,
+     * expunges the mailbox and updates the quota. The commands are pipelined so all of it takes a
+     * single round trip. The caller thread will block until the method returns.
+     *
+     * @return the flags that were set on the server: {@link Flag#SEEN} if {@code readVoicemails}
+     * were marked as read and {@link Flag#DELETED} if {@code deletedVoicemails} were marked as
+     * deleted. A flag is absent if its list is empty.
+     */
+    public Set<String> markMessages(List<Voicemail> readVoicemails,
+            List<Voicemail> deletedVoicemails) {
+        if (readVoicemails.isEmpty() && deletedVoicemails.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Map<String, Message[]> messagesByFlag = new LinkedHashMap<>();
+        messagesByFlag.put(Flag.DELETED, convertToImapMessages(deletedVoicemails));
+        messagesByFlag.put(Flag.SEEN, convertToImapMessages(readVoicemails));
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                return Collections.emptySet();
+            }
+            ImapFolder.SetFlagsResult result = mFolder.setFlagsAndExpunge(messagesByFlag);
+            if (result.quota != null) {
+                setQuota(result.quota);
+                mQuotaUpToDate = true;
+            }
+            return result.flagsSet;
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging exception");
+            return Collections.emptySet();
+        } finally {
+            // Already expunged.
+            closeImapFolder(false);
+        }
+    }
+
     public void handleEvent(OmtpEvents event) {
         mConfig.handleEvent(mStatus, event);
     }
@@ -193,6 +275,7 @@ public class ImapHelper implements Closeable {
         try {
             mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
             if (mFolder != null) {
+                mQuotaUpToDate = false;
                 mFolder.setFlags(convertToImapMessages(voicemails), flags, true);
                 return true;
             }
@@ -223,12 +306,11 @@ public class ImapHelper implements Closeable {
             // This method retrieves lightweight messages containing only the uid of the message.
             messages = mFolder.getMessages(null);
 
-            for (Message message : messages) {
-                // Get the voicemail details (message structure).
-                MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
-                if (messageStructureWrapper != null) {
-                    result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
-                }
+            // Get the voicemail details (message structure) of all messages in as few round trips
+            // as possible.
+            for (MessageStructureWrapper messageStructureWrapper
+                    : fetchMessageStructures(messages)) {
+                result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
             }
             return result;
         } catch (MessagingException e) {
@@ -239,6 +321,77 @@ public class ImapHelper implements Closeable {
         }
     }
 
+    /**
+     * Fetch the changes to the voicemail folder since {@code previous}. Only the structure of
+     * messages received after {@code previous} is fetched. For older messages only the read and
+     * deleted state is retrieved, and only for messages that changed if the server supports
+     * CONDSTORE or QRESYNC.
+     *
+     * @return The changes, or {@code null} if the operation failed. If {@code previous} cannot be
+     * used, {@link VoicemailChanges#isFullSyncRequired()} will be {@code true}.
+     */
+    @Nullable
+    public VoicemailChanges fetchVoicemailChanges(MailboxState previous) {
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                // This means we were unable to successfully open the folder.
+                return null;
+            }
+            MailboxState current = mMailboxState;
+            if (!previous.canSyncIncrementallyTo(current)) {
+                VvmLog.i(TAG, "Cannot sync incrementally from " + previous + " to " + current);
+                return new VoicemailChanges(current, true, previous.uidNext);
+            }
+            VvmLog.v(TAG, "Syncing incrementally from " + previous + " to " + current);
+            final VoicemailChanges changes = new VoicemailChanges(current, false,
+                    previous.uidNext);
+
+            if (current.uidNext > previous.uidNext) {
+                List<String> newUids = new ArrayList<>();
+                // "n:*" always includes the last message even if its UID is below n.
+                for (String uid : mFolder.getUndeletedUids(previous.uidNext + ":*", false)) {
+                    if (changes.isNew(uid)) {
+                        newUids.add(uid);
+                    }
+                }
+                for (MessageStructureWrapper messageStructureWrapper : fetchMessageStructures(
+                        mFolder.getMessagesInternal(newUids.toArray(new String[0])))) {
+                    changes.newVoicemails.add(
+                            getVoicemailFromMessageStructure(messageStructureWrapper));
+                }
+            }
+
+            if (previous.uidNext > 1) {
+                String knownRange = "1:" + (previous.uidNext - 1);
+                if (previous.hasModSeq(current)) {
+                    if (current.highestModSeq != previous.highestModSeq) {
+                        changes.mVanishedUidSets.addAll(mFolder.fetchChangedFlags(knownRange,
+                                previous.highestModSeq, new ImapFolder.MessageRetrievalListener() {
+                                    @Override
+                                    public void messageRetrieved(Message message) {
+                                        changes.addFlags(message);
+                                    }
+                                }));
+                    }
+                    if (!mFolder.isQresyncEnabled()) {
+                        // Expunged messages are only reported with QRESYNC.
+                        changes.setExistingUids(mFolder.getUndeletedUids(knownRange, false));
+                    }
+                } else {
+                    changes.setExistingUids(mFolder.getUndeletedUids(knownRange, false));
+                    changes.setSeenUids(mFolder.getUndeletedUids(knownRange, true));
+                }
+            }
+            return changes;
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging Exception");
+            return null;
+        } finally {
+            closeImapFolder();
+        }
+    }
+
     /**
      * Extract voicemail details from the message structure. Also fetch transcription if a
      * transcription exists.
@@ -313,6 +466,27 @@ public class ImapHelper implements Closeable {
         return listener.getMessageStructure();
     }
 
+    /**
+     * Fetches the structure of all the given messages, requesting up to
+     * {@link OmtpVvmCarrierConfigHelper#getImapFetchBatchSize()} messages per IMAP command.
+     * Messages that are not valid voicemails are omitted from the result.
+     *
+     * @throws MessagingException if fetching the structure of the messages fails
+     */
+    private List<MessageStructureWrapper> fetchMessageStructures(Message[] messages)
+            throws MessagingException {
+        LogUtils.d(TAG, "Fetching message structure for " + messages.length + " messages");
+
+        MessageStructureFetchedListener listener = new MessageStructureFetchedListener();
+
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.addAll(Arrays.asList(FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE,
+                FetchProfile.Item.STRUCTURE));
+
+        mFolder.fetch(messages, fetchProfile, mConfig.getImapFetchBatchSize(), listener);
+        return listener.getMessageStructures();
+    }
+
     public boolean fetchVoicemailPayload(VoicemailFetchedCallback callback, final String uid) {
         try {
             mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
@@ -334,6 +508,46 @@ public class ImapHelper implements Closeable {
         return false;
     }
 
+    /**
+     * Fetches the payloads of several voicemails with up to {@link
+     * OmtpVvmCarrierConfigHelper#getPrefetchBatchSize()} of them in a single UID FETCH command,
+     * instead of opening the folder and searching for each message. Each payload is written
+     * through its callback as soon as it is parsed, and recorded with {@link
+     * VoicemailStatus#recordPrefetch}. Commands are sent in the iteration order of {@code
+     * callbacks}, but within a command the payloads are written in the order the server returns
+     * them. Voicemails no longer on the server are skipped.
+     *
+     * @param callbacks the callback of each voicemail, by UID.
+     * @return {@code false} if the fetch failed. Payloads written before the failure are kept.
+     */
+    public boolean fetchVoicemailPayloads(Map<String, VoicemailFetchedCallback> callbacks) {
+        if (callbacks.isEmpty()) {
+            return true;
+        }
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                // This means we were unable to successfully open the folder.
+                return false;
+            }
+            Message[] messages = mFolder.getMessagesInternal(
+                    callbacks.keySet().toArray(new String[callbacks.size()]));
+            LogUtils.d(TAG, "Fetching message body for " + messages.length + " messages");
+
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(FetchProfile.Item.BODY);
+
+            mFolder.fetch(messages, fetchProfile, mConfig.getPrefetchBatchSize(),
+                    new MessageBodiesFetchedListener(callbacks));
+            return true;
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging Exception");
+            return false;
+        } finally {
+            closeImapFolder();
+        }
+    }
+
     /**
      * Fetches the body of the given message and returns the parsed voicemail payload.
      *
@@ -388,6 +602,39 @@ public class ImapHelper implements Closeable {
     }
 
 
+    /**
+     * Waits with IMAP IDLE until the server reports a change in the voicemail folder, or
+     * {@code timeoutMillis} passes. The caller thread will block until the method returns.
+     *
+     * @param handler used to end the IDLE once the timeout expires.
+     * @return {@code true} if the folder changed, {@code false} if the timeout expired or {@link
+     * #stopIdle()} was called.
+     * @throws MessagingException if the server does not support IDLE or the connection failed.
+     */
+    public boolean idle(long timeoutMillis, Handler handler) throws MessagingException {
+        mFolder = openImapFolder(ImapFolder.MODE_READ_ONLY);
+        if (mFolder == null) {
+            throw new MessagingException("Unable to open folder");
+        }
+        try {
+            mIdleFolder = mFolder;
+            return mFolder.idle(timeoutMillis, handler);
+        } finally {
+            mIdleFolder = null;
+            mFolder.close(false);
+        }
+    }
+
+    /**
+     * Ends an ongoing {@link #idle(long, Handler)}. Can be called from any thread.
+     */
+    public void stopIdle() {
+        ImapFolder folder = mIdleFolder;
+        if (folder != null) {
+            folder.stopIdle();
+        }
+    }
+
     @ChangePinResult
     public int changePin(String oldPin, String newPin)
             throws MessagingException {
@@ -466,6 +713,10 @@ public class ImapHelper implements Closeable {
     }
 
     public void updateQuota() {
+        if (mQuotaUpToDate) {
+            VvmLog.v(TAG, "Quota already updated");
+            return;
+        }
         try {
             mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
             if (mFolder == null) {
@@ -517,19 +768,135 @@ public class ImapHelper implements Closeable {
         }
     }
 
+    /**
+     * Changes in the voicemail folder since a previous {@link MailboxState}, returned by {@link
+     * #fetchVoicemailChanges(MailboxState)}.
+     */
+    public static class VoicemailChanges {
+
+        /**
+         * The state of the folder these changes bring the client to.
+         */
+        public final MailboxState state;
+
+        /**
+         * Voicemails received since the previous state.
+         */
+        public final List<Voicemail> newVoicemails = new ArrayList<>();
+
+        private final boolean mFullSyncRequired;
+        private final long mPreviousUidNext;
+        private final Map<String, Boolean> mReadStates = new HashMap<>();
+        private final Set<String> mDeletedUids = new HashSet<>();
+        private final List<String> mVanishedUidSets = new ArrayList<>();
+        @Nullable
+        private Set<String> mExistingUids;
+
+        private VoicemailChanges(MailboxState state, boolean fullSyncRequired,
+                long previousUidNext) {
+            this.state = state;
+            mFullSyncRequired = fullSyncRequired;
+            mPreviousUidNext = previousUidNext;
+        }
+
+        /**
+         * @return {@code true} if the previous state is not valid anymore (for example the server
+         * reset UIDVALIDITY) and the whole folder must be fetched.
+         */
+        public boolean isFullSyncRequired() {
+            return mFullSyncRequired;
+        }
+
+        /**
+         * @return whether a previously synced message has been deleted or expunged on the server.
+         */
+        public boolean isDeleted(String uid) {
+            if (isNew(uid)) {
+                return false;
+            }
+            if (mDeletedUids.contains(uid)) {
+                return true;
+            }
+            if (mExistingUids != null && !mExistingUids.contains(uid)) {
+                return true;
+            }
+            long value = parseUid(uid);
+            for (String set : mVanishedUidSets) {
+                if (ImapUtility.sequenceSetContains(set, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the read state of a previously synced message on the server, or {@code null} if
+         * it has not changed since the previous state.
+         */
+        @Nullable
+        public Boolean getReadState(String uid) {
+            return mReadStates.get(uid);
+        }
+
+        private boolean isNew(String uid) {
+            return parseUid(uid) >= mPreviousUidNext;
+        }
+
+        private void addFlags(Message message) {
+            List<String> flags = Arrays.asList(message.getFlags());
+            if (flags.contains(Flag.DELETED)) {
+                mDeletedUids.add(message.getUid());
+            } else {
+                mReadStates.put(message.getUid(), flags.contains(Flag.SEEN));
+            }
+        }
+
+        private void setExistingUids(String[] uids) {
+            mExistingUids = new HashSet<>(Arrays.asList(uids));
+        }
+
+        private void setSeenUids(String[] seenUids) {
+            Set<String> seen = new HashSet<>(Arrays.asList(seenUids));
+            for (String uid : mExistingUids) {
+                mReadStates.put(uid, seen.contains(uid));
+            }
+        }
+
+        private static long parseUid(String uid) {
+            try {
+                return Long.parseLong(uid);
+            } catch (NumberFormatException e) {
+                LogUtils.w(TAG, "Invalid UID " + uid);
+                return ImapFolder.UNKNOWN;
+            }
+        }
+    }
+
     /**
      * Listener for the message structure being fetched.
      */
     private final class MessageStructureFetchedListener
             implements ImapFolder.MessageRetrievalListener {
 
-        private MessageStructureWrapper mMessageStructure;
+        private final List<MessageStructureWrapper> mMessageStructures = new ArrayList<>();
 
         public MessageStructureFetchedListener() {
         }
 
+        /**
+         * Returns the structure of the first valid voicemail retrieved, or {@code null} if there
+         * is none.
+         */
         public MessageStructureWrapper getMessageStructure() {
-            return mMessageStructure;
+            return mMessageStructures.isEmpty() ? null : mMessageStructures.get(0);
+        }
+
+        /**
+         * Returns the structures of all valid voicemails retrieved, in the order the server
+         * returned them.
+         */
+        public List<MessageStructureWrapper> getMessageStructures() {
+            return mMessageStructures;
         }
 
         @Override
@@ -537,11 +904,12 @@ public class ImapHelper implements Closeable {
             LogUtils.d(TAG, "Fetched message structure for " + message.getUid());
             LogUtils.d(TAG, "Message retrieved: " + message);
             try {
-                mMessageStructure = getMessageOrNull(message);
-                if (mMessageStructure == null) {
+                MessageStructureWrapper messageStructure = getMessageOrNull(message);
+                if (messageStructure == null) {
                     LogUtils.d(TAG, "This voicemail does not have an attachment...");
                     return;
                 }
+                mMessageStructures.add(messageStructure);
             } catch (MessagingException e) {
                 LogUtils.e(TAG, e, "Messaging Exception");
                 closeImapFolder();
@@ -614,24 +982,62 @@ public class ImapHelper implements Closeable {
                 LogUtils.e(TAG, "IO Exception:", e);
             }
         }
+    }
 
-        private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
-                throws MessagingException, IOException {
-            Multipart multipart = (Multipart) message.getBody();
-            List<String> mimeTypes = new ArrayList<>();
-            for (int i = 0; i < multipart.getCount(); ++i) {
-                BodyPart bodyPart = multipart.getBodyPart(i);
-                String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
-                mimeTypes.add(bodyPartMimeType);
-                if (bodyPartMimeType.startsWith("audio/")) {
-                    byte[] bytes = getDataFromBody(bodyPart.getBody());
-                    LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes.length));
-                    return new VoicemailPayload(bodyPartMimeType, bytes);
-                }
+    /**
+     * Listener for the bodies of several messages being fetched, which writes each payload as soon
+     * as it is retrieved.
+     */
+    private final class MessageBodiesFetchedListener implements
+            ImapFolder.MessageRetrievalListener {
+
+        private final Map<String, VoicemailFetchedCallback> mCallbacks;
+        private long mLastRetrievedMillis = SystemClock.elapsedRealtime();
+
+        MessageBodiesFetchedListener(Map<String, VoicemailFetchedCallback> callbacks) {
+            mCallbacks = callbacks;
+        }
+
+        @Override
+        public void messageRetrieved(Message message) {
+            LogUtils.d(TAG, "Fetched message body for " + message.getUid());
+            VoicemailFetchedCallback callback = mCallbacks.get(message.getUid());
+            if (callback == null) {
+                return;
+            }
+            // Time since the previous message was written, which is how long this one took to be
+            // received and parsed.
+            long latencyMillis = SystemClock.elapsedRealtime() - mLastRetrievedMillis;
+            VoicemailPayload voicemailPayload = null;
+            try {
+                voicemailPayload = getVoicemailPayloadFromMessage(message);
+            } catch (MessagingException e) {
+                LogUtils.e(TAG, "Messaging Exception:", e);
+            } catch (IOException e) {
+                LogUtils.e(TAG, "IO Exception:", e);
+            }
+            long bytes = callback.setVoicemailContent(voicemailPayload);
+            VoicemailStatus.recordPrefetch(mPhoneAccount, latencyMillis, bytes);
+            mLastRetrievedMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static VoicemailPayload getVoicemailPayloadFromMessage(Message message)
+            throws MessagingException, IOException {
+        Multipart multipart = (Multipart) message.getBody();
+        List<String> mimeTypes = new ArrayList<>();
+        for (int i = 0; i < multipart.getCount(); ++i) {
+            BodyPart bodyPart = multipart.getBodyPart(i);
+            String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
+            mimeTypes.add(bodyPartMimeType);
+            if (bodyPartMimeType.startsWith("audio/")) {
+                // The body has already been decoded into a temp file while parsing, it is
+                // streamed to the provider from there.
+                return new VoicemailPayload(bodyPartMimeType, bodyPart.getBody());
             }
-            LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
-            return null;
         }
+        LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
+        return null;
     }
 
     /**
@@ -669,6 +1075,7 @@ public class ImapHelper implements Closeable {
             }
             ImapFolder folder = new ImapFolder(mImapStore, ImapConstants.INBOX);
             folder.open(modeReadWrite);
+            mMailboxState = MailboxState.fromFolder(folder);
             return folder;
         } catch (MessagingException e) {
             LogUtils.e(TAG, e, "Messaging Exception");
@@ -686,8 +1093,12 @@ public class ImapHelper implements Closeable {
     }
 
     private void closeImapFolder() {
+        closeImapFolder(true);
+    }
+
+    private void closeImapFolder(boolean expunge) {
         if (mFolder != null) {
-            mFolder.close(true);
+            mFolder.close(expunge);
         }
     }
 
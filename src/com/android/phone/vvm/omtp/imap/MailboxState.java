@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.vvm.omtp.imap;
+
+import com.android.phone.common.mail.store.ImapFolder;
+import com.android.phone.vvm.omtp.VisualVoicemailPreferences;
+
+/**
+ * The position of the last successful sync in the server's voicemail folder, as reported by SELECT:
+ * UIDVALIDITY and UIDNEXT (RFC 3501), and HIGHESTMODSEQ if the server supports CONDSTORE
+ * (RFC 7162). Persisted per phone account so the next sync only has to fetch what changed.
+ */
+public class MailboxState {
+
+    private static final String PREF_KEY_UID_VALIDITY = "imap_uid_validity";
+    private static final String PREF_KEY_UID_NEXT = "imap_uid_next";
+    private static final String PREF_KEY_HIGHEST_MOD_SEQ = "imap_highest_mod_seq";
+
+    public static final MailboxState UNKNOWN =
+            new MailboxState(ImapFolder.UNKNOWN, ImapFolder.UNKNOWN, ImapFolder.UNKNOWN);
+
+    public final long uidValidity;
+    public final long uidNext;
+    public final long highestModSeq;
+
+    public MailboxState(long uidValidity, long uidNext, long highestModSeq) {
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+    }
+
+    static MailboxState fromFolder(ImapFolder folder) {
+        return new MailboxState(folder.getUidValidity(), folder.getUidNext(),
+                folder.getHighestModSeq());
+    }
+
+    public static MailboxState load(VisualVoicemailPreferences prefs) {
+        return new MailboxState(
+                prefs.getLong(PREF_KEY_UID_VALIDITY, ImapFolder.UNKNOWN),
+                prefs.getLong(PREF_KEY_UID_NEXT, ImapFolder.UNKNOWN),
+                prefs.getLong(PREF_KEY_HIGHEST_MOD_SEQ, ImapFolder.UNKNOWN));
+    }
+
+    public void save(VisualVoicemailPreferences prefs) {
+        prefs.edit()
+                .putLong(PREF_KEY_UID_VALIDITY, uidValidity)
+                .putLong(PREF_KEY_UID_NEXT, uidNext)
+                .putLong(PREF_KEY_HIGHEST_MOD_SEQ, highestModSeq)
+                .apply();
+    }
+
+    /**
+     * @return whether the UIDs recorded in this state are still valid in {@code current}, so only
+     * the changes since this state need to be fetched. UIDNEXT and HIGHESTMODSEQ never decrease
+     * while UIDVALIDITY is unchanged; if either did, the server lost its state and changes since
+     * this state can't be trusted.
+     */
+    public boolean canSyncIncrementallyTo(MailboxState current) {
+        return uidValidity != ImapFolder.UNKNOWN
+                && uidNext != ImapFolder.UNKNOWN
+                && current.uidNext != ImapFolder.UNKNOWN
+                && uidValidity == current.uidValidity
+                && uidNext <= current.uidNext
+                && !(hasModSeq(current) && highestModSeq > current.highestModSeq);
+    }
+
+    /**
+     * @return whether CONDSTORE mod-sequences can be used to find messages changed since this
+     * state.
+     */
+    public boolean hasModSeq(MailboxState current) {
+        return highestModSeq != ImapFolder.UNKNOWN && current.highestModSeq != ImapFolder.UNKNOWN;
+    }
+
+    @Override
+    public String toString() {
+        return "MailboxState [uidValidity: " + uidValidity + ", uidNext: " + uidNext
+                + ", highestModSeq: " + highestModSeq + "]";
+    }
+}
@@ -16,23 +16,58 @@
 
 package com.android.phone.vvm.omtp.imap;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.common.mail.Body;
+import com.android.phone.common.mail.MessagingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import libcore.io.IoUtils;
+
 /**
- * The payload for a voicemail, usually audio data.
+ * The payload for a voicemail, usually audio data. The data is kept in the {@link Body} it was
+ * fetched into (a temp file for IMAP) and only streamed out by {@link #writeTo(OutputStream)}, so
+ * it never has to fit in memory.
  */
 public class VoicemailPayload {
+
+    @VisibleForTesting
+    static final int COPY_BUFFER_SIZE = 16 * 1024;
+
     private final String mMimeType;
-    private final byte[] mBytes;
+    private final Body mBody;
 
-    public VoicemailPayload(String mimeType, byte[] bytes) {
+    public VoicemailPayload(String mimeType, Body body) {
         mMimeType = mimeType;
-        mBytes = bytes;
-    }
-
-    public byte[] getBytes() {
-        return mBytes;
+        mBody = body;
     }
 
     public String getMimeType() {
         return mMimeType;
     }
-}
\ No newline at end of file
+
+    /**
+     * Copies the decoded payload to {@code out} through a fixed size buffer. The payload can only
+     * be written once, a temp file backing it is deleted afterwards.
+     *
+     * @return the number of bytes written.
+     */
+    public long writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = mBody != null ? mBody.getInputStream() : null;
+        if (in == null) {
+            return 0;
+        }
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long count = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.scheduling;
+
+import android.annotation.WorkerThread;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.vvm.omtp.VvmLog;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the tasks queued in {@link TaskSchedulerService}, so they can be queued
+ * again after the phone process is killed. Each queued task is recorded with the intent that
+ * created it, which carries the task class, its {@link Task.TaskId} fields and policy state such
+ * as the retry count, and the wall clock time it should run at. A record is appended again when
+ * the task leaves the queue. A task also gets a record each time it starts running, and when the
+ * time it should run at changes.
+ *
+ * <p>A task that was started {@link #MAX_ATTEMPTS} times without leaving the queue is dropped by
+ * {@link #replay()}: it is likely the one that crashed the process, and would crash it again on
+ * every restart. Only a replayed task can be started again after taking the process down, so only
+ * the start records of replayed tasks need to be written before they run, see {@link #start}.
+ *
+ * <p>Records are buffered in memory and written by {@link #flush()} on the I/O handler, at most
+ * once every {@link #FLUSH_DELAY_MILLIS}, with one fsync per write. When most of the file is
+ * removed tasks it is rewritten with only the pending ones.
+ *
+ * <p>Intents are stored as {@link Parcel} data which is only readable by the same build, the
+ * journal is discarded when the build fingerprint changes.
+ */
+class TaskJournal {
+
+    private static final String TAG = "VvmTaskJournal";
+
+    // "VVMJ"
+    private static final int MAGIC = 0x56564d4a;
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_START = 3;
+    private static final byte RECORD_RESCHEDULE = 4;
+
+    /** Number of times a task can be started without completing before it is not replayed. */
+    @VisibleForTesting
+    static final int MAX_ATTEMPTS = 3;
+
+    @VisibleForTesting
+    static final long FLUSH_DELAY_MILLIS = 1000;
+    /**
+     * The file is compacted once it has at least this many records, and more than twice as many as
+     * there are pending tasks.
+     */
+    @VisibleForTesting
+    static final int COMPACT_MIN_RECORDS = 64;
+
+    /**
+     * A task read back by {@link #replay()}.
+     */
+    static class Entry {
+
+        final long id;
+        final Intent intent;
+        /** When the task should run, in {@link System#currentTimeMillis()} time. */
+        final long readyTimeMillis;
+        /** Number of times the task was started without completing. */
+        final int attempts;
+
+        Entry(long id, Intent intent, long readyTimeMillis, int attempts) {
+            this.id = id;
+            this.intent = intent;
+            this.readyTimeMillis = readyTimeMillis;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * The state of a pending task, written as one add record when the file is compacted.
+     */
+    private static class PendingTask {
+
+        final byte[] intent;
+        long readyTimeMillis;
+        int attempts;
+        /** Whether the task was read back by {@link #replay()}, it's not written. */
+        boolean replayed;
+
+        PendingTask(byte[] intent, long readyTimeMillis, int attempts) {
+            this.intent = intent;
+            this.readyTimeMillis = readyTimeMillis;
+            this.attempts = attempts;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final String mFingerprint;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by this.
+    /** The pending tasks, by id, for compaction. */
+    private final Map<Long, PendingTask> mPendingTasks = new LinkedHashMap<>();
+    /** Records not written to the file yet. */
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private int mBufferedRecords;
+    private int mRecordsInFile;
+    private boolean mReplayed;
+    private boolean mCompactionRequested;
+    private boolean mFlushScheduled;
+    private long mNextId;
+
+    /** Held while writing, so that {@link #flush()} can be called from any thread. */
+    private final Object mWriteLock = new Object();
+
+    TaskJournal(File file, Handler ioHandler) {
+        this(file, ioHandler, Build.FINGERPRINT);
+    }
+
+    @VisibleForTesting
+    TaskJournal(File file, Handler ioHandler, String fingerprint) {
+        mFile = new AtomicFile(file);
+        mHandler = ioHandler;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Reads the tasks that were still pending when the journal was last written, and makes them the
+     * pending tasks of this journal. Must be called before anything is added. Only the first call
+     * reads the file, later calls return an empty list since the tasks are already queued.
+     */
+    synchronized List<Entry> replay() {
+        List<Entry> entries = new ArrayList<>();
+        if (mReplayed) {
+            return entries;
+        }
+        mReplayed = true;
+        byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return entries;
+        } catch (IOException e) {
+            VvmLog.e(TAG, "Unable to read journal", e);
+            return entries;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int records = 0;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !mFingerprint.equals(in.readUTF())) {
+                VvmLog.i(TAG, "Discarding journal of another build or format");
+                scheduleCompaction();
+                return entries;
+            }
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                if (type == RECORD_ADD) {
+                    long readyTimeMillis = in.readLong();
+                    int attempts = in.readInt();
+                    byte[] intent = new byte[in.readInt()];
+                    in.readFully(intent);
+                    mPendingTasks.put(id, new PendingTask(intent, readyTimeMillis, attempts));
+                } else if (type == RECORD_REMOVE) {
+                    mPendingTasks.remove(id);
+                } else if (type == RECORD_START) {
+                    PendingTask task = mPendingTasks.get(id);
+                    if (task != null) {
+                        task.attempts++;
+                    }
+                } else if (type == RECORD_RESCHEDULE) {
+                    long readyTimeMillis = in.readLong();
+                    PendingTask task = mPendingTasks.get(id);
+                    if (task != null) {
+                        task.readyTimeMillis = readyTimeMillis;
+                    }
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+                mNextId = Math.max(mNextId, id + 1);
+                records++;
+            }
+        } catch (EOFException e) {
+            // End of the journal, or a record torn by the process dying while writing it.
+        } catch (IOException e) {
+            VvmLog.e(TAG, "Corrupted journal after " + records + " records", e);
+        }
+
+        for (Iterator<Map.Entry<Long, PendingTask>> it = mPendingTasks.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<Long, PendingTask> pending = it.next();
+            PendingTask task = pending.getValue();
+            Entry entry = parseIntent(pending.getKey(), task);
+            if (entry == null) {
+                it.remove();
+            } else if (task.attempts >= MAX_ATTEMPTS) {
+                VvmLog.e(TAG, "Dropping task " + entry.intent + " started " + task.attempts
+                        + " times without completing");
+                it.remove();
+            } else {
+                task.replayed = true;
+                entries.add(entry);
+            }
+        }
+        // Start over with a file that only has the pending tasks, which also drops a torn record.
+        scheduleCompaction();
+        return entries;
+    }
+
+    /**
+     * Records that the task created by {@code intent} was queued.
+     *
+     * @param readyTimeMillis when the task should run, in {@link System#currentTimeMillis()} time.
+     * @return the id to pass to {@link #remove(long)}.
+     */
+    synchronized long add(Intent intent, long readyTimeMillis) {
+        long id = mNextId++;
+        PendingTask task = new PendingTask(marshall(intent), readyTimeMillis, 0);
+        mPendingTasks.put(id, task);
+        byte[] record = createAddRecord(id, task);
+        mBuffer.write(record, 0, record.length);
+        mBufferedRecords++;
+        scheduleFlush();
+        return id;
+    }
+
+    /**
+     * Records that the task {@code id} is starting to run. The record is written with the others,
+     * unless this returns true.
+     *
+     * @return whether {@link #flush()} should be called before the task runs. The task was replayed,
+     * so it may be the one that took the process down, and the attempt only counts once it's on
+     * disk.
+     */
+    synchronized boolean start(long id) {
+        PendingTask task = mPendingTasks.get(id);
+        if (task == null) {
+            return false;
+        }
+        task.attempts++;
+        try {
+            DataOutputStream out = new DataOutputStream(mBuffer);
+            out.writeByte(RECORD_START);
+            out.writeLong(id);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        mBufferedRecords++;
+        scheduleFlush();
+        return task.replayed;
+    }
+
+    /**
+     * Records that the task {@code id} should run at another time, e.g. because a duplicate of it
+     * was added.
+     *
+     * @param readyTimeMillis when the task should run, in {@link System#currentTimeMillis()} time.
+     */
+    synchronized void reschedule(long id, long readyTimeMillis) {
+        PendingTask task = mPendingTasks.get(id);
+        if (task == null || task.readyTimeMillis == readyTimeMillis) {
+            return;
+        }
+        task.readyTimeMillis = readyTimeMillis;
+        try {
+            DataOutputStream out = new DataOutputStream(mBuffer);
+            out.writeByte(RECORD_RESCHEDULE);
+            out.writeLong(id);
+            out.writeLong(readyTimeMillis);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        mBufferedRecords++;
+        scheduleFlush();
+    }
+
+    /**
+     * Records that the task {@code id} is no longer queued.
+     */
+    synchronized void remove(long id) {
+        if (mPendingTasks.remove(id) == null) {
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(mBuffer);
+            out.writeByte(RECORD_REMOVE);
+            out.writeLong(id);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        mBufferedRecords++;
+        scheduleFlush();
+    }
+
+    /**
+     * Drops all pending tasks.
+     */
+    synchronized void clear() {
+        mPendingTasks.clear();
+        scheduleCompaction();
+    }
+
+    /**
+     * Writes the buffered records now instead of after the flush delay.
+     */
+    synchronized void flushSoon() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = true;
+        mHandler.post(mFlush);
+    }
+
+    synchronized int getPendingCount() {
+        return mPendingTasks.size();
+    }
+
+    /**
+     * Writes the buffered records to the file, or rewrites the file if it should be compacted.
+     */
+    @WorkerThread
+    @VisibleForTesting
+    void flush() {
+        synchronized (mWriteLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        byte[] records;
+        byte[] compacted = null;
+        synchronized (this) {
+            mFlushScheduled = false;
+            records = mBuffer.toByteArray();
+            int recordCount = mRecordsInFile + mBufferedRecords;
+            mBuffer = new ByteArrayOutputStream();
+            mBufferedRecords = 0;
+            int pending = mPendingTasks.size();
+            if (mCompactionRequested || (recordCount >= COMPACT_MIN_RECORDS
+                    && recordCount > 2 * pending)) {
+                mCompactionRequested = false;
+                ByteArrayOutputStream file = new ByteArrayOutputStream();
+                writeHeader(file);
+                for (Map.Entry<Long, PendingTask> task : mPendingTasks.entrySet()) {
+                    byte[] record = createAddRecord(task.getKey(), task.getValue());
+                    file.write(record, 0, record.length);
+                }
+                compacted = file.toByteArray();
+                mRecordsInFile = pending;
+            } else {
+                mRecordsInFile = recordCount;
+            }
+        }
+        // This lock is not held while writing, but mWriteLock is, and only this method writes to
+        // the file.
+        try {
+            if (compacted != null) {
+                writeFile(compacted);
+            } else if (records.length > 0) {
+                append(records);
+            }
+        } catch (IOException e) {
+            VvmLog.e(TAG, "Unable to write journal", e);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    private void scheduleCompaction() {
+        // Rewrites the file with only the pending tasks, which include the buffered ones.
+        mCompactionRequested = true;
+        flushSoon();
+    }
+
+    private void append(byte[] records) throws IOException {
+        File file = mFile.getBaseFile();
+        if (!file.exists()) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeHeader(header);
+            header.write(records, 0, records.length);
+            writeFile(header.toByteArray());
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true /* append */)) {
+            out.write(records);
+            out.getFD().sync();
+        }
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        FileOutputStream out = mFile.startWrite();
+        try {
+            out.write(data);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            mFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    private void writeHeader(ByteArrayOutputStream stream) {
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mFingerprint);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] createAddRecord(long id, PendingTask task) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(task.intent.length + 25);
+        try {
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_ADD);
+            out.writeLong(id);
+            out.writeLong(task.readyTimeMillis);
+            out.writeInt(task.attempts);
+            out.writeInt(task.intent.length);
+            out.write(task.intent);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return record.toByteArray();
+    }
+
+    private static Entry parseIntent(long id, PendingTask task) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(task.intent, 0, task.intent.length);
+            parcel.setDataPosition(0);
+            return new Entry(id, Intent.CREATOR.createFromParcel(parcel), task.readyTimeMillis,
+                    task.attempts);
+        } catch (RuntimeException e) {
+            VvmLog.e(TAG, "Unable to read task from journal", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static byte[] marshall(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
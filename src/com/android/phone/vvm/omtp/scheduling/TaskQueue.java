@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.scheduling;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The queue of {@link TaskSchedulerService}. Tasks are kept in a sorted set for each subId,
+ * ordered by the time they will be ready and then by the order they were added, with an index of
+ * {@link TaskId} for finding duplicates. Finding the next task to run only looks at the first task
+ * of each subscription instead of every task in the queue.
+ *
+ * <p>The ready time is read from {@link Task#getReadyInMilliSeconds()} when a task is added. If it
+ * is changed afterwards, {@link #update(Task)} must be called. Not thread safe, only used on the
+ * main thread.
+ */
+class TaskQueue {
+
+    private static final class Entry implements Comparable<Entry> {
+
+        final Task task;
+        final long sequence;
+        long readyTimeMillis;
+
+        Entry(Task task, long sequence, long readyTimeMillis) {
+            this.task = task;
+            this.sequence = sequence;
+            this.readyTimeMillis = readyTimeMillis;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(readyTimeMillis, other.readyTimeMillis);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final SparseArray<TreeSet<Entry>> mQueues = new SparseArray<>();
+    private final Map<Task, Entry> mEntries = new IdentityHashMap<>();
+    /**
+     * Tasks that does not allow duplicates, by their id.
+     */
+    private final Map<TaskId, Task> mIndex = new HashMap<>();
+
+    private long mNextSequence;
+
+    public void add(Task task) {
+        Entry entry = new Entry(task, mNextSequence++, getReadyTimeMillis(task));
+        mEntries.put(task, entry);
+        getQueue(task.getId().subId).add(entry);
+        if (task.getId().id != Task.TASK_ALLOW_DUPLICATES) {
+            mIndex.put(task.getId(), task);
+        }
+    }
+
+    /**
+     * @return the task with {@code taskId} in the queue. Tasks with {@link
+     * Task#TASK_ALLOW_DUPLICATES} are never returned.
+     */
+    @Nullable
+    public Task get(TaskId taskId) {
+        return mIndex.get(taskId);
+    }
+
+    /**
+     * Re-reads the ready time of {@code task}, which must be in the queue.
+     */
+    public void update(Task task) {
+        Entry entry = mEntries.get(task);
+        TreeSet<Entry> queue = mQueues.get(task.getId().subId);
+        queue.remove(entry);
+        entry.readyTimeMillis = getReadyTimeMillis(task);
+        queue.add(entry);
+    }
+
+    public boolean remove(Task task) {
+        Entry entry = mEntries.remove(task);
+        if (entry == null) {
+            return false;
+        }
+        int subId = task.getId().subId;
+        TreeSet<Entry> queue = mQueues.get(subId);
+        queue.remove(entry);
+        if (queue.isEmpty()) {
+            mQueues.remove(subId);
+        }
+        if (mIndex.get(task.getId()) == task) {
+            mIndex.remove(task.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the task that should be considered next: the one that will be ready first, among the
+     * first tasks of the subscriptions that are not in {@code busySubIds}. Returns null if there are
+     * none.
+     */
+    @Nullable
+    public Task getNext(SparseArray<?> busySubIds) {
+        Entry next = null;
+        for (int i = 0; i < mQueues.size(); i++) {
+            if (busySubIds.get(mQueues.keyAt(i)) != null) {
+                continue;
+            }
+            Entry first = mQueues.valueAt(i).first();
+            if (next == null || first.compareTo(next) < 0) {
+                next = first;
+            }
+        }
+        return next == null ? null : next.task;
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mQueues.clear();
+        mEntries.clear();
+        mIndex.clear();
+    }
+
+    private TreeSet<Entry> getQueue(int subId) {
+        TreeSet<Entry> queue = mQueues.get(subId);
+        if (queue == null) {
+            queue = new TreeSet<>();
+            mQueues.put(subId, queue);
+        }
+        return queue;
+    }
+
+    private static long getReadyTimeMillis(Task task) {
+        return SystemClock.elapsedRealtime() + task.getReadyInMilliSeconds();
+    }
+}
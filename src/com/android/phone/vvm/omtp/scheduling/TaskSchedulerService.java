@@ -33,18 +33,28 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import android.util.SparseArray;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.Assert;
 import com.android.phone.NeededForTesting;
 import com.android.phone.vvm.omtp.VvmLog;
 import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
+import java.io.File;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 /**
- * A service to queue and run {@link Task} on a worker thread. Only one task will be ran at a time,
- * and same task cannot exist in the queue at the same time. The service will be started when a
- * intent is received, and stopped when there are no more tasks in the queue.
+ * A service to queue and run {@link Task} on worker threads. Only one task will be ran at a time
+ * for each subscription ({@link TaskId#subId}), and same task cannot exist in the queue at the same
+ * time. Tasks of different subscriptions may run in parallel, there is one worker thread for each
+ * phone. The service will be started when a intent is received, and stopped when there are no more
+ * tasks in the queue. Queued tasks are recorded in a {@link TaskJournal} and queued again if the
+ * process is killed before they complete.
  */
 public class TaskSchedulerService extends Service {
 
@@ -78,8 +88,19 @@ public class TaskSchedulerService extends Service {
 
     private static final String WAKE_LOCK_TAG = "TaskSchedulerService_wakelock";
 
-    // The thread to run tasks on
-    private volatile WorkerThreadHandler mWorkerThreadHandler;
+    private static final String JOURNAL_FILE_NAME = "vvm_task_journal";
+
+    /** {@link Message#arg1} of a task for the worker to flush the journal before running it. */
+    private static final int FLUSH_JOURNAL = 1;
+
+    /**
+     * Shared by all instances of the service, so records of a stopped instance are written before
+     * a new instance reads the journal.
+     */
+    private static TaskJournal sJournal;
+
+    // The threads to run tasks on, one per phone
+    private volatile WorkerThreadHandler[] mWorkerThreadHandlers;
 
     private Context mContext = this;
     /**
@@ -95,8 +116,29 @@ public class TaskSchedulerService extends Service {
     /**
      * Main thread only, access through {@link #getTasks()}
      */
-    private final Queue<Task> mTasks = new ArrayDeque<>();
-    private boolean mWorkerThreadIsBusy = false;
+    private final TaskQueue mTasks = new TaskQueue();
+    /**
+     * Main thread only. Workers that are not running a task.
+     */
+    private final Queue<WorkerThreadHandler> mIdleWorkers = new ArrayDeque<>();
+    /**
+     * Main thread only. The worker running a task for each subId, a subId with a running task will
+     * not have another one started until it completes.
+     */
+    private final SparseArray<WorkerThreadHandler> mBusyWorkers = new SparseArray<>();
+
+    private TaskJournal mJournal;
+    /**
+     * Main thread only. The journal ids of the queued tasks that were created from an intent.
+     */
+    private final Map<Task, Long> mJournalIds = new IdentityHashMap<>();
+
+    private final Runnable mRunNextTask = new Runnable() {
+        @Override
+        public void run() {
+            maybeRunNextTask();
+        }
+    };
 
     private final Runnable mStopServiceWithDelay = new Runnable() {
         @Override
@@ -122,6 +164,11 @@ public class TaskSchedulerService extends Service {
         public void handleMessage(Message msg) {
             Assert.isNotMainThread();
             Task task = (Task) msg.obj;
+            if (msg.arg1 == FLUSH_JOURNAL) {
+                // A replayed task may take the process down again, its start must be on disk so
+                // the journal stops replaying it after a few attempts.
+                mJournal.flush();
+            }
             try {
                 VvmLog.v(TAG, "executing task " + task);
                 task.onExecuteInBackgroundThread();
@@ -148,8 +195,14 @@ public class TaskSchedulerService extends Service {
             Assert.isMainThread();
             Task task = (Task) msg.obj;
             getTasks().remove(task);
+            int subId = task.getId().subId;
+            mIdleWorkers.add(mBusyWorkers.get(subId));
+            mBusyWorkers.remove(subId);
             task.onCompleted();
-            mWorkerThreadIsBusy = false;
+            Long journalId = mJournalIds.remove(task);
+            if (journalId != null) {
+                mJournal.remove(journalId);
+            }
             maybeRunNextTask();
         }
     }
@@ -161,16 +214,83 @@ public class TaskSchedulerService extends Service {
         mWakeLock = getSystemService(PowerManager.class)
                 .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
         mWakeLock.setReferenceCounted(false);
-        HandlerThread thread = new HandlerThread("VvmTaskSchedulerService");
-        thread.start();
-
-        mWorkerThreadHandler = new WorkerThreadHandler(thread.getLooper());
+        startWorkerThreads(
+                Math.max(1, getSystemService(TelephonyManager.class).getPhoneCount()));
         mMainThreadHandler = new MainThreadHandler(Looper.getMainLooper());
+        mJournal = getJournal(this);
+        restoreTasksFromJournal();
+    }
+
+    private static synchronized TaskJournal getJournal(Context context) {
+        if (sJournal == null) {
+            HandlerThread thread = new HandlerThread("VvmTaskJournal");
+            thread.start();
+            sJournal = new TaskJournal(new File(context.getFilesDir(), JOURNAL_FILE_NAME),
+                    new Handler(thread.getLooper()));
+        }
+        return sJournal;
+    }
+
+    /**
+     * Queues the tasks that were pending when the process was killed. Only does something the
+     * first time the service is created in the process.
+     */
+    @MainThread
+    private void restoreTasksFromJournal() {
+        List<TaskJournal.Entry> entries = mJournal.replay();
+        if (entries.isEmpty()) {
+            return;
+        }
+        VvmLog.i(TAG, "restoring " + entries.size() + " tasks from journal");
+        // Released by maybeRunNextTask() like in onStartCommand().
+        mWakeLock.acquire();
+        long now = System.currentTimeMillis();
+        for (TaskJournal.Entry entry : entries) {
+            Task task;
+            try {
+                task = createTask(entry.intent, 0, 0);
+            } catch (IllegalArgumentException e) {
+                VvmLog.e(TAG, "cannot restore task", e);
+                task = null;
+            }
+            if (task == null) {
+                mJournal.remove(entry.id);
+                continue;
+            }
+            if (task instanceof BaseTask) {
+                BaseTask baseTask = (BaseTask) task;
+                baseTask.setExecutionTime(
+                        baseTask.getTimeMillis() + Math.max(0, entry.readyTimeMillis - now));
+            }
+            mJournalIds.put(task, entry.id);
+            if (!addTask(task)) {
+                mJournalIds.remove(task);
+                mJournal.remove(entry.id);
+            }
+        }
+    }
+
+    private void startWorkerThreads(int count) {
+        mWorkerThreadHandlers = new WorkerThreadHandler[count];
+        mIdleWorkers.clear();
+        for (int i = 0; i < count; i++) {
+            HandlerThread thread = new HandlerThread("VvmTaskSchedulerService" + i);
+            thread.start();
+            mWorkerThreadHandlers[i] = new WorkerThreadHandler(thread.getLooper());
+            mIdleWorkers.add(mWorkerThreadHandlers[i]);
+        }
+    }
+
+    private void quitWorkerThreads() {
+        for (WorkerThreadHandler handler : mWorkerThreadHandlers) {
+            handler.getLooper().quit();
+        }
     }
 
     @Override
     public void onDestroy() {
-        mWorkerThreadHandler.getLooper().quit();
+        quitWorkerThreads();
+        mJournal.flushSoon();
         mWakeLock.release();
     }
 
@@ -181,55 +301,63 @@ public class TaskSchedulerService extends Service {
         // maybeRunNextTask() will release the wakelock either by entering a long sleep or stopping
         // the service.
         mWakeLock.acquire();
-        if (ACTION_WAKEUP.equals(intent.getAction())) {
+        if (intent == null) {
+            VvmLog.d(TAG, "restarted after the process was killed");
+        } else if (ACTION_WAKEUP.equals(intent.getAction())) {
             VvmLog.d(TAG, "woke up by AlarmManager");
         } else {
             Task task = createTask(intent, flags, startId);
             if (task == null) {
                 VvmLog.e(TAG, "cannot create task form intent");
             } else {
-                addTask(task);
+                // Journaled before adding, the task might start running right away.
+                long journalId = mJournal.add(intent,
+                        System.currentTimeMillis() + Math.max(0, task.getReadyInMilliSeconds()));
+                mJournalIds.put(task, journalId);
+                if (!addTask(task)) {
+                    mJournalIds.remove(task);
+                    mJournal.remove(journalId);
+                }
             }
         }
         maybeRunNextTask();
-        // STICKY means the service will be automatically restarted will the last intent if it is
-        // killed.
-        return START_NOT_STICKY;
+        // STICKY means the service will be automatically restarted with a null intent if it is
+        // killed, onCreate() will then restore the pending tasks from the journal.
+        return START_STICKY;
     }
 
+    /**
+     * @return false if the task was merged into a queued task with the same {@link TaskId}.
+     */
     @MainThread
     @VisibleForTesting
-    void addTask(Task task) {
+    boolean addTask(Task task) {
         Assert.isMainThread();
         if (task.getId().id == Task.TASK_INVALID) {
             throw new AssertionError("Task id was not set to a valid value before adding.");
         }
         if (task.getId().id != Task.TASK_ALLOW_DUPLICATES) {
-            Task oldTask = getTask(task.getId());
+            Task oldTask = getTasks().get(task.getId());
             if (oldTask != null) {
                 oldTask.onDuplicatedTaskAdded(task);
-                return;
+                // Policies might have changed when the old task will be ready.
+                getTasks().update(oldTask);
+                Long journalId = mJournalIds.get(oldTask);
+                if (journalId != null) {
+                    mJournal.reschedule(journalId, System.currentTimeMillis()
+                            + Math.max(0, oldTask.getReadyInMilliSeconds()));
+                }
+                return false;
             }
         }
         mMainThreadHandler.removeCallbacks(mStopServiceWithDelay);
         getTasks().add(task);
         maybeRunNextTask();
+        return true;
     }
 
     @MainThread
-    @Nullable
-    private Task getTask(TaskId taskId) {
-        Assert.isMainThread();
-        for (Task task : getTasks()) {
-            if (task.getId().equals(taskId)) {
-                return task;
-            }
-        }
-        return null;
-    }
-
-    @MainThread
-    private Queue<Task> getTasks() {
+    private TaskQueue getTasks() {
         Assert.isMainThread();
         return mTasks;
     }
@@ -268,60 +396,71 @@ public class TaskSchedulerService extends Service {
     @MainThread
     private void maybeRunNextTask() {
         Assert.isMainThread();
-        if (mWorkerThreadIsBusy) {
-            return;
-        }
         if (mTaskAutoRunDisabledForTesting) {
             // If mTaskAutoRunDisabledForTesting is true, runNextTask() must be explicitly called
             // to run the next task.
             return;
         }
 
-        runNextTask();
+        while (runNextTask()) {
+            // Keep starting tasks until all workers are busy or no other task is ready.
+        }
     }
 
+    /**
+     * Starts the first ready task whose subscription does not have a task running, if there is an
+     * idle worker.
+     *
+     * @return whether a task was started.
+     */
     @VisibleForTesting
     @MainThread
-    void runNextTask() {
+    boolean runNextTask() {
         Assert.isMainThread();
         // The current alarm is no longer valid, a new one will be set up if required.
         getSystemService(AlarmManager.class).cancel(getWakeupIntent());
+        mMainThreadHandler.removeCallbacks(mRunNextTask);
         if (getTasks().isEmpty()) {
             prepareStop();
-            return;
+            return false;
         }
-        Long minimalWaitTime = null;
-        for (Task task : getTasks()) {
-            long waitTime = task.getReadyInMilliSeconds();
-            if (waitTime < READY_TOLERANCE_MILLISECONDS) {
-                task.onBeforeExecute();
-                Message message = mWorkerThreadHandler.obtainMessage();
-                message.obj = task;
-                mWorkerThreadIsBusy = true;
-                mMessageSender.send(message);
-                return;
-            } else {
-                if (minimalWaitTime == null || waitTime < minimalWaitTime) {
-                    minimalWaitTime = waitTime;
-                }
-            }
+        if (mIdleWorkers.isEmpty()) {
+            // A worker will call maybeRunNextTask() when it is done.
+            return false;
+        }
+        // Subscriptions with a running task are skipped, the running task is still in the queue.
+        Task task = getTasks().getNext(mBusyWorkers);
+        if (task == null) {
+            // A worker will call maybeRunNextTask() when it is done.
+            return false;
+        }
+        long waitTime = task.getReadyInMilliSeconds();
+        if (waitTime < READY_TOLERANCE_MILLISECONDS) {
+            task.onBeforeExecute();
+            Long journalId = mJournalIds.get(task);
+            boolean flushJournal = journalId != null && mJournal.start(journalId);
+            WorkerThreadHandler worker = mIdleWorkers.remove();
+            mBusyWorkers.put(task.getId().subId, worker);
+            Message message = worker.obtainMessage();
+            message.obj = task;
+            message.arg1 = flushJournal ? FLUSH_JOURNAL : 0;
+            mMessageSender.send(message);
+            return true;
         }
+        long minimalWaitTime = waitTime;
         VvmLog.d(TAG, "minimal wait time:" + minimalWaitTime);
-        if (!mTaskAutoRunDisabledForTesting && minimalWaitTime != null) {
+        if (!mTaskAutoRunDisabledForTesting) {
             // No tasks are currently ready. Sleep until the next one should be.
             // If a new task is added during the sleep the service will wake immediately.
             sleep(minimalWaitTime);
         }
+        return false;
     }
 
     private void sleep(long timeMillis) {
-        if (timeMillis < SHORT_SLEEP_THRESHOLD_MILLISECONDS) {
-            mMainThreadHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    maybeRunNextTask();
-                }
-            }, timeMillis);
+        if (timeMillis < SHORT_SLEEP_THRESHOLD_MILLISECONDS || mBusyWorkers.size() > 0) {
+            // The wake lock must be held while tasks are running anyway.
+            mMainThreadHandler.postDelayed(mRunNextTask, timeMillis);
             return;
         }
 
@@ -370,9 +509,20 @@ public class TaskSchedulerService extends Service {
         mMessageSender = sender;
     }
 
+    @NeededForTesting
+    void setWorkerCountForTest(int count) {
+        quitWorkerThreads();
+        startWorkerThreads(count);
+    }
+
     @NeededForTesting
     void clearTasksForTest() {
         mTasks.clear();
+        mJournalIds.clear();
+        mJournal.clear();
+        mBusyWorkers.clear();
+        mIdleWorkers.clear();
+        mIdleWorkers.addAll(Arrays.asList(mWorkerThreadHandlers));
     }
 
     @Override
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telecom.PhoneAccountHandle;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.VoicemailStatus;
+import com.android.phone.common.mail.MessagingException;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VvmLog;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper.InitializingException;
+import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.NetworkWrapper;
+import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.RequestFailedException;
+import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps an IMAP IDLE (RFC 2177) session open for an account and starts a {@link
+ * OmtpVvmSyncService#SYNC_DOWNLOAD_ONLY} sync whenever the server reports a change, so new
+ * voicemails are picked up without waiting for a SYNC SMS. Only used when {@link
+ * OmtpVvmCarrierConfigHelper#isImapIdleEnabled()}, since the data network has to be held for as
+ * long as the listener runs.
+ *
+ * <p>Errors are never shown to the user; the SMS based sync is still the source of truth.
+ */
+public class ImapIdleListener extends Thread {
+
+    private static final String TAG = "ImapIdleListener";
+
+    /**
+     * RFC 2177 servers may drop an IDLE after 30 minutes of inactivity, and NATs much earlier.
+     * Re-issue it well before that.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static final int MAX_FAILURES = 3;
+    private static final long FAILURE_BACKOFF_MILLIS = 60 * 1000;
+
+    private static final Map<PhoneAccountHandle, ImapIdleListener> sListeners = new HashMap<>();
+
+    private static HandlerThread sTimerThread;
+
+    private final Context mContext;
+    private final PhoneAccountHandle mPhoneAccount;
+    private final Handler mTimerHandler;
+
+    private volatile boolean mStopped;
+    private volatile ImapHelper mImapHelper;
+
+    /**
+     * Starts listening for {@code phoneAccount} if it is not already.
+     */
+    public static void start(Context context, PhoneAccountHandle phoneAccount) {
+        synchronized (sListeners) {
+            ImapIdleListener listener = sListeners.get(phoneAccount);
+            if (listener != null && listener.isAlive()) {
+                return;
+            }
+            if (sTimerThread == null) {
+                sTimerThread = new HandlerThread("ImapIdleTimer");
+                sTimerThread.start();
+            }
+            listener = new ImapIdleListener(context.getApplicationContext(), phoneAccount,
+                    new Handler(sTimerThread.getLooper()));
+            sListeners.put(phoneAccount, listener);
+            listener.start();
+        }
+    }
+
+    /**
+     * Stops listening for {@code phoneAccount}. Does nothing if there is no listener.
+     */
+    public static void stop(PhoneAccountHandle phoneAccount) {
+        ImapIdleListener listener;
+        synchronized (sListeners) {
+            listener = sListeners.remove(phoneAccount);
+        }
+        if (listener != null) {
+            listener.quit();
+        }
+    }
+
+    @VisibleForTesting
+    ImapIdleListener(Context context, PhoneAccountHandle phoneAccount, Handler handler) {
+        super(TAG);
+        mContext = context;
+        mPhoneAccount = phoneAccount;
+        mTimerHandler = handler;
+    }
+
+    @VisibleForTesting
+    void quit() {
+        mStopped = true;
+        ImapHelper imapHelper = mImapHelper;
+        if (imapHelper != null) {
+            imapHelper.stopIdle();
+        }
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        int failures = 0;
+        while (!mStopped && failures < MAX_FAILURES) {
+            if (listen()) {
+                failures = 0;
+            } else {
+                failures++;
+                try {
+                    Thread.sleep(FAILURE_BACKOFF_MILLIS * failures);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        VvmLog.i(TAG, "Stopped listening for " + mPhoneAccount + ", failures=" + failures);
+        synchronized (sListeners) {
+            if (sListeners.get(mPhoneAccount) == this) {
+                sListeners.remove(mPhoneAccount);
+            }
+        }
+    }
+
+    /**
+     * Runs IDLE sessions until stopped or an error occurs.
+     *
+     * @return {@code false} if the session ended because of an error.
+     */
+    private boolean listen() {
+        OmtpVvmCarrierConfigHelper config = new OmtpVvmCarrierConfigHelper(mContext,
+                PhoneAccountHandleConverter.toSubId(mPhoneAccount));
+        if (!config.isImapIdleEnabled()) {
+            mStopped = true;
+            return true;
+        }
+        // Never applied, the listener should not post errors to the voicemail status.
+        VoicemailStatus.Editor status = VoicemailStatus.deferredEdit(mContext, mPhoneAccount);
+        try (NetworkWrapper network = VvmNetworkRequest.getNetwork(config, mPhoneAccount,
+                status)) {
+            if (network == null) {
+                VvmLog.w(TAG, "unable to acquire network");
+                return false;
+            }
+            try (ImapHelper imapHelper = new ImapHelper(mContext, config, mPhoneAccount,
+                    network.get(), status)) {
+                idle(imapHelper);
+                return true;
+            }
+        } catch (RequestFailedException e) {
+            VvmLog.w(TAG, "network request failed", e);
+            return false;
+        } catch (InitializingException e) {
+            VvmLog.w(TAG, "Can't retrieve Imap credentials", e);
+            mStopped = true;
+            return true;
+        } catch (MessagingException e) {
+            if (e.getExceptionType() == MessagingException.PROTOCOL_VERSION_UNSUPPORTED) {
+                VvmLog.i(TAG, "Server does not support IDLE");
+                mStopped = true;
+                return true;
+            }
+            VvmLog.w(TAG, "IDLE failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Issues IDLE until stopped, and calls {@link #onMailboxChanged()} whenever the server
+     * reports a change. An IDLE that ends without a change, because it timed out or the server
+     * completed it, is issued again. If the server closes the connection with BYE the next IDLE is
+     * issued on a new connection.
+     *
+     * @throws MessagingException if IDLE fails, or the connection is lost again right after
+     * reconnecting.
+     */
+    @VisibleForTesting
+    void idle(ImapHelper imapHelper) throws MessagingException {
+        mImapHelper = imapHelper;
+        try {
+            boolean reconnected = false;
+            while (!mStopped) {
+                boolean changed;
+                try {
+                    changed = imapHelper.idle(IDLE_TIMEOUT_MILLIS, mTimerHandler);
+                    reconnected = false;
+                } catch (MessagingException e) {
+                    if (e.getExceptionType() != MessagingException.IOERROR || reconnected
+                            || mStopped) {
+                        throw e;
+                    }
+                    VvmLog.i(TAG, "IDLE connection closed, reconnecting");
+                    reconnected = true;
+                    continue;
+                }
+                if (changed && !mStopped) {
+                    onMailboxChanged();
+                }
+            }
+        } finally {
+            mImapHelper = null;
+        }
+    }
+
+    @VisibleForTesting
+    void onMailboxChanged() {
+        VvmLog.i(TAG, "Mailbox changed, syncing " + mPhoneAccount);
+        SyncTask.start(mContext, mPhoneAccount, OmtpVvmSyncService.SYNC_DOWNLOAD_ONLY);
+    }
+}
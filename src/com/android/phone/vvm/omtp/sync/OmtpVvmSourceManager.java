@@ -23,6 +23,7 @@ import android.telephony.TelephonyManager;
 import com.android.internal.telephony.Phone;
 import com.android.phone.PhoneUtils;
 import com.android.phone.VoicemailStatus;
+import com.android.phone.common.mail.store.ImapConnectionPool;
 import com.android.phone.vvm.omtp.VvmPhoneStateListener;
 import java.util.Collections;
 import java.util.Map;
@@ -107,6 +108,9 @@ public class OmtpVvmSourceManager {
         // couldn't handle events on removed SIMs
         VoicemailStatus.disable(mContext, phoneAccount);
         removePhoneStateListener(phoneAccount);
+        ImapIdleListener.stop(phoneAccount);
+        // The pool is keyed by credentials, drop connections that may belong to this account.
+        ImapConnectionPool.getInstance().closeAll();
         mActiveVvmSources.remove(phoneAccount);
     }
 
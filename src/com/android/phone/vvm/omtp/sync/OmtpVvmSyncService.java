@@ -18,28 +18,38 @@ package com.android.phone.vvm.omtp.sync;
 import android.content.Context;
 import android.net.Network;
 import android.net.Uri;
-import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import android.text.TextUtils;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.Assert;
 import com.android.phone.PhoneUtils;
 import com.android.phone.VoicemailStatus;
+import com.android.phone.common.mail.Flag;
 import com.android.phone.settings.VisualVoicemailSettingsUtil;
 import com.android.phone.vvm.omtp.ActivationTask;
 import com.android.phone.vvm.omtp.OmtpEvents;
 import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VisualVoicemailPreferences;
 import com.android.phone.vvm.omtp.VvmLog;
 import com.android.phone.vvm.omtp.fetch.VoicemailFetchedCallback;
 import com.android.phone.vvm.omtp.imap.ImapHelper;
 import com.android.phone.vvm.omtp.imap.ImapHelper.InitializingException;
+import com.android.phone.vvm.omtp.imap.ImapHelper.VoicemailChanges;
+import com.android.phone.vvm.omtp.imap.MailboxState;
 import com.android.phone.vvm.omtp.scheduling.BaseTask;
 import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.NetworkWrapper;
 import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.RequestFailedException;
 import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Sync OMTP visual voicemail.
@@ -131,6 +141,9 @@ public class OmtpVvmSyncService {
                 // TODO: b/30569269 failure should interrupt all subsequent task via exceptions
                 imapHelper.updateQuota();
                 imapHelper.handleEvent(OmtpEvents.DATA_IMAP_OPERATION_COMPLETED);
+                if (imapHelper.getConfig().isImapIdleEnabled()) {
+                    ImapIdleListener.start(mContext, phoneAccount);
+                }
             } else {
                 task.fail();
             }
@@ -147,8 +160,13 @@ public class OmtpVvmSyncService {
         if (SYNC_FULL_SYNC.equals(action) || SYNC_UPLOAD_ONLY.equals(action)) {
             uploadSuccess = upload(imapHelper);
         }
-        if (SYNC_FULL_SYNC.equals(action) || SYNC_DOWNLOAD_ONLY.equals(action)) {
+        if (SYNC_FULL_SYNC.equals(action)) {
             downloadSuccess = download(imapHelper, account);
+        } else if (SYNC_DOWNLOAD_ONLY.equals(action)) {
+            // Download only syncs are triggered by the server telling us something changed, so
+            // only fetch what changed since the last sync. Full syncs still compare everything to
+            // recover from any local inconsistency.
+            downloadSuccess = downloadIncremental(imapHelper, account);
         }
 
         VvmLog.v(TAG, "upload succeeded: [" + String.valueOf(uploadSuccess)
@@ -174,31 +192,86 @@ public class OmtpVvmSyncService {
         List<Voicemail> readVoicemails = mQueryHelper.getReadVoicemails();
         List<Voicemail> deletedVoicemails = mQueryHelper.getDeletedVoicemails();
 
+        if (readVoicemails.isEmpty() && deletedVoicemails.isEmpty()) {
+            return true;
+        }
+        // The flags, expunge and quota are sent in one pipelined flight. Each flag is applied
+        // locally if the server set it, even if the other one failed.
+        Set<String> flagsSet = imapHelper.markMessages(readVoicemails, deletedVoicemails);
         boolean success = true;
 
-        if (deletedVoicemails.size() > 0) {
-            if (imapHelper.markMessagesAsDeleted(deletedVoicemails)) {
-                // We want to delete selectively instead of all the voicemails for this provider
-                // in case the state changed since the IMAP query was completed.
-                mQueryHelper.deleteFromDatabase(deletedVoicemails);
-            } else {
-                success = false;
+        VoicemailBatch batch = newBatch(imapHelper);
+        if (flagsSet.contains(Flag.DELETED)) {
+            // We want to delete selectively instead of all the voicemails for this provider in
+            // case the state changed since the IMAP query was completed.
+            for (Voicemail voicemail : deletedVoicemails) {
+                batch.delete(voicemail);
             }
+        } else if (!deletedVoicemails.isEmpty()) {
+            success = false;
         }
+        if (flagsSet.contains(Flag.SEEN)) {
+            for (Voicemail voicemail : readVoicemails) {
+                batch.markClean(voicemail);
+            }
+        } else if (!readVoicemails.isEmpty()) {
+            success = false;
+        }
+        if (batch.apply() == null) {
+            success = false;
+        }
+        return success;
+    }
 
-        if (readVoicemails.size() > 0) {
-            if (imapHelper.markMessagesAsRead(readVoicemails)) {
-                mQueryHelper.markCleanInDatabase(readVoicemails);
-            } else {
-                success = false;
+    private boolean downloadIncremental(ImapHelper imapHelper, PhoneAccountHandle account) {
+        VisualVoicemailPreferences prefs = new VisualVoicemailPreferences(mContext, account);
+        VoicemailChanges changes = imapHelper.fetchVoicemailChanges(MailboxState.load(prefs));
+        if (changes == null) {
+            return false;
+        }
+        if (changes.isFullSyncRequired()) {
+            return download(imapHelper, account);
+        }
+
+        List<Voicemail> localVoicemails = mQueryHelper.getAllVoicemails();
+        if (localVoicemails == null) {
+            return false;
+        }
+
+        VoicemailBatch batch = newBatch(imapHelper);
+        Set<String> localUids = new HashSet<>();
+        for (Voicemail localVoicemail : localVoicemails) {
+            String uid = localVoicemail.getSourceData();
+            localUids.add(uid);
+            if (changes.isDeleted(uid)) {
+                batch.delete(localVoicemail);
+                continue;
+            }
+            Boolean isRead = changes.getReadState(uid);
+            if (isRead != null && isRead != localVoicemail.isRead()) {
+                batch.markRead(localVoicemail);
             }
         }
 
-        return success;
+        List<Voicemail> newVoicemails = new ArrayList<>();
+        for (Voicemail remoteVoicemail : changes.newVoicemails) {
+            if (!localUids.contains(remoteVoicemail.getSourceData())) {
+                newVoicemails.add(remoteVoicemail);
+            }
+        }
+        if (!insertVoicemails(imapHelper, account, batch, newVoicemails)) {
+            return false;
+        }
+
+        changes.state.save(prefs);
+        return true;
     }
 
     private boolean download(ImapHelper imapHelper, PhoneAccountHandle account) {
         List<Voicemail> serverVoicemails = imapHelper.fetchAllVoicemails();
+        // Captured before any other folder operation so no change made after the listing can be
+        // skipped by the next incremental sync.
+        MailboxState mailboxState = imapHelper.getMailboxState();
         List<Voicemail> localVoicemails = mQueryHelper.getAllVoicemails();
 
         if (localVoicemails == null || serverVoicemails == null) {
@@ -207,6 +280,7 @@ public class OmtpVvmSyncService {
         }
 
         Map<String, Voicemail> remoteMap = buildMap(serverVoicemails);
+        VoicemailBatch batch = newBatch(imapHelper);
 
         // Go through all the local voicemails and check if they are on the server.
         // They may be read or deleted on the server but not locally. Perform the
@@ -217,34 +291,102 @@ public class OmtpVvmSyncService {
             Voicemail localVoicemail = localVoicemails.get(i);
             Voicemail remoteVoicemail = remoteMap.remove(localVoicemail.getSourceData());
             if (remoteVoicemail == null) {
-                mQueryHelper.deleteFromDatabase(localVoicemail);
+                batch.delete(localVoicemail);
             } else {
                 if (remoteVoicemail.isRead() != localVoicemail.isRead()) {
-                    mQueryHelper.markReadInDatabase(localVoicemail);
+                    batch.markRead(localVoicemail);
                 }
 
                 if (!TextUtils.isEmpty(remoteVoicemail.getTranscription()) &&
                         TextUtils.isEmpty(localVoicemail.getTranscription())) {
-                    mQueryHelper.updateWithTranscription(localVoicemail,
+                    batch.updateTranscription(localVoicemail,
                             remoteVoicemail.getTranscription());
                 }
             }
         }
 
         // The leftover messages are messages that exist on the server but not locally.
-        boolean prefetchEnabled = shouldPerformPrefetch(account, imapHelper);
-        for (Voicemail remoteVoicemail : remoteMap.values()) {
-            Uri uri = VoicemailContract.Voicemails.insert(mContext, remoteVoicemail);
-            if (prefetchEnabled) {
-                VoicemailFetchedCallback fetchedCallback =
-                        new VoicemailFetchedCallback(mContext, uri, account);
-                imapHelper.fetchVoicemailPayload(fetchedCallback, remoteVoicemail.getSourceData());
+        if (!insertVoicemails(imapHelper, account, batch, remoteMap.values())) {
+            return false;
+        }
+
+        mailboxState.save(new VisualVoicemailPreferences(mContext, account));
+        return true;
+    }
+
+    /**
+     * Adds {@code voicemails} to {@code batch}, applies it and prefetches the inserted voicemails.
+     *
+     * @return {@code false} if the provider could not be queried or updated.
+     */
+    private boolean insertVoicemails(ImapHelper imapHelper, PhoneAccountHandle account,
+            VoicemailBatch batch, Collection<Voicemail> voicemails) {
+        List<Voicemail> inserted = new ArrayList<>(voicemails.size());
+        if (!voicemails.isEmpty()) {
+            // A voicemail may have been inserted by a SYNC SMS since the local voicemails were
+            // read. Check them all with one query instead of isVoicemailUnique() for each.
+            Set<String> existing = mQueryHelper.getSourceData(account);
+            if (existing == null) {
+                return false;
+            }
+            for (Voicemail remoteVoicemail : voicemails) {
+                if (!existing.contains(remoteVoicemail.getSourceData())) {
+                    batch.insert(remoteVoicemail);
+                    inserted.add(remoteVoicemail);
+                }
             }
         }
 
+        VvmLog.v(TAG, "Applying " + batch.size() + " voicemail operations");
+        List<Uri> uris = batch.apply();
+        if (uris == null) {
+            return false;
+        }
+        if (!inserted.isEmpty() && shouldPerformPrefetch(account, imapHelper)) {
+            prefetchVoicemails(imapHelper, account, inserted, uris);
+        }
         return true;
     }
 
+    /**
+     * Fetches the payloads of newly inserted voicemails. The batches are requested newest first
+     * since those are the most likely to be played next; within a batch the payloads are written in
+     * the order the server returns them. A failure does not fail the sync, the remaining payloads
+     * are fetched when the user plays the voicemail.
+     */
+    private void prefetchVoicemails(ImapHelper imapHelper, PhoneAccountHandle account,
+            List<Voicemail> voicemails, List<Uri> uris) {
+        Map<String, VoicemailFetchedCallback> callbacks = new LinkedHashMap<>();
+        for (int i : getPrefetchOrder(voicemails, uris)) {
+            callbacks.put(voicemails.get(i).getSourceData(),
+                    new VoicemailFetchedCallback(mContext, uris.get(i), account));
+        }
+        if (!imapHelper.fetchVoicemailPayloads(callbacks)) {
+            VvmLog.w(TAG, "Unable to prefetch " + callbacks.size() + " voicemails");
+        }
+    }
+
+    /**
+     * @return the indices of the {@code voicemails} to prefetch, newest first. Voicemails which
+     * were not inserted, with a null uri, are left out.
+     */
+    @VisibleForTesting
+    static List<Integer> getPrefetchOrder(List<Voicemail> voicemails, List<Uri> uris) {
+        List<Integer> order = new ArrayList<>(voicemails.size());
+        for (int i = 0; i < voicemails.size(); i++) {
+            if (uris.get(i) != null) {
+                order.add(i);
+            }
+        }
+        Collections.sort(order, (a, b) -> Long.compare(
+                voicemails.get(b).getTimestampMillis(), voicemails.get(a).getTimestampMillis()));
+        return order;
+    }
+
+    private VoicemailBatch newBatch(ImapHelper imapHelper) {
+        return mQueryHelper.newBatch(imapHelper.getConfig().getProviderBatchSize());
+    }
+
     private boolean shouldPerformPrefetch(PhoneAccountHandle account, ImapHelper imapHelper) {
         OmtpVvmCarrierConfigHelper carrierConfigHelper = new OmtpVvmCarrierConfigHelper(
                 mContext, PhoneUtils.getSubIdForPhoneAccountHandle(account));
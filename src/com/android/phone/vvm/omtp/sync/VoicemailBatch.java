@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import android.annotation.Nullable;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.VoicemailContract;
+import android.provider.VoicemailContract.Voicemails;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.Voicemail;
+import com.android.phone.vvm.omtp.VvmLog;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the changes a sync makes to the voicemails table so they are written with {@link
+ * ContentResolver#applyBatch(String, ArrayList)}, one IPC for every {@code batchSize} operations
+ * instead of one per voicemail. Nothing is written until {@link #apply()} is called.
+ */
+public class VoicemailBatch {
+
+    private static final String TAG = "VoicemailBatch";
+
+    private final ContentResolver mContentResolver;
+    private final Uri mSourceUri;
+    private final int mBatchSize;
+
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+    /** Index in {@link #mOperations} of each insertion, in the order they were added. */
+    private final List<Integer> mInsertions = new ArrayList<>();
+
+    /**
+     * @param batchSize the maximum number of operations in a single {@link
+     * ContentResolver#applyBatch(String, ArrayList)} call. A non-positive value applies all of them
+     * in one call.
+     */
+    VoicemailBatch(ContentResolver contentResolver, Uri sourceUri, int batchSize) {
+        mContentResolver = contentResolver;
+        mSourceUri = sourceUri;
+        mBatchSize = batchSize;
+    }
+
+    public void insert(Voicemail voicemail) {
+        mInsertions.add(mOperations.size());
+        mOperations.add(ContentProviderOperation.newInsert(mSourceUri)
+                .withValues(getContentValues(voicemail))
+                .build());
+    }
+
+    public void delete(Voicemail voicemail) {
+        mOperations.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(Voicemails.CONTENT_URI, voicemail.getId()))
+                .build());
+    }
+
+    public void markRead(Voicemail voicemail) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.IS_READ, "1");
+        update(voicemail, contentValues);
+    }
+
+    /**
+     * @see VoicemailsQueryHelper#markCleanInDatabase(Voicemail)
+     */
+    public void markClean(Voicemail voicemail) {
+        update(voicemail, new ContentValues());
+    }
+
+    public void updateTranscription(Voicemail voicemail, String transcription) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.TRANSCRIPTION, transcription);
+        update(voicemail, contentValues);
+    }
+
+    public int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * Writes the collected operations and clears the batch. Batches that were applied before a
+     * failure are not rolled back.
+     *
+     * @return the URIs of the inserted voicemails, in the order they were added, or {@code null} if
+     * a batch failed.
+     */
+    @Nullable
+    public List<Uri> apply() {
+        int count = mOperations.size();
+        int batchSize = mBatchSize > 0 ? mBatchSize : Math.max(count, 1);
+        ContentProviderResult[] results = new ContentProviderResult[count];
+        try {
+            for (int start = 0; start < count; start += batchSize) {
+                int end = Math.min(start + batchSize, count);
+                ContentProviderResult[] batchResults = mContentResolver.applyBatch(
+                        VoicemailContract.AUTHORITY,
+                        new ArrayList<>(mOperations.subList(start, end)));
+                System.arraycopy(batchResults, 0, results, start, batchResults.length);
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            VvmLog.e(TAG, "Unable to apply " + count + " voicemail operations", e);
+            return null;
+        } finally {
+            mOperations.clear();
+        }
+
+        List<Uri> uris = new ArrayList<>(mInsertions.size());
+        for (int index : mInsertions) {
+            uris.add(results[index].uri);
+        }
+        mInsertions.clear();
+        return uris;
+    }
+
+    private void update(Voicemail voicemail, ContentValues contentValues) {
+        mOperations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(mSourceUri, voicemail.getId()))
+                .withValues(contentValues)
+                .build());
+    }
+
+    /**
+     * The values {@link Voicemails#insert} writes for a voicemail.
+     */
+    private static ContentValues getContentValues(Voicemail voicemail) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.DATE, String.valueOf(voicemail.getTimestampMillis()));
+        contentValues.put(Voicemails.NUMBER, voicemail.getNumber());
+        contentValues.put(Voicemails.DURATION, String.valueOf(voicemail.getDuration()));
+        contentValues.put(Voicemails.SOURCE_PACKAGE, voicemail.getSourcePackage());
+        contentValues.put(Voicemails.SOURCE_DATA, voicemail.getSourceData());
+        contentValues.put(Voicemails.IS_READ, voicemail.isRead() ? 1 : 0);
+        PhoneAccountHandle phoneAccount = voicemail.getPhoneAccount();
+        if (phoneAccount != null) {
+            contentValues.put(Voicemails.PHONE_ACCOUNT_COMPONENT_NAME,
+                    phoneAccount.getComponentName().flattenToString());
+            contentValues.put(Voicemails.PHONE_ACCOUNT_ID, phoneAccount.getId());
+        }
+        if (voicemail.getTranscription() != null) {
+            contentValues.put(Voicemails.TRANSCRIPTION, voicemail.getTranscription());
+        }
+        return contentValues;
+    }
+}
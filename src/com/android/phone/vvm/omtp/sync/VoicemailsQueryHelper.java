@@ -26,7 +26,9 @@ import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Construct queries to interact with the voicemails table.
@@ -49,6 +51,13 @@ public class VoicemailsQueryHelper {
     final static String READ_SELECTION = Voicemails.DIRTY + "=1 AND "
                 + Voicemails.DELETED + "!=1 AND " + Voicemails.IS_READ + "=1";
     final static String DELETED_SELECTION = Voicemails.DELETED + "=1";
+    final static String ACCOUNT_SELECTION = Voicemails.PHONE_ACCOUNT_COMPONENT_NAME + "=? AND "
+            + Voicemails.PHONE_ACCOUNT_ID + "=?";
+
+    /**
+     * Number of operations in a single applyBatch call when the caller does not configure it.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
 
     private Context mContext;
     private ContentResolver mContentResolver;
@@ -150,11 +159,11 @@ public class VoicemailsQueryHelper {
     }
 
     public int markReadInDatabase(List<Voicemail> voicemails) {
-        int count = voicemails.size();
-        for (int i = 0; i < count; i++) {
-            markReadInDatabase(voicemails.get(i));
+        VoicemailBatch batch = newBatch(DEFAULT_BATCH_SIZE);
+        for (Voicemail voicemail : voicemails) {
+            batch.markRead(voicemail);
         }
-        return count;
+        return batch.apply() != null ? voicemails.size() : 0;
     }
 
     /**
@@ -177,11 +186,11 @@ public class VoicemailsQueryHelper {
      * @return The number of voicemails updated
      */
     public int markCleanInDatabase(List<Voicemail> voicemails) {
-        int count = voicemails.size();
-        for (int i = 0; i < count; i++) {
-            markCleanInDatabase(voicemails.get(i));
+        VoicemailBatch batch = newBatch(DEFAULT_BATCH_SIZE);
+        for (Voicemail voicemail : voicemails) {
+            batch.markClean(voicemail);
         }
-        return count;
+        return batch.apply() != null ? voicemails.size() : 0;
     }
 
     /**
@@ -203,6 +212,41 @@ public class VoicemailsQueryHelper {
         mContentResolver.update(uri, contentValues, null, null);
     }
 
+    /**
+     * Creates a batch to collect changes to the voicemails of this source and write them together.
+     *
+     * @param batchSize the maximum number of operations written in a single IPC.
+     */
+    public VoicemailBatch newBatch(int batchSize) {
+        return new VoicemailBatch(mContentResolver, mSourceUri, batchSize);
+    }
+
+    /**
+     * Fetches the source data of every voicemail stored for {@code phoneAccount} in a single query,
+     * so many voicemails can be checked for uniqueness (see {@link #isVoicemailUnique(Voicemail)})
+     * without a query for each.
+     *
+     * @return the source data values, or {@code null} if the query failed.
+     */
+    public Set<String> getSourceData(PhoneAccountHandle phoneAccount) {
+        String[] selectionArgs = {
+                phoneAccount.getComponentName().flattenToString(), phoneAccount.getId()};
+        Cursor cursor = mContentResolver.query(mSourceUri,
+                new String[] {Voicemails.SOURCE_DATA}, ACCOUNT_SELECTION, selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            Set<String> sourceData = new HashSet<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                sourceData.add(cursor.getString(0));
+            }
+            return sourceData;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Voicemail is unique if the tuple of (phone account component name, phone account id, source
      * data) is unique. If the phone account is missing, we also consider this unique since it's
@@ -5,6 +5,7 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.phone.VoicemailStatus;
 import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
 import com.android.phone.vvm.omtp.VvmLog;
 
@@ -26,6 +27,10 @@ public class VvmDumpHandler {
             indentedWriter.println(config.toString());
         }
         indentedWriter.decreaseIndent();
+        indentedWriter.println("====== Prefetch =======");
+        indentedWriter.increaseIndent();
+        VoicemailStatus.dumpPrefetchStats(indentedWriter);
+        indentedWriter.decreaseIndent();
         indentedWriter.println("======== Logs =========");
         VvmLog.dump(fd, indentedWriter, args);
     }
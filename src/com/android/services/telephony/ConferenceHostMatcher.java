@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.net.Uri;
+import android.telephony.PhoneNumberUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Determines whether the participants of a conference event package are the conference host,
+ * which some carriers include in the package.
+ * <p>
+ * The numbers of the host are taken from its handles once. A conference event package lists
+ * every participant, the host included, each time a participant changes, so the answer for each
+ * participant handle is remembered.
+ */
+final class ConferenceHostMatcher {
+
+    /**
+     * Answers for more participants than this are forgotten, so that a long conference with many
+     * participants joining and leaving doesn't keep all of them.
+     */
+    private static final int MAX_REMEMBERED_PARTICIPANTS = 64;
+
+    private final String[] mHostNumbers;
+    private final HashMap<Uri, Boolean> mIsHost = new HashMap<>();
+
+    /**
+     * @param hostHandles The handle(s) of the connection hosting the conference, or {@code null}.
+     */
+    ConferenceHostMatcher(Uri[] hostHandles) {
+        ArrayList<String> hostNumbers = new ArrayList<>();
+        if (hostHandles != null) {
+            for (Uri hostHandle : hostHandles) {
+                if (hostHandle != null) {
+                    // The host number will be a tel: uri.  Per RFC3966, the part after tel: is the
+                    // phone number.
+                    hostNumbers.add(hostHandle.getSchemeSpecificPart());
+                }
+            }
+        }
+        mHostNumbers = hostNumbers.toArray(new String[hostNumbers.size()]);
+    }
+
+    /**
+     * Determines if the passed in participant handle is the same as one of the conference host's
+     * handles.
+     *
+     * @param handle The handle of the conference participant.
+     * @return {@code true} if the host's handle matches the participant's handle, {@code false}
+     *      otherwise.
+     */
+    boolean isHost(Uri handle) {
+        // If there is no host handle or no participant handle, bail early.
+        if (mHostNumbers.length == 0 || handle == null) {
+            Log.v(this, "isHost(N) : host or participant uri null");
+            return false;
+        }
+        Boolean isHost = mIsHost.get(handle);
+        if (isHost == null) {
+            isHost = matchHost(getParticipantNumber(handle));
+            if (mIsHost.size() >= MAX_REMEMBERED_PARTICIPANTS) {
+                mIsHost.clear();
+            }
+            mIsHost.put(handle, isHost);
+        }
+        return isHost;
+    }
+
+    private boolean matchHost(String number) {
+        if (number.isEmpty()) {
+            Log.v(this, "isHost(N) : no number in participant handle");
+            return false;
+        }
+        for (String hostNumber : mHostNumbers) {
+            // Use a loose comparison of the phone numbers.  This ensures that numbers that differ
+            // by special characters are counted as equal.
+            // E.g. +16505551212 would be the same as 16505551212
+            boolean isHost = PhoneNumberUtils.compare(hostNumber, number);
+
+            Log.v(this, "isHost(%s) : host: %s, participant %s", (isHost ? "Y" : "N"),
+                    Log.pii(hostNumber), Log.pii(number));
+
+            if (isHost) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the phone number in the user field of a participant handle.
+     * <p>
+     * Conference event package participants are identified using SIP URIs (see RFC3261).
+     * A valid SIP uri has the format: sip:user:password@host:port;uri-parameters?headers
+     * Per RFC3261, the "user" can be a telephone number.
+     * For example: sip:1650555121;phone-context=blah.com@host.com
+     * In this case, the phone number is in the user field of the URI, and the parameters can be
+     * ignored.
+     * <p>
+     * A SIP URI can also specify a phone number in a format similar to:
+     * sip:+1-212-555-1212@something.com;user=phone
+     * In this case, the phone number is again in user field and the parameters can be ignored.
+     * We can get the user field in these instances by looking for the first @, ; or :.
+     *
+     * @return the number, or an empty string if the handle has none.
+     */
+    static String getParticipantNumber(Uri handle) {
+        String number = handle.getSchemeSpecificPart();
+        if (number == null) {
+            return "";
+        }
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == '@' || c == ';' || c == ':') {
+                return number.substring(0, i);
+            }
+        }
+        return number;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the conferenceable connections that were set on each connection of a
+ * {@link TelephonyConferenceController}, so that a connection is only told again when its
+ * conferenceable connections changed.
+ *
+ * Every connection of the conferenceable set is conferenceable with all of the others, and the
+ * other connections with none. So the set that was last given to {@link #update} is enough to know
+ * what each connection was told.
+ *
+ * @param <T> the type of connection.
+ */
+final class ConferenceableTracker<T> {
+
+    interface Listener<T> {
+        /**
+         * The conferenceable connections of {@code connection} changed.
+         */
+        void onConferenceablesChanged(T connection, List<T> conferenceables);
+    }
+
+    private final Listener<T> mListener;
+
+    /** The conferenceable set of the last update. */
+    private Set<T> mConferenceables = Collections.emptySet();
+    /** The connections that were told their conferenceable connections since they were added. */
+    private final Set<T> mNotified = new HashSet<>();
+
+    ConferenceableTracker(Listener<T> listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forgets what was set on {@code connection}, e.g. because it's no longer tracked. It's told
+     * its conferenceable connections on the next update in any case.
+     */
+    void forget(T connection) {
+        mNotified.remove(connection);
+    }
+
+    /**
+     * Tells the connections whose conferenceable connections changed since the last update.
+     *
+     * @param connections all of the tracked connections.
+     * @param conferenceables the connections which can be conferenced together, in the order they
+     * should be given.
+     */
+    void update(Collection<T> connections, LinkedHashSet<T> conferenceables) {
+        final Set<T> previous = mConferenceables;
+        final boolean changed = !conferenceables.equals(previous);
+        for (T connection : connections) {
+            final boolean isConferenceable = conferenceables.contains(connection);
+            if (mNotified.add(connection) || (changed && isToldOtherConnections(
+                    connection, isConferenceable, previous, conferenceables))) {
+                mListener.onConferenceablesChanged(connection, isConferenceable
+                        ? without(conferenceables, connection) : Collections.<T>emptyList());
+            }
+        }
+        mConferenceables = conferenceables;
+    }
+
+    /**
+     * Determines whether a connection which was told its conferenceable connections when the
+     * conferenceable set was {@code previous} must be told again now that it's {@code current}.
+     */
+    private static <T> boolean isToldOtherConnections(T connection, boolean isConferenceable,
+            Set<T> previous, Set<T> current) {
+        final boolean wasConferenceable = previous.contains(connection);
+        if (isConferenceable && wasConferenceable) {
+            // The sets differ, so do the other connections.
+            return true;
+        }
+        // It was conferenceable with nothing, or only with the connections other than itself.
+        final int wereOthers = wasConferenceable ? previous.size() - 1 : 0;
+        final int areOthers = isConferenceable ? current.size() - 1 : 0;
+        return wereOthers != 0 || areOthers != 0;
+    }
+
+    private static <T> List<T> without(Set<T> connections, T connection) {
+        final List<T> others = new ArrayList<>(connections.size() - 1);
+        for (T other : connections) {
+            if (other != connection) {
+                others.add(other);
+            }
+        }
+        return others;
+    }
+}
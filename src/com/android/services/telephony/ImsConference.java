@@ -35,7 +35,6 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.StatusHints;
 import android.telecom.VideoProfile;
 import android.telephony.CarrierConfigManager;
-import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
 import android.util.Pair;
 
@@ -233,9 +232,23 @@ public class ImsConference extends Conference {
     private PhoneAccountHandle mConferenceHostPhoneAccountHandle;
 
     /**
-     * The address of the conference host.
+     * Matches participants against the address(es) of the conference host.
+     * Access is protected by the {@link #mUpdateSyncRoot}.
      */
-    private Uri[] mConferenceHostAddress;
+    private ConferenceHostMatcher mConferenceHostMatcher = new ConferenceHostMatcher(null);
+
+    /**
+     * The subscription for which {@link #mDisableHostFilter} was read, or
+     * {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     * Access is protected by the {@link #mUpdateSyncRoot}.
+     */
+    private int mDisableHostFilterSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+    /**
+     * Whether the conference host is kept as a participant when it's in the conference event
+     * package, per {@code R.bool.disable_filter_out_conference_host}.
+     */
+    private boolean mDisableHostFilter;
 
     /**
      * The known conference participant connections.  The HashMap is keyed by a Pair containing
@@ -716,8 +729,11 @@ public class ImsConference extends Conference {
                         new ArrayList<>(Arrays.asList(imsPhone.getCurrentSubscriberUris())));
             }
 
-            mConferenceHostAddress = new Uri[hostAddresses.size()];
-            mConferenceHostAddress = hostAddresses.toArray(mConferenceHostAddress);
+            ConferenceHostMatcher matcher = new ConferenceHostMatcher(
+                    hostAddresses.toArray(new Uri[hostAddresses.size()]));
+            synchronized (mUpdateSyncRoot) {
+                mConferenceHostMatcher = matcher;
+            }
         }
 
         mConferenceHost.addConnectionListener(mConferenceHostListener);
@@ -754,8 +770,10 @@ public class ImsConference extends Conference {
         synchronized (mUpdateSyncRoot) {
             boolean newParticipantsAdded = false;
             boolean oldParticipantsRemoved = false;
-            ArrayList<ConferenceParticipant> newParticipants = new ArrayList<>(participants.size());
+            ArrayList<ConferenceParticipant> newParticipants = new ArrayList<>();
+            ArrayList<ConferenceParticipantConnection> newConnections = new ArrayList<>();
             HashSet<Pair<Uri,Uri>> participantUserEntities = new HashSet<>(participants.size());
+            boolean disableFilter = isHostFilterDisabled(parent.getPhone());
 
             // Add any new participants and update existing.
             for (ConferenceParticipant participant : participants) {
@@ -763,25 +781,19 @@ public class ImsConference extends Conference {
                         participant.getEndpoint());
 
                 participantUserEntities.add(userEntity);
-                if (!mConferenceParticipantConnections.containsKey(userEntity)) {
+                ConferenceParticipantConnection connection =
+                        mConferenceParticipantConnections.get(userEntity);
+                if (connection == null) {
                     // Some carriers will also include the conference host in the CEP.  We will
                     // filter that out here.
-                    boolean disableFilter = false;
-                    Phone phone = parent.getPhone();
-                    if (phone != null) {
-                        Context context = phone.getContext();
-                        final int subId = phone.getSubId();
-                        disableFilter = SubscriptionManager.getResourcesForSubId(context, subId)
-                                     .getBoolean(R.bool.disable_filter_out_conference_host);
-                    }
-                    if (!isParticipantHost(mConferenceHostAddress, participant.getHandle())) {
-                        createConferenceParticipantConnection(parent, participant);
+                    if (!mConferenceHostMatcher.isHost(participant.getHandle())) {
+                        newConnections.add(createConferenceParticipantConnection(parent,
+                                participant, userEntity));
                         newParticipants.add(participant);
                         newParticipantsAdded = true;
                     }
-                } else {
-                    ConferenceParticipantConnection connection =
-                            mConferenceParticipantConnections.get(userEntity);
+                } else if (connection.getState() != participant.getState()) {
+                    // Most updates are about one participant; the others are left alone.
                     Log.i(this, "handleConferenceParticipantsUpdate: updateState, participant = %s",
                             participant);
                     connection.updateState(participant.getState());
@@ -791,12 +803,8 @@ public class ImsConference extends Conference {
             // Set state of new participants.
             if (newParticipantsAdded) {
                 // Set the state of the new participants at once and add to the conference
-                for (ConferenceParticipant newParticipant : newParticipants) {
-                    ConferenceParticipantConnection connection =
-                            mConferenceParticipantConnections.get(new Pair<>(
-                                    newParticipant.getHandle(),
-                                    newParticipant.getEndpoint()));
-                    connection.updateState(newParticipant.getState());
+                for (int i = 0; i < newParticipants.size(); i++) {
+                    newConnections.get(i).updateState(newParticipants.get(i).getState());
                 }
             }
 
@@ -836,9 +844,12 @@ public class ImsConference extends Conference {
      * @param parent The connection which was notified of the participant change (e.g. the
      *                         parent connection).
      * @param participant The conference participant information.
+     * @param userEntity The key of the participant, its handle and endpoint.
+     * @return The new connection.
      */
-    private void createConferenceParticipantConnection(
-            TelephonyConnection parent, ConferenceParticipant participant) {
+    private ConferenceParticipantConnection createConferenceParticipantConnection(
+            TelephonyConnection parent, ConferenceParticipant participant,
+            Pair<Uri, Uri> userEntity) {
 
         // Create and add the new connection in holding state so that it does not become the
         // active call.
@@ -851,12 +862,12 @@ public class ImsConference extends Conference {
                 participant, connection);
 
         synchronized(mUpdateSyncRoot) {
-            mConferenceParticipantConnections.put(new Pair<>(participant.getHandle(),
-                    participant.getEndpoint()), connection);
+            mConferenceParticipantConnections.put(userEntity, connection);
         }
         mTelephonyConnectionService.addExistingConnection(mConferenceHostPhoneAccountHandle,
                 connection);
         addConnection(connection);
+        return connection;
     }
 
     /**
@@ -896,65 +907,22 @@ public class ImsConference extends Conference {
     }
 
     /**
-     * Determines if the passed in participant handle is the same as the conference host's handle.
-     * Starts with a simple equality check.  However, the handles from a conference event package
-     * will be a SIP uri, so we need to pull that apart to look for the participant's phone number.
-     *
-     * @param hostHandles The handle(s) of the connection hosting the conference.
-     * @param handle The handle of the conference participant.
-     * @return {@code true} if the host's handle matches the participant's handle, {@code false}
-     *      otherwise.
+     * Determines whether the carrier of {@code phone} keeps the conference host as a participant
+     * when it's in the conference event package. The resource is only read again when the
+     * subscription changes. Must be called with {@link #mUpdateSyncRoot} held.
      */
-    private boolean isParticipantHost(Uri[] hostHandles, Uri handle) {
-        // If there is no host handle or no participant handle, bail early.
-        if (hostHandles == null || hostHandles.length == 0 || handle == null) {
-            Log.v(this, "isParticipantHost(N) : host or participant uri null");
-            return false;
-        }
-
-        // Conference event package participants are identified using SIP URIs (see RFC3261).
-        // A valid SIP uri has the format: sip:user:password@host:port;uri-parameters?headers
-        // Per RFC3261, the "user" can be a telephone number.
-        // For example: sip:1650555121;phone-context=blah.com@host.com
-        // In this case, the phone number is in the user field of the URI, and the parameters can be
-        // ignored.
-        //
-        // A SIP URI can also specify a phone number in a format similar to:
-        // sip:+1-212-555-1212@something.com;user=phone
-        // In this case, the phone number is again in user field and the parameters can be ignored.
-        // We can get the user field in these instances by splitting the string on the @, ;, or :
-        // and looking at the first found item.
-
-        String number = handle.getSchemeSpecificPart();
-        String numberParts[] = number.split("[@;:]");
-
-        if (numberParts.length == 0) {
-            Log.v(this, "isParticipantHost(N) : no number in participant handle");
+    private boolean isHostFilterDisabled(Phone phone) {
+        if (phone == null) {
             return false;
         }
-        number = numberParts[0];
-
-        for (Uri hostHandle : hostHandles) {
-            if (hostHandle == null) {
-                continue;
-            }
-            // The host number will be a tel: uri.  Per RFC3966, the part after tel: is the phone
-            // number.
-            String hostNumber = hostHandle.getSchemeSpecificPart();
-
-            // Use a loose comparison of the phone numbers.  This ensures that numbers that differ
-            // by special characters are counted as equal.
-            // E.g. +16505551212 would be the same as 16505551212
-            boolean isHost = PhoneNumberUtils.compare(hostNumber, number);
-
-            Log.v(this, "isParticipantHost(%s) : host: %s, participant %s", (isHost ? "Y" : "N"),
-                    Log.pii(hostNumber), Log.pii(number));
-
-            if (isHost) {
-                return true;
-            }
+        final int subId = phone.getSubId();
+        if (subId != mDisableHostFilterSubId || !SubscriptionManager.isValidSubscriptionId(subId)) {
+            Context context = phone.getContext();
+            mDisableHostFilter = SubscriptionManager.getResourcesForSubId(context, subId)
+                    .getBoolean(R.bool.disable_filter_out_conference_host);
+            mDisableHostFilterSubId = subId;
         }
-        return false;
+        return mDisableHostFilter;
     }
 
     /**
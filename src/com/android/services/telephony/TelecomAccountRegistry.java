@@ -29,6 +29,8 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
@@ -48,6 +50,7 @@ import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.phone.PhoneGlobals;
@@ -58,6 +61,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 import org.codeaurora.internal.IExtTelephony;
@@ -77,6 +81,10 @@ final class TelecomAccountRegistry {
 
     private static final String APM_SIM_NOT_PWDN_PROPERTY = "persist.radio.apm_sim_not_pwdn";
 
+    // Subscription changes come in bursts while SIMs load; they are reconciled together once
+    // no other change has come for this long.
+    private static final long SUBSCRIPTIONS_CHANGED_DEBOUNCE_MILLIS = 250;
+
     private enum Count {
         ZERO,
         ONE,
@@ -114,10 +122,39 @@ final class TelecomAccountRegistry {
             mPhoneCapabilitiesNotifier.teardown();
         }
 
+        /**
+         * Rebuilds the phone account and registers it again with Telecom if it differs from the
+         * registered one, e.g. because the SIM, its display name or the carrier config changed.
+         *
+         * @return {@code true} if the account was registered again.
+         */
+        boolean updatePstnPhoneAccount() {
+            PhoneAccount account = buildPstnPhoneAccount(mIsEmergency, mIsDummy);
+            if (!registerIfChanged(mTelecomManager, mAccount, account)) {
+                return false;
+            }
+            Log.i(this, "Updated phoneAccount: %s with handle: %s",
+                    account, account.getAccountHandle());
+            mAccount = account;
+            return true;
+        }
+
         /**
          * Registers the specified account with Telecom as a PhoneAccountHandle.
          */
         private PhoneAccount registerPstnPhoneAccount(boolean isEmergency, boolean isDummyAccount) {
+            PhoneAccount account = buildPstnPhoneAccount(isEmergency, isDummyAccount);
+
+            // Register with Telecom and put into the account entry.
+            mTelecomManager.registerPhoneAccount(account);
+
+            return account;
+        }
+
+        /**
+         * Builds the phone account of this entry from the subscription and carrier config.
+         */
+        private PhoneAccount buildPstnPhoneAccount(boolean isEmergency, boolean isDummyAccount) {
             String dummyPrefix = isDummyAccount ? "Dummy " : "";
 
             // Build the Phone account handle.
@@ -266,7 +303,7 @@ final class TelecomAccountRegistry {
                 Log.i(this, "Adding Merged Account with group: " + Log.pii(groupId));
             }
 
-            PhoneAccount account = PhoneAccount.builder(phoneAccountHandle, label)
+            return PhoneAccount.builder(phoneAccountHandle, label)
                     .setAddress(Uri.fromParts(PhoneAccount.SCHEME_TEL, line1Number, null))
                     .setSubscriptionAddress(
                             Uri.fromParts(PhoneAccount.SCHEME_TEL, subNumber, null))
@@ -279,11 +316,6 @@ final class TelecomAccountRegistry {
                     .setExtras(instantLetteringExtras)
                     .setGroupId(groupId)
                     .build();
-
-            // Register with Telecom and put into the account entry.
-            mTelecomManager.registerPhoneAccount(account);
-
-            return account;
         }
 
         public PhoneAccountHandle getPhoneAccountHandle() {
@@ -453,16 +485,59 @@ final class TelecomAccountRegistry {
         }
     }
 
+    /**
+     * Runs an action once no trigger has come for a while, so that a burst of triggers runs it
+     * once.
+     */
+    @VisibleForTesting
+    static final class Debouncer {
+        private final Handler mHandler;
+        private final long mDelayMillis;
+        private final Runnable mAction;
+        /** Number of triggers handled by the action of a later one, on the handler's thread. */
+        private int mCoalesced;
+
+        Debouncer(Handler handler, long delayMillis, Runnable action) {
+            mHandler = handler;
+            mDelayMillis = delayMillis;
+            mAction = action;
+        }
+
+        /**
+         * Runs the action after the delay, unless triggered again before. Must be called on the
+         * handler's thread.
+         */
+        void trigger() {
+            if (mHandler.hasCallbacks(mAction)) {
+                mCoalesced++;
+                mHandler.removeCallbacks(mAction);
+            }
+            mHandler.postDelayed(mAction, mDelayMillis);
+        }
+
+        int getCoalescedCount() {
+            return mCoalesced;
+        }
+    }
+
     private OnSubscriptionsChangedListener mOnSubscriptionsChangedListener =
             new OnSubscriptionsChangedListener() {
         @Override
         public void onSubscriptionsChanged() {
-            // Any time the SubscriptionInfo changes...rerun the setup
-            tearDownAccounts();
-            setupAccounts();
+            // Any time the SubscriptionInfo changes...rerun the setup, once the burst is over.
+            mSubscriptionsChangedDebouncer.trigger();
         }
     };
 
+    private final Debouncer mSubscriptionsChangedDebouncer = new Debouncer(
+            new Handler(Looper.getMainLooper()), SUBSCRIPTIONS_CHANGED_DEBOUNCE_MILLIS,
+            new Runnable() {
+                @Override
+                public void run() {
+                    setupAccounts();
+                }
+            });
+
     private final BroadcastReceiver mUserSwitchedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -473,8 +548,7 @@ final class TelecomAccountRegistry {
             mIsPrimaryUser = UserManager.get(mContext).getPrimaryUser().getUserHandle()
                     .equals(currentUserHandle);
 
-            // Any time the user changes, re-register the accounts.
-            tearDownAccounts();
+            // Any time the user changes, update the accounts.
             setupAccounts();
         }
     };
@@ -484,7 +558,6 @@ final class TelecomAccountRegistry {
         public void onServiceStateChanged(ServiceState serviceState) {
             int newState = serviceState.getState();
             if (newState == ServiceState.STATE_IN_SERVICE && mServiceState != newState) {
-                tearDownAccounts();
                 setupAccounts();
             }
             mServiceState = newState;
@@ -500,6 +573,8 @@ final class TelecomAccountRegistry {
     private Object mAccountsLock = new Object();
     private int mServiceState = ServiceState.STATE_POWER_OFF;
     private boolean mIsPrimaryUser = true;
+    /** Number of account entries kept with an unchanged account, guarded by mAccountsLock. */
+    private int mRegistrationsAvoided;
 
     // TODO: Remove back-pointer from app singleton to Service, since this is not a preferred
     // pattern; redesign. This was added to fix a late release bug.
@@ -691,6 +766,11 @@ final class TelecomAccountRegistry {
         }
     }
 
+    /**
+     * Sets up the account entries for the SIM-based phones. Entries that already exist for a phone
+     * are kept along with their notifiers, and their account is only registered again if it
+     * changed; entries for phones which no longer have an account are torn down.
+     */
     private void setupAccounts() {
         // Go through SIM-based phones and register ourselves -- registering an existing account
         // will cause the existing entry to be replaced.
@@ -703,6 +783,11 @@ final class TelecomAccountRegistry {
         int activeSubscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
 
         synchronized (mAccountsLock) {
+            List<AccountEntry> previousAccounts = new LinkedList<AccountEntry>(mAccounts);
+            mAccounts.clear();
+            int registered = 0;
+            int kept = 0;
+
             if (phoneAccountsEnabled) {
                 // states we are interested in from what
                 // IExtTelephony.getCurrentUiccCardProvisioningStatus()can return
@@ -736,8 +821,18 @@ final class TelecomAccountRegistry {
                             (mSubscriptionManager.isActiveSubId(subscriptionId))) {
                         activeCount++;
                         activeSubscriptionId = subscriptionId;
-                        mAccounts.add(new AccountEntry(phone,
-                                 false /* emergency */, false /* isDummy */));
+                        AccountEntry entry = removeAccountEntry(previousAccounts, phone,
+                                false /* emergency */, false /* isDummy */);
+                        if (entry == null) {
+                            entry = new AccountEntry(phone,
+                                    false /* emergency */, false /* isDummy */);
+                            registered++;
+                        } else if (entry.updatePstnPhoneAccount()) {
+                            registered++;
+                        } else {
+                            kept++;
+                        }
+                        mAccounts.add(entry);
                     }
                 }
             }
@@ -746,15 +841,43 @@ final class TelecomAccountRegistry {
             // for emergency numbers since no actual SIM is needed for dialing emergency
             // numbers but a phone account is.
             if (mAccounts.isEmpty()) {
-                mAccounts.add(new AccountEntry(PhoneFactory.getDefaultPhone(), true /* emergency */,
-                        false /* isDummy */));
+                Phone defaultPhone = PhoneFactory.getDefaultPhone();
+                AccountEntry entry = removeAccountEntry(previousAccounts, defaultPhone,
+                        true /* emergency */, false /* isDummy */);
+                if (entry == null) {
+                    entry = new AccountEntry(defaultPhone, true /* emergency */,
+                            false /* isDummy */);
+                    registered++;
+                } else if (entry.updatePstnPhoneAccount()) {
+                    registered++;
+                } else {
+                    kept++;
+                }
+                mAccounts.add(entry);
             }
 
             // Add a fake account entry.
             if (DBG && phones.length > 0 && "TRUE".equals(System.getProperty("dummy_sim"))) {
-                mAccounts.add(new AccountEntry(phones[0], false /* emergency */,
-                        true /* isDummy */));
+                AccountEntry entry = removeAccountEntry(previousAccounts, phones[0],
+                        false /* emergency */, true /* isDummy */);
+                if (entry == null) {
+                    entry = new AccountEntry(phones[0], false /* emergency */,
+                            true /* isDummy */);
+                } else {
+                    entry.updatePstnPhoneAccount();
+                }
+                mAccounts.add(entry);
             }
+
+            // The entries left weren't wanted any more.
+            for (AccountEntry entry : previousAccounts) {
+                entry.teardown();
+            }
+            mRegistrationsAvoided += kept;
+            Log.i(this, "setupAccounts: registered %d, kept %d, removed %d; %d registrations"
+                    + " avoided, %d subscription changes coalesced so far.", registered, kept,
+                    previousAccounts.size(), mRegistrationsAvoided,
+                    mSubscriptionsChangedDebouncer.getCoalescedCount());
         }
 
         // Clean up any PhoneAccounts that are no longer relevant
@@ -794,6 +917,102 @@ final class TelecomAccountRegistry {
         }
     }
 
+    /**
+     * Removes the entry of {@code phone} with the given kind from {@code accounts}.
+     *
+     * @return the removed entry, or {@code null} if there is none.
+     */
+    private static AccountEntry removeAccountEntry(List<AccountEntry> accounts, Phone phone,
+            boolean isEmergency, boolean isDummy) {
+        Iterator<AccountEntry> iterator = accounts.iterator();
+        while (iterator.hasNext()) {
+            AccountEntry entry = iterator.next();
+            if (entry.mPhone == phone && entry.mIsEmergency == isEmergency
+                    && entry.mIsDummy == isDummy) {
+                iterator.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers {@code account} with Telecom unless registering it would change nothing after
+     * {@code registered} was registered.
+     *
+     * @param registered the account registered before, or {@code null} if there is none.
+     * @return {@code true} if {@code account} was registered.
+     */
+    @VisibleForTesting
+    static boolean registerIfChanged(TelecomManager telecomManager, PhoneAccount registered,
+            PhoneAccount account) {
+        if (isSamePhoneAccount(registered, account)) {
+            return false;
+        }
+        telecomManager.registerPhoneAccount(account);
+        return true;
+    }
+
+    /**
+     * Determines whether registering {@code account} would change nothing for Telecom after
+     * {@code registered} was registered.
+     */
+    private static boolean isSamePhoneAccount(PhoneAccount registered, PhoneAccount account) {
+        return registered != null
+                && Objects.equals(registered.getAccountHandle(), account.getAccountHandle())
+                && TextUtils.equals(registered.getLabel(), account.getLabel())
+                && TextUtils.equals(registered.getShortDescription(),
+                        account.getShortDescription())
+                && Objects.equals(registered.getAddress(), account.getAddress())
+                && Objects.equals(registered.getSubscriptionAddress(),
+                        account.getSubscriptionAddress())
+                && registered.getCapabilities() == account.getCapabilities()
+                && registered.getHighlightColor() == account.getHighlightColor()
+                && Objects.equals(registered.getSupportedUriSchemes(),
+                        account.getSupportedUriSchemes())
+                && Objects.equals(registered.getGroupId(), account.getGroupId())
+                && isSameExtras(registered.getExtras(), account.getExtras())
+                && isSameIcon(registered.getIcon(), account.getIcon());
+    }
+
+    /**
+     * Compares the icons by content. The SIM icon is drawn from the carrier's bitmap as well as
+     * the highlight color, so it can change on its own.
+     */
+    private static boolean isSameIcon(Icon registered, Icon icon) {
+        if (registered == null || icon == null) {
+            return registered == icon;
+        }
+        if (registered.getType() != icon.getType()) {
+            return false;
+        }
+        switch (icon.getType()) {
+            case Icon.TYPE_BITMAP:
+                return registered.getBitmap().sameAs(icon.getBitmap());
+            case Icon.TYPE_RESOURCE:
+                return registered.getResId() == icon.getResId()
+                        && TextUtils.equals(registered.getResPackage(), icon.getResPackage());
+            default:
+                // Not built by this class; registering again is always correct.
+                return false;
+        }
+    }
+
+    private static boolean isSameExtras(Bundle registered, Bundle extras) {
+        if (registered == null || extras == null) {
+            return registered == extras;
+        }
+        if (!registered.keySet().equals(extras.keySet())) {
+            return false;
+        }
+        for (String key : registered.keySet()) {
+            if (!Objects.equals(registered.get(key), extras.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean isNonSimAccountFound() {
         final Iterator<PhoneAccountHandle> phoneAccounts =
                 mTelecomManager.getCallCapablePhoneAccounts().listIterator();
@@ -845,13 +1064,4 @@ final class TelecomAccountRegistry {
         }
         return null;
     }
-
-    private void tearDownAccounts() {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                entry.teardown();
-            }
-            mAccounts.clear();
-        }
-    }
 }
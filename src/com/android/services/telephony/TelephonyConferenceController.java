@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -68,6 +69,16 @@ final class TelephonyConferenceController {
     /** The known connections. */
     private final List<TelephonyConnection> mTelephonyConnections = new ArrayList<>();
 
+    /** Sets the conferenceable connections of the known connections when they change. */
+    private final ConferenceableTracker<Connection> mConferenceableTracker =
+            new ConferenceableTracker<>(new ConferenceableTracker.Listener<Connection>() {
+                @Override
+                public void onConferenceablesChanged(Connection connection,
+                        List<Connection> conferenceables) {
+                    connection.setConferenceableConnections(conferenceables);
+                }
+            });
+
     private final TelephonyConnectionService mConnectionService;
     private boolean mTriggerRecalculate = false;
 
@@ -104,6 +115,7 @@ final class TelephonyConferenceController {
         }
         connection.removeConnectionListener(mConnectionListener);
         mTelephonyConnections.remove(connection);
+        mConferenceableTracker.forget(connection);
         recalculate();
     }
 
@@ -123,10 +135,13 @@ final class TelephonyConferenceController {
 
     /**
      * Calculates the conference-capable state of all GSM connections in this connection service.
+     * Only the connections, and the conference, whose conferenceable connections changed are
+     * updated, since each update is sent to Telecom.
      */
     private void recalculateConferenceable() {
         Log.v(this, "recalculateConferenceable : %d", mTelephonyConnections.size());
-        HashSet<Connection> conferenceableConnections = new HashSet<>(mTelephonyConnections.size());
+        LinkedHashSet<Connection> conferenceableConnections =
+                new LinkedHashSet<>(mTelephonyConnections.size());
 
         // Loop through and collect all calls which are active or holding
         for (TelephonyConnection connection : mTelephonyConnections) {
@@ -144,22 +159,15 @@ final class TelephonyConferenceController {
                         break;
                 }
             }
-
-            connection.setConferenceableConnections(Collections.<Connection>emptyList());
         }
 
         Log.v(this, "conferenceable: " + conferenceableConnections.size());
 
-        // Go through all the conferenceable connections and add all other conferenceable
-        // connections that is not the connection itself
-        for (Connection c : conferenceableConnections) {
-            List<Connection> connections = conferenceableConnections
-                    .stream()
-                    // Filter out this connection from the list of connections
-                    .filter(connection -> c != connection)
-                    .collect(Collectors.toList());
-            c.setConferenceableConnections(connections);
-        }
+        // Each conferenceable connection is conferenceable with all other conferenceable
+        // connections that are not the connection itself, and the others with none.
+        mConferenceableTracker.update(
+                Collections.<Connection>unmodifiableList(mTelephonyConnections),
+                conferenceableConnections);
 
         // Set the conference as conferenceable with all of the connections that are not in the
         // conference.
@@ -170,7 +178,12 @@ final class TelephonyConferenceController {
                     // conferences).
                     .filter(c -> c.isConferenceSupported() && c.getConference() == null)
                     .collect(Collectors.toList());
-            mTelephonyConference.setConferenceableConnections(nonConferencedConnections);
+            List<Connection> currentConnections =
+                    mTelephonyConference.getConferenceableConnections();
+            if (nonConferencedConnections.size() != currentConnections.size()
+                    || !currentConnections.containsAll(nonConferencedConnections)) {
+                mTelephonyConference.setConferenceableConnections(nonConferencedConnections);
+            }
         }
         // TODO: Do not allow conferencing of already conferenced connections.
     }
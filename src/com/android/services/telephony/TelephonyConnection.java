@@ -55,6 +55,7 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.imsphone.ImsPhone;
 import com.android.internal.telephony.imsphone.ImsPhoneCallTracker;
 import com.android.internal.telephony.SubscriptionController;
+import com.android.phone.EmergencyNumberClassifier;
 import com.android.phone.ImsUtil;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
@@ -529,6 +530,7 @@ abstract class TelephonyConnection extends Connection {
     public void onDisconnect() {
         Log.v(this, "onDisconnect");
         PhoneNumberUtils.resetCountryDetectorInfo();
+        EmergencyNumberClassifier.resetInstance();
         hangup(android.telephony.DisconnectCause.LOCAL);
     }
 
@@ -829,7 +831,8 @@ abstract class TelephonyConnection extends Connection {
                 setCallerDisplayName(name, namePresentation);
             }
 
-            if (PhoneUtils.isEmergencyNumber(mOriginalConnection.getAddress())) {
+            if (phone != null && PhoneUtils.isEmergencyNumber(phone.getContext(),
+                    mOriginalConnection.getAddress())) {
                 mTreatAsEmergencyCall = true;
             }
 
@@ -883,7 +886,8 @@ abstract class TelephonyConnection extends Connection {
             mHandler.obtainMessage(MSG_CONNECTION_EXTRAS_CHANGED, connExtras == null ? null :
                     new Bundle(connExtras)).sendToTarget();
 
-        if (PhoneUtils.isEmergencyNumber(mOriginalConnection.getAddress())) {
+        if (PhoneUtils.isEmergencyNumber(getPhone().getContext(),
+                mOriginalConnection.getAddress())) {
             mTreatAsEmergencyCall = true;
         }
 
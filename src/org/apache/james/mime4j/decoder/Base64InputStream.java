@@ -33,11 +33,21 @@ import java.io.InputStream;
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
     private final InputStream s;
-    private int outCount = 0;
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inputIndex = 0;
+    private int inputCount = 0;
+    // Decoded bytes that did not fit in the caller's buffer
+    private final byte[] outputBuffer = new byte[3];
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
+    private int outCount = 0;
+    // Sextets of the current, incomplete quantum
+    private int quantum = 0;
+    private int quantumCount = 0;
+    // Last complete quantum, see the handling of '=' in decode()
+    private int lastQuantum = 0;
     private boolean done = false;
 
     public Base64InputStream(InputStream s) {
@@ -57,75 +67,116 @@ public class Base64InputStream extends InputStream {
     @Override
     public int read() throws IOException {
         if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
+            outIndex = 0;
+            outCount = 0;
+            outCount = decode(outputBuffer, 0, outputBuffer.length);
+            if (outCount == 0) {
                 return -1;
             }
         }
 
-        return outputBuffer[outIndex++];
+        return outputBuffer[outIndex++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (outIndex < outCount && n < len) {
+            b[off + n++] = outputBuffer[outIndex++];
+        }
+        if (n < len) {
+            outIndex = 0;
+            outCount = 0;
+            n += decode(b, off + n, len - n);
+        }
+        return n == 0 ? -1 : n;
     }
 
     /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
+     * Decodes up to {@code len} bytes into {@code b}. Bytes of the last quantum that do not fit
+     * are kept in the output buffer, which must be empty. The underlying stream is only read
+     * again if nothing has been decoded yet, so this does not block once data is available.
+     *
+     * @return the number of bytes written to {@code b}, 0 at the end of the data.
      */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
-        outIndex = 0;
-        int inCount = 0;
-
-        int i;
+    private int decode(byte[] b, int off, int len) throws IOException {
+        final byte[] in = inputBuffer;
+        final int end = off + len;
+        int pos = off;
         // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
-                    // once we meet the first '=', avoid reading the second '='
-                    done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
-                    }
+        while (pos < end && !done) {
+            if (inputIndex == inputCount) {
+                if (pos > off || !fillInputBuffer()) {
+                    // No more input - just return, let outputBuffer drain out
                     break;
+                }
+            }
+            int i = in[inputIndex++] & 0xFF;
+            if (i == '=') {
+                // once we meet the first '=', avoid reading the second '='
+                done = true;
+                if (quantumCount == 3) {
+                    pos = enqueue(b, pos, end, quantum << 6, 2);
+                } else if (quantumCount == 2) {
+                    pos = enqueue(b, pos, end, quantum << 12, 1);
+                } else {
+                    // Malformed input. The per-byte decoder this replaced still emitted one byte
+                    // here, filling the missing sextets from the previous quantum; keep doing so.
+                    int accum = quantumCount == 1
+                            ? (quantum << 18) | (lastQuantum & 0x3FFFF) : lastQuantum;
+                    pos = enqueue(b, pos, end, accum, 1);
+                }
+                break;
+            }
+            byte sX = TRANSLATION[i];
+            if (sX < 0) continue;
+            quantum = (quantum << 6) | sX;
+            if (++quantumCount == 4) {
+                // Straight-through operation for the most common case of a full quantum
+                if (end - pos >= 3) {
+                    b[pos++] = (byte) (quantum >> 16);
+                    b[pos++] = (byte) (quantum >> 8);
+                    b[pos++] = (byte) quantum;
+                } else {
+                    pos = enqueue(b, pos, end, quantum, 3);
+                }
+                lastQuantum = quantum;
+                quantum = 0;
+                quantumCount = 0;
             }
         }
+        return pos - off;
     }
 
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
+    private int enqueue(byte[] b, int pos, int end, int accum, int count) {
+        for (int i = 0; i < count; i++) {
+            byte value = (byte) (accum >> (16 - 8 * i));
+            if (pos < end) {
+                b[pos++] = value;
+            } else {
+                outputBuffer[outCount++] = value;
+            }
+        }
+        return pos;
+    }
 
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
+    private boolean fillInputBuffer() throws IOException {
+        int count;
+        do {
+            count = s.read(inputBuffer, 0, inputBuffer.length);
+        } while (count == 0);
+        if (count < 0) {
+            return false;
         }
+        inputIndex = 0;
+        inputCount = count;
+        return true;
     }
 
     private static byte[] TRANSLATION = {
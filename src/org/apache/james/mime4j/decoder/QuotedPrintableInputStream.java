@@ -37,10 +37,15 @@ import org.apache.james.mime4j.LogFactory;
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
     
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
     private InputStream stream;
     ByteQueue byteq = new ByteQueue();
     ByteQueue pushbackq = new ByteQueue();
     private byte state = 0;
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inputIndex = 0;
+    private int inputCount = 0;
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -68,6 +73,68 @@ public class QuotedPrintableInputStream extends InputStream {
         }
     }
 
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len) {
+            if (byteq.count() == 0 && pushbackq.count() == 0 && state == 0) {
+                // Fast path: outside of an escape sequence, anything but '=' and whitespace
+                // decodes to itself, so copy it straight out of the input buffer.
+                final byte[] in = inputBuffer;
+                int i = inputIndex;
+                final int limit = Math.min(inputCount, i + len - n);
+                while (i < limit) {
+                    byte c = in[i];
+                    if (c == '=' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                        break;
+                    }
+                    b[off + n++] = c;
+                    i++;
+                }
+                inputIndex = i;
+                if (n == len) {
+                    break;
+                }
+            }
+            if (n > 0 && byteq.count() == 0 && pushbackq.count() == 0
+                    && inputIndex == inputCount) {
+                // Don't block on the underlying stream once there is data to return.
+                break;
+            }
+            fillBuffer();
+            if (byteq.count() == 0) {
+                break;
+            }
+            while (byteq.count() > 0 && n < len) {
+                b[off + n++] = byteq.dequeue();
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /**
+     * Returns the next byte of the underlying stream, which is read in blocks.
+     */
+    private int readInput() throws IOException {
+        if (inputIndex == inputCount) {
+            int count;
+            do {
+                count = stream.read(inputBuffer, 0, inputBuffer.length);
+            } while (count == 0);
+            if (count < 0) {
+                return -1;
+            }
+            inputIndex = 0;
+            inputCount = count;
+        }
+        return inputBuffer[inputIndex++] & 0xFF;
+    }
+
     /**
      * Pulls bytes out of the underlying stream and places them in the
      * pushback queue.  This is necessary (vs. reading from the
@@ -84,7 +151,7 @@ public class QuotedPrintableInputStream extends InputStream {
             return;
 
         while (true) {
-            int i = stream.read();
+            int i = readInput();
             switch (i) {
                 case -1:
                     // stream is done
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.PersistableBundle;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class CarrierConfigFileTest extends AndroidTestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "carrierconfig-test.cfg");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testWriteRead() throws IOException {
+        PersistableBundle config = createConfig(400);
+        CarrierConfigFile.write(mFile, "12", config);
+
+        PersistableBundle restored = CarrierConfigFile.read(mFile, "12");
+
+        assertNotNull(restored);
+        assertEquals(config.size(), restored.size());
+        assertEquals(true, restored.getBoolean("bool_0"));
+        assertEquals(3, restored.getInt("int_3"));
+        assertEquals("value_6", restored.getString("string_6"));
+        assertTrue(Arrays.equals(new String[] {"a", "b9"}, restored.getStringArray("array_9")));
+        assertEquals(7, restored.getPersistableBundle("bundle_7").getInt("nested"));
+    }
+
+    public void testRead_missingFile() {
+        assertNull(CarrierConfigFile.read(mFile, "12"));
+    }
+
+    public void testRead_versionMismatch() throws IOException {
+        CarrierConfigFile.write(mFile, "12", createConfig(10));
+
+        assertNull(CarrierConfigFile.read(mFile, "13"));
+    }
+
+    public void testRead_corruptedPayload() throws IOException {
+        CarrierConfigFile.write(mFile, "12", createConfig(10));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xff);
+        }
+
+        assertNull(CarrierConfigFile.read(mFile, "12"));
+    }
+
+    public void testRead_truncated() throws IOException {
+        CarrierConfigFile.write(mFile, "12", createConfig(10));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+
+        assertNull(CarrierConfigFile.read(mFile, "12"));
+    }
+
+    /**
+     * Creates a bundle with {@code size} keys of the types carrier configs use.
+     */
+    private static PersistableBundle createConfig(int size) {
+        PersistableBundle config = new PersistableBundle();
+        for (int i = 0; i < size; i++) {
+            switch (i % 5) {
+                case 0:
+                    config.putBoolean("bool_" + i, true);
+                    break;
+                case 1:
+                    config.putString("string_" + i, "value_" + i);
+                    break;
+                case 2:
+                    PersistableBundle nested = new PersistableBundle();
+                    nested.putInt("nested", i);
+                    config.putPersistableBundle("bundle_" + i, nested);
+                    break;
+                case 3:
+                    config.putInt("int_" + i, i);
+                    break;
+                case 4:
+                    config.putStringArray("array_" + i, new String[] {"a", "b" + i});
+                    break;
+            }
+        }
+        return config;
+    }
+}
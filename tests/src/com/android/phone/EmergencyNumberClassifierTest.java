@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class EmergencyNumberClassifierTest extends TestCase {
+
+    /**
+     * Answers from a set of emergency numbers, and counts the queries, which would be binder calls.
+     */
+    private static class FakeSource implements EmergencyNumberClassifier.Source {
+        String eccLists = "112,911;";
+        Set<String> emergencyNumbers = new HashSet<>();
+        int queries;
+
+        FakeSource(String... emergencyNumbers) {
+            for (String number : emergencyNumbers) {
+                this.emergencyNumbers.add(number);
+            }
+        }
+
+        @Override
+        public String getEccLists() {
+            return eccLists;
+        }
+
+        @Override
+        public boolean query(String address, int check) {
+            queries++;
+            return emergencyNumbers.contains(address);
+        }
+    }
+
+    private FakeSource mSource;
+    private EmergencyNumberClassifier mClassifier;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSource = new FakeSource("911");
+        mClassifier = new EmergencyNumberClassifier(mSource);
+        mClassifier.onCountryChanged("us");
+    }
+
+    public void testAnswersAreRemembered() {
+        assertTrue(mClassifier.isLocalEmergencyNumber("911"));
+        assertFalse(mClassifier.isLocalEmergencyNumber("000"));
+        assertEquals(2, mSource.queries);
+
+        assertTrue(mClassifier.isLocalEmergencyNumber("911"));
+        assertFalse(mClassifier.isLocalEmergencyNumber("000"));
+        assertEquals(2, mSource.queries);
+
+        // Each check is made once.
+        assertTrue(mClassifier.isPotentialLocalEmergencyNumber("911"));
+        assertTrue(mClassifier.isEmergencyNumber("911"));
+        assertEquals(4, mSource.queries);
+    }
+
+    public void testCountryChange() {
+        assertFalse(mClassifier.isLocalEmergencyNumber("000"));
+
+        // Roaming into Australia.
+        mSource.emergencyNumbers.add("000");
+        mClassifier.onCountryChanged("au");
+
+        assertTrue(mClassifier.isLocalEmergencyNumber("000"));
+    }
+
+    public void testSameCountry() {
+        assertFalse(mClassifier.isLocalEmergencyNumber("000"));
+        mClassifier.onCountryChanged("us");
+        assertFalse(mClassifier.isLocalEmergencyNumber("000"));
+        assertEquals(1, mSource.queries);
+    }
+
+    public void testEccListChange() {
+        assertFalse(mClassifier.isEmergencyNumber("110"));
+
+        mSource.emergencyNumbers.add("110");
+        mSource.eccLists = "112,911;110";
+
+        assertTrue(mClassifier.isEmergencyNumber("110"));
+    }
+
+    public void testReset() {
+        // As on a SIM or default voice subscription change.
+        assertFalse(mClassifier.isPotentialLocalEmergencyNumber("11"));
+
+        mSource.emergencyNumbers.add("11");
+        mClassifier.reset();
+
+        assertTrue(mClassifier.isPotentialLocalEmergencyNumber("11"));
+    }
+
+    public void testCountryNotFollowed_negativeAnswersNotRemembered() {
+        final FakeSource source = new FakeSource("911");
+        final EmergencyNumberClassifier classifier = new EmergencyNumberClassifier(source);
+
+        assertFalse(classifier.isLocalEmergencyNumber("000"));
+        assertFalse(classifier.isLocalEmergencyNumber("000"));
+        assertEquals(2, source.queries);
+
+        assertTrue(classifier.isLocalEmergencyNumber("911"));
+        assertTrue(classifier.isLocalEmergencyNumber("911"));
+        assertEquals(3, source.queries);
+    }
+
+    public void testNull() {
+        assertFalse(mClassifier.isLocalEmergencyNumber(null));
+        assertFalse(mClassifier.isLocalEmergencyNumber(null));
+        assertEquals(2, mSource.queries);
+    }
+
+    /**
+     * The lookups of a call's number as its state changes are answered without a query once the
+     * first answer is known.
+     */
+    public void testRepeatedLookups_hitCache() {
+        for (int i = 0; i < 10; i++) {
+            assertFalse(mClassifier.isLocalEmergencyNumber("6505551212"));
+            assertTrue(mClassifier.isLocalEmergencyNumber("911"));
+        }
+        assertEquals(2, mSource.queries);
+    }
+}
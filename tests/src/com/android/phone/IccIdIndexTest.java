@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class IccIdIndexTest extends TestCase {
+
+    private static final String ICC_ID_1 = "89014103211118510720";
+    private static final String ICC_ID_2 = "89014103211118510721";
+    private static final String ICC_ID_3 = "89014103211118510722";
+
+    /**
+     * The SIMs of the phones, by phone id. Counts the ICC id reads.
+     */
+    private static class FakeIccIdSource implements IccIdIndex.IccIdSource {
+        String[] iccIds;
+        int reads;
+
+        FakeIccIdSource(String... iccIds) {
+            this.iccIds = iccIds;
+        }
+
+        @Override
+        public int getPhoneCount() {
+            return iccIds.length;
+        }
+
+        @Override
+        public String getIccId(int phoneId) {
+            reads++;
+            return iccIds[phoneId];
+        }
+    }
+
+    public void testGetPhoneId() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, null, ICC_ID_2);
+        final IccIdIndex index = new IccIdIndex(source);
+
+        assertEquals(0, index.getPhoneId(ICC_ID_1));
+        assertEquals(2, index.getPhoneId(ICC_ID_2));
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(ICC_ID_3));
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(""));
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(null));
+        assertEquals(2, index.getSnapshot().size());
+    }
+
+    public void testGetPhoneId_hitReadsNoPhone() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, ICC_ID_2, ICC_ID_3);
+        final IccIdIndex index = new IccIdIndex(source);
+        index.getSnapshot();
+
+        source.reads = 0;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(2, index.getPhoneId(ICC_ID_3));
+        }
+        assertEquals(0, source.reads);
+    }
+
+    public void testGetPhoneId_missKeepsTheIndex() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, ICC_ID_2);
+        final IccIdIndex index = new IccIdIndex(source);
+        final IccIdIndex.Snapshot snapshot = index.getSnapshot();
+
+        // A SIM which isn't in the index may have been inserted since, so every phone is asked.
+        source.reads = 0;
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(ICC_ID_3));
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(ICC_ID_3));
+        assertEquals(4, source.reads);
+        // Nothing changed, so the index the other lookups use is kept.
+        assertSame(snapshot, index.getSnapshot());
+    }
+
+    public void testGetPhoneId_hotSwapBeforeInvalidate() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, ICC_ID_2);
+        final IccIdIndex index = new IccIdIndex(source);
+        assertEquals(1, index.getPhoneId(ICC_ID_2));
+
+        // The SIM of the second phone is swapped, and the broadcast didn't come yet.
+        source.iccIds = new String[] {ICC_ID_1, ICC_ID_3};
+
+        // The new SIM is found, and the index is replaced.
+        assertEquals(1, index.getPhoneId(ICC_ID_3));
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(ICC_ID_2));
+    }
+
+    public void testGetPhoneId_insertedBeforeInvalidate() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, null);
+        final IccIdIndex index = new IccIdIndex(source);
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(ICC_ID_2));
+
+        // A SIM is inserted in the second phone, and the broadcast didn't come yet.
+        source.iccIds = new String[] {ICC_ID_1, ICC_ID_2};
+
+        assertEquals(1, index.getPhoneId(ICC_ID_2));
+        // The index was replaced, so the SIM is found without asking the phones.
+        source.reads = 0;
+        assertEquals(1, index.getPhoneId(ICC_ID_2));
+        assertEquals(0, source.reads);
+    }
+
+    public void testGetPhoneId_hotSwapInvalidated() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, null);
+        final IccIdIndex index = new IccIdIndex(source);
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX, index.getPhoneId(ICC_ID_2));
+
+        source.iccIds = new String[] {ICC_ID_1, ICC_ID_2};
+        index.invalidate();
+
+        assertEquals(1, index.getPhoneId(ICC_ID_2));
+    }
+
+    public void testGetPhoneId_reordered() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, ICC_ID_2);
+        final IccIdIndex index = new IccIdIndex(source);
+        assertEquals(0, index.getPhoneId(ICC_ID_1));
+        assertEquals(1, index.getPhoneId(ICC_ID_2));
+
+        // The SIMs are moved to the other slots.
+        source.iccIds = new String[] {ICC_ID_2, ICC_ID_1};
+        index.invalidate();
+
+        assertEquals(1, index.getPhoneId(ICC_ID_1));
+        assertEquals(0, index.getPhoneId(ICC_ID_2));
+    }
+
+    public void testGetSnapshot_consistentAfterInvalidate() {
+        final FakeIccIdSource source = new FakeIccIdSource(ICC_ID_1, ICC_ID_2);
+        final IccIdIndex index = new IccIdIndex(source);
+        final IccIdIndex.Snapshot snapshot = index.getSnapshot();
+        assertSame(snapshot, index.getSnapshot());
+
+        source.iccIds = new String[] {ICC_ID_3};
+        index.invalidate();
+
+        // A snapshot taken before isn't changed.
+        assertEquals(1, snapshot.getPhoneId(ICC_ID_2));
+        assertEquals(SubscriptionManager.INVALID_PHONE_INDEX,
+                index.getSnapshot().getPhoneId(ICC_ID_2));
+        assertEquals(0, index.getSnapshot().getPhoneId(ICC_ID_3));
+    }
+}
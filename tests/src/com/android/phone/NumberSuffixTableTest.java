@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.phone.CallerInfoCache.CacheEntry;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class NumberSuffixTableTest extends TestCase {
+
+    public void testPackSuffix_matchesNormalizedSuffix() {
+        final long key = NumberSuffixTable.packNormalizedSuffix("+16505551234");
+        assertEquals(key, NumberSuffixTable.packSuffix("+1 (650) 555-1234"));
+        assertEquals(key, NumberSuffixTable.packSuffix("650.555.1234"));
+        assertEquals(key, NumberSuffixTable.packSuffix("5551234"));
+        assertEquals(key, NumberSuffixTable.packNormalizedSuffix("5551234"));
+        assertFalse(key == NumberSuffixTable.packSuffix("6505551235"));
+    }
+
+    public void testPackSuffix_needsNormalization() {
+        assertEquals(NumberSuffixTable.NEEDS_NORMALIZATION,
+                NumberSuffixTable.packSuffix("1-800-FLOWERS"));
+        assertEquals(NumberSuffixTable.NEEDS_NORMALIZATION, NumberSuffixTable.packSuffix("911"));
+        // Letters before the last 7 digits don't change the suffix.
+        assertEquals(NumberSuffixTable.packNormalizedSuffix("5551234"),
+                NumberSuffixTable.packSuffix("CALL 555-1234"));
+    }
+
+    public void testPackNormalizedSuffix_shortNumbers() {
+        assertFalse(NumberSuffixTable.packNormalizedSuffix("911")
+                == NumberSuffixTable.packNormalizedSuffix("0000911"));
+        assertFalse(NumberSuffixTable.packNormalizedSuffix("+1234")
+                == NumberSuffixTable.packNormalizedSuffix("1234"));
+        assertEquals(0, NumberSuffixTable.packNormalizedSuffix(""));
+    }
+
+    public void testGetNumber_prefersSendToVoicemail() {
+        final long key = NumberSuffixTable.packNormalizedSuffix("5551234");
+        final NumberSuffixTable table = new NumberSuffixTable(1);
+        table.addNumber(key, 1, "first", false);
+        table.addNumber(key, 2, "second", false);
+        assertEquals("first", table.getNumber(key).customRingtone);
+
+        table.addNumber(key, 3, "voicemail", true);
+        assertTrue(table.getNumber(key).sendToVoicemail);
+        assertEquals(1, table.size());
+        assertNull(table.getNumber(NumberSuffixTable.packNormalizedSuffix("5551235")));
+    }
+
+    public void testCopyWithoutContacts_keepsCollidingContacts() {
+        final long key = NumberSuffixTable.packNormalizedSuffix("+16505551234");
+        final long otherKey = NumberSuffixTable.packNormalizedSuffix("+16505550000");
+        final NumberSuffixTable table = new NumberSuffixTable(2);
+        table.addNumber(key, 1, "ringtone", false);
+        table.addNumber(key, 2, null, true);
+        table.addNumber(otherKey, 2, null, true);
+        table.addAddress("alice@example.com", 2, "sip", false);
+
+        final NumberSuffixTable copy = table.copyWithoutContacts(new long[] {2}, 0);
+
+        final CacheEntry entry = copy.getNumber(key);
+        assertEquals("ringtone", entry.customRingtone);
+        assertFalse(entry.sendToVoicemail);
+        assertNull(copy.getNumber(otherKey));
+        assertNull(copy.getAddress("alice@example.com"));
+        assertEquals(1, copy.size());
+        // The original is not modified.
+        assertTrue(table.getNumber(key).sendToVoicemail);
+        assertEquals("sip", table.getAddress("alice@example.com").customRingtone);
+    }
+
+    public void testAddNumber_grows() {
+        final int count = 50000;
+        final NumberSuffixTable table = new NumberSuffixTable(0);
+        for (int i = 0; i < count; i++) {
+            table.addNumber(NumberSuffixTable.packNormalizedSuffix(
+                    String.valueOf(6500000000L + i * 7919L)), i, "ringtone" + i, false);
+        }
+        assertEquals(count, table.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("ringtone" + i, table.getNumber(NumberSuffixTable.packSuffix(
+                    String.valueOf(6500000000L + i * 7919L))).customRingtone);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SubscriptionStateCacheTest extends TestCase {
+
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+    private static final int NO_PHONE_SUB_ID = 3;
+
+    /**
+     * Loads the current value of a subscription, and counts the loads.
+     */
+    private static class FakeLoader implements SubscriptionStateCache.Loader<String> {
+        String value = "a";
+        int loads;
+        /** Run while loading, as if the state changed meanwhile. */
+        Runnable duringLoad;
+
+        @Override
+        public String load(int subId) {
+            loads++;
+            if (duringLoad != null) {
+                Runnable r = duringLoad;
+                duringLoad = null;
+                r.run();
+            }
+            return subId == NO_PHONE_SUB_ID ? null : value + subId;
+        }
+    }
+
+    private FakeLoader mLoader;
+    private SubscriptionStateCache<String> mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLoader = new FakeLoader();
+        mCache = new SubscriptionStateCache<>(mLoader);
+    }
+
+    public void testGet_loadsOnce() {
+        assertEquals("a1", mCache.get(SUB_ID));
+        assertEquals("a1", mCache.get(SUB_ID));
+        assertEquals("a2", mCache.get(OTHER_SUB_ID));
+        assertEquals("a2", mCache.get(OTHER_SUB_ID));
+
+        assertEquals(2, mLoader.loads);
+        assertEquals(2, mCache.getHits());
+        assertEquals(2, mCache.getMisses());
+    }
+
+    public void testInvalidate() {
+        assertEquals("a1", mCache.get(SUB_ID));
+        assertEquals("a2", mCache.get(OTHER_SUB_ID));
+
+        mLoader.value = "b";
+        mCache.invalidate();
+
+        assertEquals("b1", mCache.get(SUB_ID));
+        assertEquals("b2", mCache.get(OTHER_SUB_ID));
+        assertEquals(4, mLoader.loads);
+    }
+
+    public void testInvalidate_whileLoading() {
+        mLoader.duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                mLoader.value = "b";
+                mCache.invalidate();
+            }
+        };
+
+        // The caller gets what was loaded, but it isn't served again.
+        assertEquals("b1", mCache.get(SUB_ID));
+        mLoader.value = "c";
+        assertEquals("c1", mCache.get(SUB_ID));
+        assertEquals("c1", mCache.get(SUB_ID));
+        assertEquals(2, mLoader.loads);
+    }
+
+    public void testGet_notCachedWithoutPhone() {
+        assertNull(mCache.get(NO_PHONE_SUB_ID));
+        assertNull(mCache.get(NO_PHONE_SUB_ID));
+        assertEquals(2, mLoader.loads);
+        assertEquals(0, mCache.getHits());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store;
+
+import static org.mockito.Mockito.mock;
+
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+
+public class ImapConnectionPoolTest extends AndroidTestCase {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long WAIT_MILLIS = 5000;
+
+    private static final ImapConnectionPool.Key KEY = new ImapConnectionPool.Key(
+            "user", "password", "imap.example.com", 993, ImapStore.FLAG_SSL, null);
+    private static final ImapConnectionPool.Key OTHER_KEY = new ImapConnectionPool.Key(
+            "other", "password", "imap.example.com", 993, ImapStore.FLAG_SSL, null);
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    private ImapConnectionPool mPool;
+    private ImapStore mStore;
+
+    /**
+     * A logged in connection, until it is closed.
+     */
+    private static class PooledConnection extends ScriptedImapConnection {
+
+        volatile boolean mOpen = true;
+        volatile boolean mClosed;
+
+        PooledConnection(ImapStore store) {
+            super(store, command -> "");
+        }
+
+        @Override
+        boolean isOpen() {
+            return mOpen;
+        }
+
+        @Override
+        void close() {
+            mOpen = false;
+            mClosed = true;
+            super.close();
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getContext(), getClass());
+        mStore = mock(ImapStore.class);
+        mPool = new ImapConnectionPool();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mPool.closeAll();
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testAcquire_reusesReleasedConnection() {
+        PooledConnection connection = new PooledConnection(mStore);
+        mPool.release(KEY, connection, IDLE_TIMEOUT_MILLIS);
+
+        assertSame(connection, mPool.acquire(KEY, mStore));
+        // Checked once before it was handed out, and handed out only once.
+        assertEquals(1, connection.countCommands(ImapConstants.NOOP));
+        assertNull(mPool.acquire(KEY, mStore));
+        assertFalse(connection.mClosed);
+    }
+
+    public void testAcquire_otherAccount() {
+        mPool.release(KEY, new PooledConnection(mStore), IDLE_TIMEOUT_MILLIS);
+
+        assertNull(mPool.acquire(OTHER_KEY, mStore));
+    }
+
+    public void testAcquire_staleConnectionIsClosed() {
+        PooledConnection connection = new PooledConnection(mStore);
+        mPool.release(KEY, connection, IDLE_TIMEOUT_MILLIS);
+        // The server dropped it while it was idle.
+        connection.mOpen = false;
+
+        assertNull(mPool.acquire(KEY, mStore));
+        assertTrue(connection.mClosed);
+    }
+
+    public void testRelease_noIdleTimeout() {
+        PooledConnection connection = new PooledConnection(mStore);
+        mPool.release(KEY, connection, 0);
+
+        assertTrue(connection.mClosed);
+        assertNull(mPool.acquire(KEY, mStore));
+        assertNull(mPool.getThread());
+    }
+
+    public void testRelease_evictsIdleConnection() {
+        PooledConnection connection = new PooledConnection(mStore);
+        mPool.release(KEY, connection, 1);
+
+        waitForClose(connection);
+        assertNull(mPool.acquire(KEY, mStore));
+        // Nothing is left to evict, so the thread is quit.
+        assertNull(mPool.getThread());
+    }
+
+    public void testCloseAll_quitsThread() throws Exception {
+        PooledConnection connection = new PooledConnection(mStore);
+        mPool.release(KEY, connection, IDLE_TIMEOUT_MILLIS);
+        HandlerThread thread = mPool.getThread();
+        assertTrue(thread.isAlive());
+
+        mPool.closeAll();
+
+        thread.join(WAIT_MILLIS);
+        assertFalse(thread.isAlive());
+        // The connection was logged out before the thread quit.
+        assertTrue(connection.mClosed);
+        assertNull(mPool.getThread());
+
+        // A connection released afterwards is pooled on a new thread.
+        PooledConnection next = new PooledConnection(mStore);
+        mPool.release(KEY, next, IDLE_TIMEOUT_MILLIS);
+        assertTrue(mPool.getThread().isAlive());
+        assertSame(next, mPool.acquire(KEY, mStore));
+    }
+
+    private static void waitForClose(PooledConnection connection) {
+        long deadline = SystemClock.elapsedRealtime() + WAIT_MILLIS;
+        while (!connection.mClosed && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertTrue(connection.mClosed);
+    }
+}
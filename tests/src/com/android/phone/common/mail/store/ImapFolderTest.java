@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.common.mail.FetchProfile;
+import com.android.phone.common.mail.Flag;
+import com.android.phone.common.mail.Message;
+import com.android.phone.common.mail.MessagingException;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class ImapFolderTest extends AndroidTestCase {
+
+    private static final int MESSAGE_COUNT = 45;
+
+    private static final String HEADER = "From: 5551234@example.com\r\n"
+            + "Date: Fri, 1 Jan 2016 00:00:00 +0000\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"boundary\"\r\n"
+            + "\r\n";
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    private ScriptedImapConnection mConnection;
+    private ImapFolder mFolder;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getContext(), getClass());
+        ImapStore store = mock(ImapStore.class);
+        when(store.getContext()).thenReturn(getContext());
+        mConnection = new ScriptedImapConnection(store, new VoicemailServer());
+        when(store.getConnection()).thenReturn(mConnection);
+
+        mFolder = new ImapFolder(store, ImapConstants.INBOX);
+        mFolder.open(ImapFolder.MODE_READ_WRITE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testFetch_perMessage_oneCommandEach() throws MessagingException {
+        List<Message> retrieved = new ArrayList<>();
+        for (Message message : getAllMessages()) {
+            mFolder.fetch(new Message[] {message}, createStructureProfile(), retrieved::add);
+        }
+
+        assertEquals(MESSAGE_COUNT, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertStructuresRetrieved(retrieved);
+    }
+
+    public void testFetch_batched_oneCommandPerBatch() throws MessagingException {
+        List<Message> retrieved = new ArrayList<>();
+        mFolder.fetch(getAllMessages(), createStructureProfile(), 20, retrieved::add);
+
+        assertEquals(3, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertStructuresRetrieved(retrieved);
+    }
+
+    public void testFetch_batchLargerThanMailbox_singleCommand() throws MessagingException {
+        List<Message> retrieved = new ArrayList<>();
+        mFolder.fetch(getAllMessages(), createStructureProfile(), 100, retrieved::add);
+
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertStructuresRetrieved(retrieved);
+    }
+
+    public void testFetch_unlimitedBatch_singleCommand() throws MessagingException {
+        List<Message> retrieved = new ArrayList<>();
+        mFolder.fetch(getAllMessages(), createStructureProfile(), 0, retrieved::add);
+
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertStructuresRetrieved(retrieved);
+    }
+
+    public void testOpen_readsMailboxState() {
+        assertEquals(3857529045L, mFolder.getUidValidity());
+        assertEquals(VoicemailServer.FIRST_UID + MESSAGE_COUNT, mFolder.getUidNext());
+        assertEquals(715194045007L, mFolder.getHighestModSeq());
+    }
+
+    public void testFetchChangedFlags() throws MessagingException {
+        List<Message> changed = new ArrayList<>();
+        List<String> vanished = mFolder.fetchChangedFlags("1:145", 715194045000L, changed::add);
+
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertEquals(2, changed.size());
+        assertEquals("103", changed.get(0).getUid());
+        assertTrue(Arrays.asList(changed.get(0).getFlags()).contains(Flag.SEEN));
+        assertEquals("104", changed.get(1).getUid());
+        assertTrue(Arrays.asList(changed.get(1).getFlags()).contains(Flag.DELETED));
+        // QRESYNC is not enabled on the scripted connection.
+        assertTrue(vanished.isEmpty());
+    }
+
+    public void testSetFlagsAndExpunge_singleRoundTrip() throws MessagingException {
+        Message[] messages = getAllMessages();
+        Map<String, Message[]> messagesByFlag = new LinkedHashMap<>();
+        messagesByFlag.put(Flag.DELETED, Arrays.copyOfRange(messages, 0, 2));
+        messagesByFlag.put(Flag.SEEN, Arrays.copyOfRange(messages, 2, 5));
+        int roundTrips = mConnection.getRoundTrips();
+
+        ImapFolder.SetFlagsResult result = mFolder.setFlagsAndExpunge(messagesByFlag);
+
+        assertEquals(roundTrips + 1, mConnection.getRoundTrips());
+        assertEquals(2, mConnection.countCommands(ImapConstants.UID_STORE));
+        assertEquals(1, mConnection.countCommands(ImapConstants.EXPUNGE));
+        assertEquals(1, mConnection.countCommands(ImapConstants.GETQUOTAROOT));
+        assertEquals(2, result.flagsSet.size());
+        assertEquals(3, result.quota.occupied);
+        assertEquals(40, result.quota.total);
+    }
+
+    public void testSetFlagsAndExpunge_rejectedCommandsDoNotFailOthers()
+            throws MessagingException {
+        Message[] messages = getAllMessages();
+        Map<String, Message[]> messagesByFlag = new LinkedHashMap<>();
+        messagesByFlag.put(Flag.DELETED, Arrays.copyOfRange(messages, 0, 2));
+        messagesByFlag.put(Flag.SEEN, Arrays.copyOfRange(messages, 2, 5));
+        mConnection.rejectCommandsContaining(ImapConstants.FLAG_SEEN);
+        mConnection.rejectCommandsContaining(ImapConstants.GETQUOTAROOT);
+
+        ImapFolder.SetFlagsResult result = mFolder.setFlagsAndExpunge(messagesByFlag);
+
+        assertEquals(Collections.singleton(Flag.DELETED), result.flagsSet);
+        assertNull(result.quota);
+    }
+
+    public void testSetFlagsAndExpunge_skipsEmptySets() throws MessagingException {
+        Map<String, Message[]> messagesByFlag = new LinkedHashMap<>();
+        messagesByFlag.put(Flag.DELETED, new Message[0]);
+        messagesByFlag.put(Flag.SEEN, Arrays.copyOfRange(getAllMessages(), 0, 1));
+
+        ImapFolder.SetFlagsResult result = mFolder.setFlagsAndExpunge(messagesByFlag);
+
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_STORE));
+        assertEquals(Collections.singleton(Flag.SEEN), result.flagsSet);
+    }
+
+    private Message[] getAllMessages() throws MessagingException {
+        Message[] messages = mFolder.getMessages(null);
+        assertEquals(MESSAGE_COUNT, messages.length);
+        return messages;
+    }
+
+    private static FetchProfile createStructureProfile() {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.addAll(Arrays.asList(FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE,
+                FetchProfile.Item.STRUCTURE));
+        return fetchProfile;
+    }
+
+    private static void assertStructuresRetrieved(List<Message> retrieved)
+            throws MessagingException {
+        assertEquals(MESSAGE_COUNT, retrieved.size());
+        for (Message message : retrieved) {
+            assertTrue(message.getMimeType().startsWith("multipart/"));
+            assertTrue(Arrays.asList(message.getFlags()).contains(Flag.SEEN));
+        }
+    }
+
+    /**
+     * A voicemail server holding {@link #MESSAGE_COUNT} messages with UIDs starting at 101.
+     */
+    private static class VoicemailServer implements ScriptedImapConnection.Responder {
+
+        private static final int FIRST_UID = 101;
+
+        @Override
+        public String respond(String command) {
+            if (command.startsWith(ImapConstants.SELECT)) {
+                return "* " + MESSAGE_COUNT + " EXISTS\r\n"
+                        + "* OK [UIDVALIDITY 3857529045] UIDs valid\r\n"
+                        + "* OK [UIDNEXT " + (FIRST_UID + MESSAGE_COUNT) + "] Next UID\r\n"
+                        + "* OK [HIGHESTMODSEQ 715194045007] Highest\r\n"
+                        + "* OK [READ-WRITE] Select completed\r\n";
+            }
+            if (command.contains(ImapConstants.CHANGEDSINCE)) {
+                return "* 3 FETCH (UID 103 FLAGS (\\Seen) MODSEQ (715194045001))\r\n"
+                        + "* 4 FETCH (UID 104 FLAGS (\\Deleted) MODSEQ (715194045007))\r\n";
+            }
+            if (command.startsWith(ImapConstants.EXPUNGE)) {
+                return "* 2 EXPUNGE\r\n* 1 EXPUNGE\r\n";
+            }
+            if (command.startsWith(ImapConstants.GETQUOTAROOT)) {
+                return "* QUOTAROOT INBOX \"\"\r\n"
+                        + "* QUOTA \"\" (voice 3 40)\r\n";
+            }
+            if (command.startsWith(ImapConstants.UID_SEARCH)) {
+                StringBuilder response = new StringBuilder("* SEARCH");
+                for (int i = 0; i < MESSAGE_COUNT; i++) {
+                    response.append(' ').append(FIRST_UID + i);
+                }
+                return response.append("\r\n").toString();
+            }
+            if (command.startsWith(ImapConstants.UID_FETCH)) {
+                String uidSet = command.substring(ImapConstants.UID_FETCH.length() + 1,
+                        command.indexOf(' ', ImapConstants.UID_FETCH.length() + 1));
+                StringBuilder response = new StringBuilder();
+                for (String uid : uidSet.split(",")) {
+                    response.append(createFetchResponse(Integer.parseInt(uid)));
+                }
+                return response.toString();
+            }
+            return "";
+        }
+
+        private static String createFetchResponse(int uid) {
+            return String.format(Locale.US, "* %d FETCH (UID %d FLAGS (\\Seen)"
+                    + " INTERNALDATE \"01-Jan-2016 00:00:00 +0000\" RFC822.SIZE 4096"
+                    + " BODY[HEADER.FIELDS (date from content-type)] {%d}\r\n%s"
+                    + " BODYSTRUCTURE ((\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL"
+                    + " \"7BIT\" 32 1 NIL NIL NIL)(\"AUDIO\" \"AMR\" NIL NIL NIL \"BASE64\" 4000"
+                    + " NIL NIL NIL) \"MIXED\"))\r\n",
+                    uid - FIRST_UID + 1, uid, HEADER.length(), HEADER);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store;
+
+import com.android.phone.common.mail.MessagingException;
+import com.android.phone.common.mail.store.imap.ImapResponse;
+import com.android.phone.common.mail.store.imap.ImapResponseParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An {@link ImapConnection} that answers commands from a script instead of a socket. Every command
+ * sent is recorded so tests can count how many round trips an operation takes. The responses to
+ * the commands sent since the last read are queued, so pipelined commands are answered in order.
+ */
+public class ScriptedImapConnection extends ImapConnection {
+
+    /**
+     * Stand-in for the IMAP server.
+     */
+    public interface Responder {
+
+        /**
+         * @return the untagged response lines for {@code command}, each terminated by CRLF. The
+         * tagged completion is appended automatically, OK unless the command is rejected.
+         */
+        String respond(String command);
+    }
+
+    private final Responder mResponder;
+    private final List<String> mCommands = new ArrayList<>();
+    private final Set<String> mCapabilities = new HashSet<>();
+    private final List<String> mRejected = new ArrayList<>();
+    private final StringBuilder mPendingResponses = new StringBuilder();
+    private ImapResponseParser mParser;
+    private int mNextTag;
+    private int mRoundTrips;
+
+    public ScriptedImapConnection(ImapStore store, Responder responder) {
+        super(store);
+        mResponder = responder;
+    }
+
+    /**
+     * Sets the capabilities the server advertises. None by default.
+     */
+    public void setCapabilities(String... capabilities) {
+        mCapabilities.clear();
+        mCapabilities.addAll(Arrays.asList(capabilities));
+    }
+
+    /**
+     * Makes the server answer NO to the commands containing {@code text}.
+     */
+    public void rejectCommandsContaining(String text) {
+        mRejected.add(text);
+    }
+
+    /**
+     * @return all commands sent so far, without tags.
+     */
+    public List<String> getCommands() {
+        return mCommands;
+    }
+
+    /**
+     * @return the number of commands sent so far that start with {@code prefix}.
+     */
+    public int countCommands(String prefix) {
+        int count = 0;
+        for (String command : mCommands) {
+            if (command.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of times responses were read after sending commands.
+     */
+    public int getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    @Override
+    public boolean hasCapability(String capability) {
+        return mCapabilities.contains(capability);
+    }
+
+    @Override
+    public void open() {
+        // Nothing to connect to.
+    }
+
+    @Override
+    public String sendCommand(String command, boolean sensitive) {
+        mCommands.add(command);
+        String tag = Integer.toString(++mNextTag);
+        mPendingResponses.append(mResponder.respond(command))
+                .append(tag).append(isRejected(command) ? " NO failed\r\n" : " OK completed\r\n");
+        return tag;
+    }
+
+    private boolean isRejected(String command) {
+        for (String text : mRejected) {
+            if (command.contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public ImapResponse readResponse() throws IOException, MessagingException {
+        if (mPendingResponses.length() > 0) {
+            destroyResponses();
+            mParser = new ImapResponseParser(new ByteArrayInputStream(
+                    mPendingResponses.toString().getBytes(StandardCharsets.US_ASCII)));
+            mPendingResponses.setLength(0);
+            mRoundTrips++;
+        }
+        return mParser.readResponse(false);
+    }
+
+    @Override
+    List<ImapResponse> getCommandResponses() throws IOException, MessagingException {
+        List<ImapResponse> responses = new ArrayList<>();
+        ImapResponse response;
+        do {
+            response = readResponse();
+            responses.add(response);
+        } while (!response.isTagged());
+        return responses;
+    }
+
+    @Override
+    public void destroyResponses() {
+        if (mParser != null) {
+            mParser.destroyResponses();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store.imap;
+
+import android.test.AndroidTestCase;
+
+import com.android.phone.common.mail.TempDirectory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ImapResponseParserTest extends AndroidTestCase {
+
+    private static final String BODY = "--boundary\r\nContent-Type: audio/amr\r\n\r\n"
+            + "IyFBTVIKPJEXFr5meeHgAeev8AAAAIAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA\r\n"
+            + "--boundary--\r\n";
+
+    /**
+     * Responses of a UID FETCH of the structure and body of two voicemails.
+     */
+    private static final String FETCH_RESPONSES = ""
+            + "* 1 FETCH (UID 41 FLAGS (\\Seen) INTERNALDATE \"13-Jun-2016 10:39:19 -0700\" "
+            + "RFC822.SIZE 1200 BODY[HEADER.FIELDS (DATE SUBJECT FROM CONTENT-TYPE TO CC)] NIL "
+            + "BODYSTRUCTURE ((\"text\" \"plain\" (\"charset\" \"us-ascii\") NIL NIL \"7bit\" 14 1)"
+            + " (\"audio\" \"amr\" (\"name\" \"msg.amr\") NIL NIL \"base64\" 74) \"mixed\"))\r\n"
+            + "* 2 FETCH (UID 42 BODY[] {" + BODY.length() + "}\r\n" + BODY + ")\r\n"
+            + "* OK [UIDNEXT 43] Predicted next UID\r\n"
+            + "1 OK UID FETCH completed\r\n";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    public void testParse_fetchResponses() throws Exception {
+        ImapResponseParser parser = createParser(FETCH_RESPONSES, 1024);
+
+        ImapResponse structure = parser.readResponse(false);
+        assertTrue(structure.isDataResponse(1, ImapConstants.FETCH));
+        ImapList fetchList = structure.getListOrEmpty(2);
+        assertEquals("41", fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+        assertEquals("\\Seen", fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS)
+                .getStringOrEmpty(0).getString());
+        assertEquals(1200, fetchList.getKeyedStringOrEmpty(ImapConstants.RFC822_SIZE)
+                .getNumberOrZero());
+        assertTrue(fetchList.getKeyedStringOrEmpty(ImapConstants.BODY_BRACKET_HEADER, true)
+                .isEmpty());
+        ImapList bodyStructure = fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+        assertEquals("amr", bodyStructure.getListOrEmpty(1).getStringOrEmpty(1).getString());
+
+        ImapResponse body = parser.readResponse(false);
+        fetchList = body.getListOrEmpty(2);
+        assertEquals("42", fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+        assertEquals(BODY, readFully(fetchList.getKeyedStringOrEmpty("BODY[]", true)
+                .getAsStream()));
+
+        ImapResponse untagged = parser.readResponse(false);
+        assertTrue(untagged.isOk());
+        assertEquals("43", untagged.getListOrEmpty(1).getStringOrEmpty(1).getString());
+
+        ImapResponse tagged = parser.readResponse(false);
+        assertTrue(tagged.isTagged());
+        assertTrue(tagged.toString().startsWith("#1# "));
+        assertTrue(tagged.isOk());
+        assertEquals("UID FETCH completed", tagged.getStringOrEmpty(1).getString());
+        parser.release();
+    }
+
+    public void testParse_tokensAcrossBufferBoundaries() throws Exception {
+        String expected = responsesToString(createParser(FETCH_RESPONSES, 1024));
+        // Every token and literal ends up split between reads of the stream at some size.
+        for (int bufferSize = 1; bufferSize < 40; bufferSize++) {
+            assertEquals("buffer size " + bufferSize, expected,
+                    responsesToString(createParser(FETCH_RESPONSES, bufferSize)));
+        }
+    }
+
+    public void testParse_literalInTempFile() throws Exception {
+        String response = "* 1 FETCH (BODY[] {" + BODY.length() + "}\r\n" + BODY + " UID 7)\r\n";
+        ImapResponseParser parser = new ImapResponseParser(
+                new ByteArrayInputStream(response.getBytes(StandardCharsets.ISO_8859_1)),
+                2 /* literalKeepInMemoryThreshold */, new byte[16]);
+
+        ImapList fetchList = parser.readResponse(false).getListOrEmpty(2);
+        ImapString literal = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+        assertTrue(literal instanceof ImapTempFileLiteral);
+        assertEquals(BODY, readFully(literal.getAsStream()));
+        assertEquals("7", fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+        parser.destroyResponses();
+        assertFalse(((ImapTempFileLiteral) literal).tempFileExistsForTest());
+    }
+
+    public void testParse_nil() throws Exception {
+        ImapResponse response = createParser("* LIST (nil NIL NILS) \"/\" NiL\r\n", 5)
+                .readResponse(false);
+        ImapList list = response.getListOrEmpty(1);
+        assertTrue(list.getStringOrEmpty(0).isEmpty());
+        assertTrue(list.getStringOrEmpty(1).isEmpty());
+        assertEquals("NILS", list.getStringOrEmpty(2).getString());
+        assertTrue(response.getStringOrEmpty(3).isEmpty());
+    }
+
+    public void testParse_endOfStream() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 4", 4);
+        try {
+            parser.readResponse(false);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static ImapResponseParser createParser(String responses, int bufferSize) {
+        return new ImapResponseParser(
+                new ByteArrayInputStream(responses.getBytes(StandardCharsets.ISO_8859_1)),
+                ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD, new byte[bufferSize]);
+    }
+
+    /**
+     * Returns the text representation of every response until the tagged one.
+     */
+    private static String responsesToString(ImapResponseParser parser) throws Exception {
+        StringBuilder result = new StringBuilder();
+        ImapResponse response;
+        do {
+            response = parser.readResponse(false);
+            result.append(response.toString()).append('\n');
+            ImapString literal = response.getListOrEmpty(2).getKeyedStringOrEmpty("BODY[]", true);
+            result.append(readFully(literal.getAsStream())).append('\n');
+        } while (!response.isTagged());
+        return result.toString();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm.omtp.imap;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.Voicemail;
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.VoicemailStatus;
+import com.android.phone.common.mail.Flag;
+import com.android.phone.common.mail.store.ImapFolder;
+import com.android.phone.common.mail.store.ImapStore;
+import com.android.phone.common.mail.store.ScriptedImapConnection;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.fetch.VoicemailFetchedCallback;
+import com.android.phone.vvm.omtp.imap.ImapHelper.VoicemailChanges;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public class ImapHelperTest extends AndroidTestCase {
+
+    private static final int BATCH_SIZE = 2;
+    private static final long UID_VALIDITY = 3857529045L;
+    private static final long UID_NEXT = 106;
+
+    private static final String AUDIO_MESSAGE = "Content-Type: multipart/mixed; boundary=\"b\"\r\n"
+            + "\r\n"
+            + "--b\r\n"
+            + "Content-Type: audio/amr\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + "IyFBTVIK\r\n"
+            + "--b--\r\n";
+
+    private static final String TEXT_MESSAGE = "Content-Type: multipart/mixed; boundary=\"b\"\r\n"
+            + "\r\n"
+            + "--b\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "Not a voicemail\r\n"
+            + "--b--\r\n";
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    private VoicemailServer mServer;
+    private ScriptedImapConnection mConnection;
+    private ImapHelper mImapHelper;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getContext(), getClass());
+        ImapStore store = mock(ImapStore.class);
+        when(store.getContext()).thenReturn(getContext());
+        mServer = new VoicemailServer();
+        mConnection = new ScriptedImapConnection(store, mServer);
+        when(store.getConnection()).thenReturn(mConnection);
+
+        OmtpVvmCarrierConfigHelper config = mock(OmtpVvmCarrierConfigHelper.class);
+        when(config.getPrefetchBatchSize()).thenReturn(BATCH_SIZE);
+        PhoneAccountHandle phoneAccount = new PhoneAccountHandle(
+                new ComponentName(getContext(), ImapHelperTest.class), "ImapHelperTest");
+        mImapHelper = new ImapHelper(getContext(), config, phoneAccount, store,
+                VoicemailStatus.edit(getContext(), phoneAccount));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testFetchVoicemailPayloads_batchedByPrefetchBatchSize() {
+        Map<String, VoicemailFetchedCallback> callbacks = createCallbacks("105", "104", "103",
+                "102", "101");
+
+        assertTrue(mImapHelper.fetchVoicemailPayloads(callbacks));
+
+        assertEquals(3, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertEquals(Arrays.asList("105,104", "103,102", "101"), getFetchedUidSets());
+        for (VoicemailFetchedCallback callback : callbacks.values()) {
+            assertEquals("audio/amr", captureContent(callback).getMimeType());
+        }
+    }
+
+    public void testFetchVoicemailPayloads_newestBatchFirst() {
+        // The server answers each command in its own order, oldest first.
+        mServer.mReverseOrder = true;
+        Map<String, VoicemailFetchedCallback> callbacks = createCallbacks("104", "103", "102",
+                "101");
+
+        assertTrue(mImapHelper.fetchVoicemailPayloads(callbacks));
+
+        InOrder inOrder = inOrder(callbacks.values().toArray());
+        // The batch of the newest voicemails is written before the other, but within a batch the
+        // payloads are written as the server returns them.
+        inOrder.verify(callbacks.get("103")).setVoicemailContent(any(VoicemailPayload.class));
+        inOrder.verify(callbacks.get("104")).setVoicemailContent(any(VoicemailPayload.class));
+        inOrder.verify(callbacks.get("101")).setVoicemailContent(any(VoicemailPayload.class));
+        inOrder.verify(callbacks.get("102")).setVoicemailContent(any(VoicemailPayload.class));
+    }
+
+    public void testFetchVoicemailPayloads_messageWithoutAudio() {
+        mServer.mTextOnlyUid = "102";
+        Map<String, VoicemailFetchedCallback> callbacks = createCallbacks("103", "102", "101");
+
+        assertTrue(mImapHelper.fetchVoicemailPayloads(callbacks));
+
+        // The voicemail without audio gets no payload, the others are still written.
+        assertNull(captureContent(callbacks.get("102")));
+        assertEquals("audio/amr", captureContent(callbacks.get("103")).getMimeType());
+        assertEquals("audio/amr", captureContent(callbacks.get("101")).getMimeType());
+    }
+
+    public void testFetchVoicemailPayloads_noVoicemails() {
+        assertTrue(mImapHelper.fetchVoicemailPayloads(
+                Collections.<String, VoicemailFetchedCallback>emptyMap()));
+        assertTrue(mConnection.getCommands().isEmpty());
+    }
+
+    public void testFetchVoicemailChanges_vanished() {
+        mConnection.setCapabilities(ImapConstants.CAPABILITY_CONDSTORE,
+                ImapConstants.CAPABILITY_QRESYNC);
+        mServer.mHighestModSeq = 20;
+        mServer.mChangedSinceResponse = "* VANISHED (EARLIER) 101:102\r\n"
+                + "* 3 FETCH (UID 103 FLAGS (\\Seen) MODSEQ (20))\r\n";
+
+        VoicemailChanges changes = mImapHelper.fetchVoicemailChanges(
+                new MailboxState(UID_VALIDITY, UID_NEXT, 10));
+
+        assertFalse(changes.isFullSyncRequired());
+        assertTrue(changes.isDeleted("101"));
+        assertTrue(changes.isDeleted("102"));
+        assertFalse(changes.isDeleted("103"));
+        assertFalse(changes.isDeleted("104"));
+        assertEquals(Boolean.TRUE, changes.getReadState("103"));
+        assertNull(changes.getReadState("104"));
+        assertTrue(changes.newVoicemails.isEmpty());
+        assertEquals(20, changes.state.highestModSeq);
+        // Expunged messages are reported as vanished, nothing else is asked for.
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertEquals(0, mConnection.countCommands(ImapConstants.UID_SEARCH));
+    }
+
+    public void testFetchVoicemailChanges_changedSince() {
+        mConnection.setCapabilities(ImapConstants.CAPABILITY_CONDSTORE);
+        mServer.mHighestModSeq = 20;
+        mServer.mChangedSinceResponse = "* 3 FETCH (UID 103 FLAGS (\\Seen) MODSEQ (15))\r\n"
+                + "* 4 FETCH (UID 104 FLAGS (\\Deleted) MODSEQ (20))\r\n";
+        // 101 and 102 were expunged.
+        mServer.mSearchResult = "103 105";
+
+        VoicemailChanges changes = mImapHelper.fetchVoicemailChanges(
+                new MailboxState(UID_VALIDITY, UID_NEXT, 10));
+
+        assertFalse(changes.isFullSyncRequired());
+        assertTrue(changes.isDeleted("101"));
+        assertTrue(changes.isDeleted("102"));
+        assertFalse(changes.isDeleted("103"));
+        assertTrue(changes.isDeleted("104"));
+        assertFalse(changes.isDeleted("105"));
+        assertEquals(Boolean.TRUE, changes.getReadState("103"));
+        assertNull(changes.getReadState("105"));
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_FETCH));
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_SEARCH));
+    }
+
+    public void testFetchVoicemailChanges_unchangedModSeq() {
+        mConnection.setCapabilities(ImapConstants.CAPABILITY_CONDSTORE,
+                ImapConstants.CAPABILITY_QRESYNC);
+        mServer.mHighestModSeq = 20;
+
+        VoicemailChanges changes = mImapHelper.fetchVoicemailChanges(
+                new MailboxState(UID_VALIDITY, UID_NEXT, 20));
+
+        assertFalse(changes.isFullSyncRequired());
+        assertFalse(changes.isDeleted("101"));
+        assertEquals(0, mConnection.countCommands(ImapConstants.UID_FETCH));
+    }
+
+    public void testFetchVoicemailChanges_invalidModSeq_fullSync() {
+        mConnection.setCapabilities(ImapConstants.CAPABILITY_CONDSTORE);
+        // The stored mod-sequence is ahead of the server's, which lost its state.
+        mServer.mHighestModSeq = 20;
+
+        VoicemailChanges changes = mImapHelper.fetchVoicemailChanges(
+                new MailboxState(UID_VALIDITY, UID_NEXT, 30));
+
+        assertTrue(changes.isFullSyncRequired());
+        assertEquals(20, changes.state.highestModSeq);
+        assertEquals(0, mConnection.countCommands(ImapConstants.UID_FETCH));
+    }
+
+    public void testFetchVoicemailChanges_uidValidityChanged_fullSync() {
+        mConnection.setCapabilities(ImapConstants.CAPABILITY_CONDSTORE);
+        mServer.mHighestModSeq = 20;
+
+        VoicemailChanges changes = mImapHelper.fetchVoicemailChanges(
+                new MailboxState(UID_VALIDITY + 1, UID_NEXT, 10));
+
+        assertTrue(changes.isFullSyncRequired());
+        assertEquals(0, mConnection.countCommands(ImapConstants.UID_FETCH));
+    }
+
+    public void testMarkMessages_allFlagsSet() {
+        Set<String> flagsSet = mImapHelper.markMessages(
+                Arrays.asList(createVoicemail(3, "103")),
+                Arrays.asList(createVoicemail(1, "101"), createVoicemail(2, "102")));
+
+        assertEquals(2, flagsSet.size());
+        assertTrue(flagsSet.contains(Flag.DELETED));
+        assertTrue(flagsSet.contains(Flag.SEEN));
+    }
+
+    public void testMarkMessages_seenRejected() {
+        mConnection.rejectCommandsContaining(ImapConstants.FLAG_SEEN);
+
+        Set<String> flagsSet = mImapHelper.markMessages(
+                Arrays.asList(createVoicemail(3, "103")),
+                Arrays.asList(createVoicemail(1, "101"), createVoicemail(2, "102")));
+
+        // The deletes were still applied and expunged by the server.
+        assertEquals(Collections.singleton(Flag.DELETED), flagsSet);
+        assertEquals(1, mConnection.countCommands(ImapConstants.EXPUNGE));
+    }
+
+    public void testMarkMessages_onlyRead() {
+        Set<String> flagsSet = mImapHelper.markMessages(
+                Arrays.asList(createVoicemail(3, "103")), Collections.emptyList());
+
+        assertEquals(Collections.singleton(Flag.SEEN), flagsSet);
+        assertEquals(1, mConnection.countCommands(ImapConstants.UID_STORE));
+    }
+
+    private static Voicemail createVoicemail(long id, String uid) {
+        return Voicemail.createForUpdate(id, uid).build();
+    }
+
+    private static Map<String, VoicemailFetchedCallback> createCallbacks(String... uids) {
+        Map<String, VoicemailFetchedCallback> callbacks = new LinkedHashMap<>();
+        for (String uid : uids) {
+            callbacks.put(uid, mock(VoicemailFetchedCallback.class));
+        }
+        return callbacks;
+    }
+
+    private static VoicemailPayload captureContent(VoicemailFetchedCallback callback) {
+        ArgumentCaptor<VoicemailPayload> payload = ArgumentCaptor.forClass(VoicemailPayload.class);
+        verify(callback).setVoicemailContent(payload.capture());
+        return payload.getValue();
+    }
+
+    private List<String> getFetchedUidSets() {
+        List<String> uidSets = new ArrayList<>();
+        for (String command : mConnection.getCommands()) {
+            if (command.startsWith(ImapConstants.UID_FETCH)) {
+                uidSets.add(VoicemailServer.getUidSet(command));
+            }
+        }
+        return uidSets;
+    }
+
+    /**
+     * A voicemail server where every UID up to 105 holds a voicemail with an AMR attachment.
+     */
+    private static class VoicemailServer implements ScriptedImapConnection.Responder {
+
+        /** Whether FETCH responses are sent in the reverse order of the requested UIDs. */
+        boolean mReverseOrder;
+        /** The UID of a message without audio, if any. */
+        String mTextOnlyUid;
+        /** The HIGHESTMODSEQ reported by SELECT, if not {@link ImapFolder#UNKNOWN}. */
+        long mHighestModSeq = ImapFolder.UNKNOWN;
+        /** The untagged responses to UID FETCH CHANGEDSINCE. */
+        String mChangedSinceResponse = "";
+        /** The UIDs returned by UID SEARCH. */
+        String mSearchResult = "";
+
+        static String getUidSet(String command) {
+            return command.substring(ImapConstants.UID_FETCH.length() + 1,
+                    command.indexOf(' ', ImapConstants.UID_FETCH.length() + 1));
+        }
+
+        @Override
+        public String respond(String command) {
+            if (command.startsWith(ImapConstants.SELECT)) {
+                return "* 5 EXISTS\r\n"
+                        + "* OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid\r\n"
+                        + "* OK [UIDNEXT " + UID_NEXT + "] Next UID\r\n"
+                        + (mHighestModSeq != ImapFolder.UNKNOWN
+                                ? "* OK [HIGHESTMODSEQ " + mHighestModSeq + "] Highest\r\n" : "")
+                        + "* OK [READ-WRITE] Select completed\r\n";
+            }
+            if (command.startsWith(ImapConstants.UID_SEARCH)) {
+                return "* SEARCH " + mSearchResult + "\r\n";
+            }
+            if (command.contains(ImapConstants.CHANGEDSINCE)) {
+                return mChangedSinceResponse;
+            }
+            if (command.startsWith(ImapConstants.UID_FETCH)) {
+                List<String> uids = new ArrayList<>();
+                Collections.addAll(uids, getUidSet(command).split(","));
+                if (mReverseOrder) {
+                    Collections.reverse(uids);
+                }
+                StringBuilder response = new StringBuilder();
+                for (String uid : uids) {
+                    String body = uid.equals(mTextOnlyUid) ? TEXT_MESSAGE : AUDIO_MESSAGE;
+                    response.append(String.format(Locale.US,
+                            "* %d FETCH (UID %s BODY[] {%d}\r\n%s)\r\n",
+                            Integer.parseInt(uid) - 100, uid, body.length(), body));
+                }
+                return response.toString();
+            }
+            return "";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.imap;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Base64InputStream;
+import com.android.phone.common.mail.Body;
+import com.android.phone.common.mail.TempDirectory;
+import com.android.phone.common.mail.internet.MimeUtility;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class VoicemailPayloadTest extends AndroidTestCase {
+
+    private static final int PAYLOAD_SIZE = 4 * 1024 * 1024;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    public void testWriteTo_streamsInBoundedChunks() throws Exception {
+        // Base64 encoded on the fly, like the IMAP literal, and decoded into a temp file the same
+        // way a fetched audio part is. The whole payload is never held in memory by the test.
+        InputStream encoded = new Base64InputStream(new PatternInputStream(PAYLOAD_SIZE),
+                Base64.CRLF, true /* encode */);
+        Body body = MimeUtility.decodeBody(encoded, "base64");
+        VoicemailPayload payload = new VoicemailPayload("audio/amr", body);
+
+        VerifyingOutputStream out = new VerifyingOutputStream();
+        long written = payload.writeTo(out);
+
+        assertEquals(PAYLOAD_SIZE, written);
+        assertEquals(PAYLOAD_SIZE, out.mCount);
+        assertTrue("largest write was " + out.mLargestWrite,
+                out.mLargestWrite <= VoicemailPayload.COPY_BUFFER_SIZE);
+    }
+
+    public void testWriteTo_nullBody() throws Exception {
+        VoicemailPayload payload = new VoicemailPayload("audio/amr", null);
+        assertEquals(0, payload.writeTo(new VerifyingOutputStream()));
+    }
+
+    private static byte patternByte(long position) {
+        return (byte) (position * 31 + (position >> 8));
+    }
+
+    /**
+     * Generates {@code size} bytes of {@link #patternByte(long)}.
+     */
+    private static class PatternInputStream extends InputStream {
+
+        private final long mSize;
+        private long mPosition;
+
+        PatternInputStream(long size) {
+            mSize = size;
+        }
+
+        @Override
+        public int read() {
+            if (mPosition >= mSize) {
+                return -1;
+            }
+            return patternByte(mPosition++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (mPosition >= mSize) {
+                return -1;
+            }
+            int count = (int) Math.min(length, mSize - mPosition);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = patternByte(mPosition++);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Checks the written bytes against {@link #patternByte(long)} and records the largest single
+     * write.
+     */
+    private static class VerifyingOutputStream extends OutputStream {
+
+        long mCount;
+        int mLargestWrite;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mLargestWrite = Math.max(mLargestWrite, length);
+            for (int i = 0; i < length; i++) {
+                if (buffer[offset + i] != patternByte(mCount)) {
+                    throw new IOException("Mismatch at " + mCount);
+                }
+                mCount++;
+            }
+        }
+    }
+}
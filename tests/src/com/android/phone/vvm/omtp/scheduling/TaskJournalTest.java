@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class TaskJournalTest {
+
+    private static final String FINGERPRINT = "test/fingerprint";
+    private static final String EXTRA_VALUE = "extra_value";
+
+    private File mFile;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "task_journal_test");
+        mFile.delete();
+        // The looper is stopped so scheduled flushes never run, the tests flush explicitly.
+        mThread = new HandlerThread("TaskJournalTest");
+        mThread.start();
+        mThread.quit();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testReplay_returnsPendingTasks() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        long removed = journal.add(createIntent(1), 1000);
+        journal.add(createIntent(2), 2000);
+        journal.flush();
+        journal.remove(removed);
+        journal.flush();
+
+        List<TaskJournal.Entry> entries = createJournal(FINGERPRINT).replay();
+
+        assertEquals(1, entries.size());
+        assertEquals(2, entries.get(0).intent.getIntExtra(EXTRA_VALUE, 0));
+        assertEquals(2000, entries.get(0).readyTimeMillis);
+    }
+
+    @Test
+    public void testReplay_onlyOnce() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        journal.add(createIntent(1), 1000);
+        journal.flush();
+
+        TaskJournal restored = createJournal(FINGERPRINT);
+        assertEquals(1, restored.replay().size());
+        assertEquals(0, restored.replay().size());
+        assertEquals(1, restored.getPendingCount());
+    }
+
+    @Test
+    public void testReplay_otherBuild() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        journal.add(createIntent(1), 1000);
+        journal.flush();
+
+        assertEquals(0, createJournal("other/fingerprint").replay().size());
+    }
+
+    @Test
+    public void testReplay_tornRecord() throws IOException {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        journal.add(createIntent(1), 1000);
+        journal.flush();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            // An add record cut off in its id.
+            out.write(new byte[] {1, 0, 0, 0});
+        }
+
+        TaskJournal restored = createJournal(FINGERPRINT);
+        assertEquals(1, restored.replay().size());
+        // Compacted when replaying, the torn record is gone.
+        restored.flush();
+        restored.add(createIntent(2), 2000);
+        restored.flush();
+        assertEquals(2, createJournal(FINGERPRINT).replay().size());
+    }
+
+    @Test
+    public void testFlush_compactsRemovedTasks() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        journal.add(createIntent(0), 1000);
+        journal.flush();
+        long initialLength = mFile.length();
+        // Each iteration appends two records, the last one takes the file over the threshold.
+        for (int i = 1; i <= TaskJournal.COMPACT_MIN_RECORDS / 2; i++) {
+            assertTrue(mFile.length() >= initialLength);
+            journal.remove(journal.add(createIntent(i), 1000));
+            journal.flush();
+        }
+
+        assertEquals(initialLength, mFile.length());
+        List<TaskJournal.Entry> entries = createJournal(FINGERPRINT).replay();
+        assertEquals(1, entries.size());
+        assertEquals(0, entries.get(0).intent.getIntExtra(EXTRA_VALUE, -1));
+    }
+
+    @Test
+    public void testReplay_dropsTaskStartedTooManyTimes() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        journal.add(createIntent(1), 1000);
+        long crashing = journal.add(createIntent(2), 1000);
+        journal.flush();
+
+        // The task is started and takes the process down, on every restart.
+        for (int attempt = 1; attempt < TaskJournal.MAX_ATTEMPTS; attempt++) {
+            journal.start(crashing);
+            journal.flush();
+            TaskJournal restored = createJournal(FINGERPRINT);
+            List<TaskJournal.Entry> entries = restored.replay();
+            assertEquals(2, entries.size());
+            assertEquals(attempt, entries.get(1).attempts);
+            // Compacted when replaying, the attempts are kept.
+            restored.flush();
+            journal = createJournal(FINGERPRINT);
+            journal.replay();
+        }
+        journal.start(crashing);
+        journal.flush();
+
+        List<TaskJournal.Entry> entries = createJournal(FINGERPRINT).replay();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).intent.getIntExtra(EXTRA_VALUE, 0));
+    }
+
+    @Test
+    public void testStart_onlyReplayedTasksAreFlushed() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        long replayed = journal.add(createIntent(1), 1000);
+        journal.flush();
+
+        journal = createJournal(FINGERPRINT);
+        journal.replay();
+        long added = journal.add(createIntent(2), 1000);
+
+        // A task added by this process can't have taken it down before.
+        assertFalse(journal.start(added));
+        assertTrue(journal.start(replayed));
+    }
+
+    @Test
+    public void testReplay_dropsCrashingTaskWhoseFirstStartWasNotWritten() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        long crashing = journal.add(createIntent(1), 1000);
+        journal.flush();
+        // Started, and the process is taken down before the start record is written.
+        journal.start(crashing);
+
+        for (int attempt = 1; attempt <= TaskJournal.MAX_ATTEMPTS; attempt++) {
+            journal = createJournal(FINGERPRINT);
+            List<TaskJournal.Entry> entries = journal.replay();
+            assertEquals(1, entries.size());
+            journal.flush();
+            // Replayed, so the start is written before the task runs and takes the process down.
+            assertTrue(journal.start(crashing));
+            journal.flush();
+        }
+
+        assertTrue(createJournal(FINGERPRINT).replay().isEmpty());
+    }
+
+    @Test
+    public void testReplay_rescheduledTask() {
+        TaskJournal journal = createJournal(FINGERPRINT);
+        journal.replay();
+        long id = journal.add(createIntent(1), 1000);
+        journal.flush();
+        journal.reschedule(id, 5000);
+        journal.flush();
+
+        List<TaskJournal.Entry> entries = createJournal(FINGERPRINT).replay();
+        assertEquals(1, entries.size());
+        assertEquals(5000, entries.get(0).readyTimeMillis);
+    }
+
+    private TaskJournal createJournal(String fingerprint) {
+        return new TaskJournal(mFile, mHandler, fingerprint);
+    }
+
+    private static Intent createIntent(int value) {
+        return TaskSchedulerService.createIntent(InstrumentationRegistry.getTargetContext(),
+                TaskSchedulerServiceTestBase.TestTask.class).putExtra(EXTRA_VALUE, value);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseArray;
+
+import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class TaskQueueTest {
+
+    private final TaskQueue mQueue = new TaskQueue();
+    private final SparseArray<Object> mBusySubIds = new SparseArray<>();
+
+    @Test
+    public void testGetNext_ordersByReadyTimeThenInsertion() {
+        FakeTask late = add(new FakeTask(1, 0, 5000));
+        FakeTask first = add(new FakeTask(2, 0, 0));
+        FakeTask second = add(new FakeTask(3, 0, 0));
+
+        assertSame(first, mQueue.getNext(mBusySubIds));
+        mQueue.remove(first);
+        assertSame(second, mQueue.getNext(mBusySubIds));
+        mQueue.remove(second);
+        assertSame(late, mQueue.getNext(mBusySubIds));
+        mQueue.remove(late);
+        assertNull(mQueue.getNext(mBusySubIds));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void testGetNext_skipsBusySubscriptions() {
+        FakeTask sub0 = add(new FakeTask(1, 0, 0));
+        FakeTask sub1 = add(new FakeTask(1, 1, 1000));
+
+        mBusySubIds.put(0, new Object());
+        assertSame(sub1, mQueue.getNext(mBusySubIds));
+        mBusySubIds.put(1, new Object());
+        assertNull(mQueue.getNext(mBusySubIds));
+        mBusySubIds.clear();
+        assertSame(sub0, mQueue.getNext(mBusySubIds));
+    }
+
+    @Test
+    public void testGet_indexesTaskId() {
+        FakeTask task = add(new FakeTask(1, 0, 0));
+        add(new FakeTask(Task.TASK_ALLOW_DUPLICATES, 0, 0));
+
+        assertSame(task, mQueue.get(new TaskId(1, 0)));
+        assertNull(mQueue.get(new TaskId(1, 1)));
+        assertNull(mQueue.get(new TaskId(Task.TASK_ALLOW_DUPLICATES, 0)));
+        mQueue.remove(task);
+        assertNull(mQueue.get(new TaskId(1, 0)));
+    }
+
+    @Test
+    public void testUpdate_reordersTask() {
+        FakeTask postponed = add(new FakeTask(1, 0, 0));
+        FakeTask other = add(new FakeTask(2, 0, 100));
+
+        postponed.readyInMilliSeconds = 1000;
+        mQueue.update(postponed);
+
+        assertSame(other, mQueue.getNext(mBusySubIds));
+    }
+
+    @Test
+    public void testManyTasks() {
+        int count = 10_000;
+        for (int i = 0; i < count; i++) {
+            // Spread over two subscriptions, with ready times out of insertion order and far
+            // enough apart that the clock moving while adding does not change the order.
+            add(new FakeTask(Task.TASK_ALLOW_DUPLICATES, i % 2, (i * 7919L) % count * 1000));
+        }
+        assertEquals(count, mQueue.size());
+
+        long lastReadyIn = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            FakeTask task = (FakeTask) mQueue.getNext(mBusySubIds);
+            assertTrue(task.readyInMilliSeconds >= lastReadyIn);
+            lastReadyIn = task.readyInMilliSeconds;
+            assertTrue(mQueue.remove(task));
+        }
+        assertTrue(mQueue.isEmpty());
+    }
+
+    private FakeTask add(FakeTask task) {
+        mQueue.add(task);
+        return task;
+    }
+
+    private static class FakeTask implements Task {
+
+        private final TaskId mId;
+        long readyInMilliSeconds;
+
+        FakeTask(int id, int subId, long readyInMilliSeconds) {
+            mId = new TaskId(id, subId);
+            this.readyInMilliSeconds = readyInMilliSeconds;
+        }
+
+        @Override
+        public TaskId getId() {
+            return mId;
+        }
+
+        @Override
+        public void onCreate(Context context, Intent intent, int flags, int startId) {}
+
+        @Override
+        public long getReadyInMilliSeconds() {
+            return readyInMilliSeconds;
+        }
+
+        @Override
+        public void onBeforeExecute() {}
+
+        @Override
+        public void onExecuteInBackgroundThread() {}
+
+        @Override
+        public void onCompleted() {}
+
+        @Override
+        public void onDuplicatedTaskAdded(Task task) {}
+    }
+}
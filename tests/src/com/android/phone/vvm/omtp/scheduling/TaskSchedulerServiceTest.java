@@ -19,13 +19,19 @@ package com.android.phone.vvm.omtp.scheduling;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import android.os.Message;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.android.phone.Assert;
 import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
+import com.android.phone.vvm.omtp.scheduling.TaskSchedulerService.MessageSender;
+import com.android.phone.vvm.omtp.scheduling.TaskSchedulerService.WorkerThreadHandler;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 @RunWith(AndroidJUnit4.class)
@@ -139,4 +145,62 @@ public class TaskSchedulerServiceTest extends TaskSchedulerServiceTestBase {
         verifyRanOnce(task1);
         verifyRanOnce(task2);
     }
+
+    @Test
+    public void testSameSubIdSerializedDifferentSubIdParallel() {
+        mService.setWorkerCountForTest(2);
+        DeferringMessageSender sender = new DeferringMessageSender();
+        mService.setMessageSenderForTest(sender);
+        TestTask task1 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 0)));
+        TestTask task2 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(2, 0)));
+        TestTask task3 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+
+        assertTrue(mService.runNextTask());
+        assertTrue(mService.runNextTask());
+        assertTrue(!mService.runNextTask());
+        assertTrue(task1.onBeforeExecuteCounter.invokedOnce());
+        assertTrue(task2.onBeforeExecuteCounter.neverInvoked());
+        assertTrue(task3.onBeforeExecuteCounter.invokedOnce());
+
+        sender.executeNext();
+        verifyRanOnce(task1);
+        assertTrue(mService.runNextTask());
+        assertTrue(task2.onBeforeExecuteCounter.invokedOnce());
+
+        sender.executeNext();
+        sender.executeNext();
+        verifyRanOnce(task2);
+        verifyRanOnce(task3);
+    }
+
+    /**
+     * Holds the messages to the worker threads until {@link #executeNext()}, so tasks can be
+     * observed while they are running. Messages to the main thread are handled immediately.
+     */
+    private static class DeferringMessageSender extends MessageSender {
+
+        private final List<Message> mWorkerMessages = new ArrayList<>();
+
+        @Override
+        public void send(Message message) {
+            if (message.getTarget() instanceof WorkerThreadHandler) {
+                mWorkerMessages.add(message);
+                return;
+            }
+            Assert.setIsMainThreadForTesting(true);
+            message.getTarget().handleMessage(message);
+        }
+
+        public void executeNext() {
+            Message message = mWorkerMessages.remove(0);
+            Assert.setIsMainThreadForTesting(false);
+            message.getTarget().handleMessage(message);
+        }
+    }
 }
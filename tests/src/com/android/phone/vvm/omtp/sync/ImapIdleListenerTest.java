@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.telecom.PhoneAccountHandle;
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.VoicemailStatus;
+import com.android.phone.common.mail.MessagingException;
+import com.android.phone.common.mail.store.ImapStore;
+import com.android.phone.common.mail.store.ScriptedImapConnection;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ImapIdleListenerTest extends AndroidTestCase {
+
+    private static final String SELECT_RESPONSE = "* 5 EXISTS\r\n"
+            + "* OK [UIDVALIDITY 3857529045] UIDs valid\r\n"
+            + "* OK [UIDNEXT 106] Next UID\r\n"
+            + "* OK [READ-ONLY] Select completed\r\n";
+
+    private static final String IDLE_COMPLETED = "+ idling\r\n";
+    private static final String IDLE_NEW_MESSAGE = "+ idling\r\n* 6 EXISTS\r\n";
+    private static final String IDLE_BYE = "+ idling\r\n* BYE idle for too long\r\n";
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    /** The responses to the IDLE commands, in order. */
+    private final List<String> mIdleResponses = new ArrayList<>();
+    private ScriptedImapConnection mConnection;
+    private ImapHelper mImapHelper;
+    private TestListener mListener;
+
+    /**
+     * Stops after the first change instead of starting a sync.
+     */
+    private static class TestListener extends ImapIdleListener {
+
+        int mChanges;
+
+        TestListener(Context context, PhoneAccountHandle phoneAccount) {
+            super(context, phoneAccount, new Handler(Looper.getMainLooper()));
+        }
+
+        @Override
+        void onMailboxChanged() {
+            mChanges++;
+            quit();
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getContext(), getClass());
+        ImapStore store = mock(ImapStore.class);
+        when(store.getContext()).thenReturn(getContext());
+        mConnection = new ScriptedImapConnection(store, command -> {
+            if (command.startsWith(ImapConstants.SELECT)) {
+                return SELECT_RESPONSE;
+            }
+            if (command.equals(ImapConstants.IDLE)) {
+                return mIdleResponses.remove(0);
+            }
+            return "";
+        });
+        mConnection.setCapabilities(ImapConstants.CAPABILITY_IDLE);
+        when(store.getConnection()).thenReturn(mConnection);
+
+        PhoneAccountHandle phoneAccount = new PhoneAccountHandle(
+                new ComponentName(getContext(), ImapIdleListenerTest.class),
+                "ImapIdleListenerTest");
+        mImapHelper = new ImapHelper(getContext(), mock(OmtpVvmCarrierConfigHelper.class),
+                phoneAccount, store, VoicemailStatus.edit(getContext(), phoneAccount));
+        mListener = new TestListener(getContext(), phoneAccount);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testIdle_reissuedAfterCompletion() throws MessagingException {
+        mIdleResponses.add(IDLE_COMPLETED);
+        mIdleResponses.add(IDLE_COMPLETED);
+        mIdleResponses.add(IDLE_NEW_MESSAGE);
+
+        mListener.idle(mImapHelper);
+
+        assertEquals(3, mConnection.countCommands(ImapConstants.IDLE));
+        assertEquals(1, mListener.mChanges);
+    }
+
+    public void testIdle_reissuedAfterBye() throws MessagingException {
+        mIdleResponses.add(IDLE_BYE);
+        mIdleResponses.add(IDLE_NEW_MESSAGE);
+
+        mListener.idle(mImapHelper);
+
+        assertEquals(2, mConnection.countCommands(ImapConstants.IDLE));
+        // The folder is selected again before the next IDLE.
+        assertEquals(2, mConnection.countCommands(ImapConstants.SELECT));
+        assertEquals(1, mListener.mChanges);
+    }
+
+    public void testIdle_byeRightAfterReconnecting() {
+        mIdleResponses.add(IDLE_BYE);
+        mIdleResponses.add(IDLE_BYE);
+
+        try {
+            mListener.idle(mImapHelper);
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            assertEquals(MessagingException.IOERROR, e.getExceptionType());
+        }
+        assertEquals(2, mConnection.countCommands(ImapConstants.IDLE));
+        assertEquals(0, mListener.mChanges);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import android.net.Uri;
+import android.telecom.Voicemail;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class OmtpVvmSyncServiceTest extends TestCase {
+
+    public void testGetPrefetchOrder_newestFirst() {
+        List<Voicemail> voicemails = Arrays.asList(
+                createVoicemail("101", 1000),
+                createVoicemail("103", 3000),
+                createVoicemail("102", 2000));
+        List<Uri> uris = Arrays.asList(
+                Uri.parse("content://voicemail/1"),
+                Uri.parse("content://voicemail/3"),
+                Uri.parse("content://voicemail/2"));
+
+        assertEquals(Arrays.asList(1, 2, 0), OmtpVvmSyncService.getPrefetchOrder(voicemails, uris));
+    }
+
+    public void testGetPrefetchOrder_skipsNotInserted() {
+        List<Voicemail> voicemails = Arrays.asList(
+                createVoicemail("101", 1000),
+                createVoicemail("102", 2000));
+        List<Uri> uris = Arrays.asList(Uri.parse("content://voicemail/1"), null);
+
+        assertEquals(Arrays.asList(0), OmtpVvmSyncService.getPrefetchOrder(voicemails, uris));
+    }
+
+    private static Voicemail createVoicemail(String uid, long timestampMillis) {
+        return Voicemail.createForInsertion(timestampMillis, "5551234")
+                .setSourceData(uid)
+                .build();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import android.content.ComponentName;
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.VoicemailContract;
+import android.provider.VoicemailContract.Voicemails;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.Voicemail;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class VoicemailBatchTest extends AndroidTestCase {
+
+    private static final int BATCH_SIZE = 2;
+
+    private FakeVoicemailProvider mProvider;
+    private VoicemailsQueryHelper mQueryHelper;
+    private PhoneAccountHandle mPhoneAccount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeVoicemailProvider();
+        mProvider.attachInfo(getContext(), null);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(VoicemailContract.AUTHORITY, mProvider);
+        mQueryHelper = new VoicemailsQueryHelper(new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        });
+        mPhoneAccount = new PhoneAccountHandle(
+                new ComponentName(getContext(), VoicemailBatchTest.class), "VoicemailBatchTest");
+    }
+
+    public void testApply_mixedOperations() {
+        Voicemail deleted = insert("101", false);
+        Voicemail read = insert("102", false);
+        Voicemail clean = insert("103", true);
+        int applyBatchCalls = mProvider.mApplyBatchCalls;
+
+        VoicemailBatch batch = mQueryHelper.newBatch(BATCH_SIZE);
+        batch.delete(deleted);
+        batch.markRead(read);
+        batch.updateTranscription(read, "Call me back");
+        batch.insert(createVoicemail("104"));
+        batch.markClean(clean);
+        assertEquals(5, batch.size());
+
+        List<Uri> uris = batch.apply();
+
+        // 5 operations, at most 2 per IPC.
+        assertEquals(applyBatchCalls + 3, mProvider.mApplyBatchCalls);
+        assertEquals(0, batch.size());
+        assertEquals(1, uris.size());
+        assertEquals("104", mProvider.getRow(ContentUris.parseId(uris.get(0)))
+                .getAsString(Voicemails.SOURCE_DATA));
+
+        Map<String, Voicemail> voicemails = new HashMap<>();
+        for (Voicemail voicemail : mQueryHelper.getAllVoicemails()) {
+            voicemails.put(voicemail.getSourceData(), voicemail);
+        }
+        assertEquals(3, voicemails.size());
+        assertFalse(voicemails.containsKey("101"));
+        assertTrue(voicemails.get("102").isRead());
+        assertEquals("Call me back", voicemails.get("102").getTranscription());
+        assertTrue(voicemails.get("103").isRead());
+        assertEquals(0, (int) mProvider.getRow(clean.getId()).getAsInteger(Voicemails.DIRTY));
+        assertFalse(voicemails.get("104").isRead());
+
+        Set<String> sourceData = mQueryHelper.getSourceData(mPhoneAccount);
+        assertEquals(3, sourceData.size());
+        assertTrue(sourceData.contains("104"));
+    }
+
+    public void testApply_failedBatch() {
+        Voicemail voicemail = insert("101", false);
+        mProvider.mFailApplyBatch = true;
+
+        VoicemailBatch batch = mQueryHelper.newBatch(BATCH_SIZE);
+        batch.markRead(voicemail);
+        batch.insert(createVoicemail("102"));
+
+        assertNull(batch.apply());
+        assertEquals(0, batch.size());
+    }
+
+    public void testApply_empty() {
+        int applyBatchCalls = mProvider.mApplyBatchCalls;
+
+        List<Uri> uris = mQueryHelper.newBatch(BATCH_SIZE).apply();
+
+        assertTrue(uris.isEmpty());
+        assertEquals(applyBatchCalls, mProvider.mApplyBatchCalls);
+    }
+
+    /**
+     * Inserts a voicemail the way a previous sync would have.
+     */
+    private Voicemail insert(String sourceData, boolean isRead) {
+        VoicemailBatch batch = mQueryHelper.newBatch(BATCH_SIZE);
+        batch.insert(createVoicemail(sourceData));
+        long id = ContentUris.parseId(batch.apply().get(0));
+        if (isRead) {
+            // Read locally but not synced to the server yet.
+            ContentValues values = new ContentValues();
+            values.put(Voicemails.IS_READ, 1);
+            values.put(Voicemails.DIRTY, 1);
+            mProvider.getRow(id).putAll(values);
+        }
+        return Voicemail.createForUpdate(id, sourceData).setIsRead(isRead).build();
+    }
+
+    private Voicemail createVoicemail(String sourceData) {
+        return Voicemail.createForInsertion(1000, "5551234")
+                .setPhoneAccount(mPhoneAccount)
+                .setSourcePackage(getContext().getPackageName())
+                .setSourceData(sourceData)
+                .build();
+    }
+
+    /**
+     * Keeps the voicemails table in memory. Only supports the queries made by {@link
+     * VoicemailsQueryHelper}.
+     */
+    private static class FakeVoicemailProvider extends ContentProvider {
+
+        private final Map<Long, ContentValues> mRows = new HashMap<>();
+        private long mNextId = 1;
+
+        int mApplyBatchCalls;
+        boolean mFailApplyBatch;
+
+        ContentValues getRow(long id) {
+            return mRows.get(id);
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mApplyBatchCalls++;
+            if (mFailApplyBatch) {
+                throw new OperationApplicationException("failed");
+            }
+            return super.applyBatch(operations);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (Map.Entry<Long, ContentValues> row : mRows.entrySet()) {
+                ContentValues values = row.getValue();
+                if (VoicemailsQueryHelper.ACCOUNT_SELECTION.equals(selection)) {
+                    if (!selectionArgs[0].equals(values.getAsString(
+                            Voicemails.PHONE_ACCOUNT_COMPONENT_NAME))
+                            || !selectionArgs[1].equals(
+                                    values.getAsString(Voicemails.PHONE_ACCOUNT_ID))) {
+                        continue;
+                    }
+                } else if (selection != null) {
+                    throw new UnsupportedOperationException(selection);
+                }
+                Object[] columns = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    columns[i] = Voicemails._ID.equals(projection[i])
+                            ? row.getKey() : values.get(projection[i]);
+                }
+                cursor.addRow(columns);
+            }
+            return cursor;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            long id = mNextId++;
+            ContentValues row = new ContentValues(values);
+            row.put(Voicemails.DIRTY, 0);
+            row.put(Voicemails.DELETED, 0);
+            mRows.put(id, row);
+            return ContentUris.withAppendedId(Voicemails.CONTENT_URI, id);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            ContentValues row = mRows.get(ContentUris.parseId(uri));
+            if (row == null) {
+                return 0;
+            }
+            row.putAll(values);
+            // An update by the source marks the voicemail as in sync with the server.
+            if (!values.containsKey(Voicemails.DIRTY)) {
+                row.put(Voicemails.DIRTY, 0);
+            }
+            return 1;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mRows.remove(ContentUris.parseId(uri)) != null ? 1 : 0;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+    }
+}
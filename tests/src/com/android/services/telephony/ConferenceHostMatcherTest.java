@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ConferenceHostMatcher, which filters the conference host out of the participants of a
+ * conference event package.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ConferenceHostMatcherTest {
+
+    @Test
+    public void testGetParticipantNumber() {
+        assertEquals("1650555121", ConferenceHostMatcher.getParticipantNumber(
+                Uri.parse("sip:1650555121;phone-context=blah.com@host.com")));
+        assertEquals("+1-212-555-1212", ConferenceHostMatcher.getParticipantNumber(
+                Uri.parse("sip:+1-212-555-1212@something.com;user=phone")));
+        assertEquals("user", ConferenceHostMatcher.getParticipantNumber(
+                Uri.parse("sip:user:password@host.com")));
+        assertEquals("6505551212", ConferenceHostMatcher.getParticipantNumber(
+                Uri.parse("tel:6505551212")));
+        assertEquals("", ConferenceHostMatcher.getParticipantNumber(Uri.parse("sip:@host.com")));
+    }
+
+    @Test
+    public void testIsHost() {
+        ConferenceHostMatcher matcher = new ConferenceHostMatcher(new Uri[] {
+                null, Uri.parse("tel:+16505551212"), Uri.parse("tel:6505550000")});
+
+        assertTrue(matcher.isHost(Uri.parse("sip:16505551212@ims.example.com;user=phone")));
+        assertTrue(matcher.isHost(Uri.parse("sip:+1-650-555-0000@ims.example.com")));
+        // The answer is remembered.
+        assertTrue(matcher.isHost(Uri.parse("sip:16505551212@ims.example.com;user=phone")));
+        assertFalse(matcher.isHost(Uri.parse("sip:6505551213@ims.example.com")));
+        assertFalse(matcher.isHost(Uri.parse("sip:@ims.example.com")));
+        assertFalse(matcher.isHost(null));
+    }
+
+    @Test
+    public void testIsHost_noHost() {
+        assertFalse(new ConferenceHostMatcher(null).isHost(Uri.parse("sip:6505551212@host")));
+        assertFalse(new ConferenceHostMatcher(new Uri[] {null})
+                .isHost(Uri.parse("sip:6505551212@host")));
+    }
+}
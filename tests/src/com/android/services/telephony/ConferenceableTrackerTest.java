@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ConferenceableTracker with connections going on and off hold, being conferenced and
+ * hanging up, as TelephonyConferenceController would see them.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ConferenceableTrackerTest {
+
+    /**
+     * A connection which remembers the conferenceable connections it was given, as Telecom would.
+     */
+    private static class FakeConnection {
+        final String name;
+        boolean conferenceable;
+        HashSet<FakeConnection> conferenceables = new HashSet<>();
+
+        FakeConnection(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private int mUpdates;
+
+    private final ConferenceableTracker<FakeConnection> mTracker = new ConferenceableTracker<>(
+            new ConferenceableTracker.Listener<FakeConnection>() {
+                @Override
+                public void onConferenceablesChanged(FakeConnection connection,
+                        List<FakeConnection> conferenceables) {
+                    mUpdates++;
+                    connection.conferenceables = new HashSet<>(conferenceables);
+                }
+            });
+
+    private final List<FakeConnection> mConnections = new ArrayList<>();
+
+    @Test
+    public void testUpdate_setsEveryConnectionOnce() {
+        FakeConnection active = add("active", true);
+        FakeConnection held = add("held", true);
+        FakeConnection dialing = add("dialing", false);
+
+        recalculate();
+
+        assertEquals(3, mUpdates);
+        assertEquals(Collections.singleton(held), active.conferenceables);
+        assertEquals(Collections.singleton(active), held.conferenceables);
+        assertTrue(dialing.conferenceables.isEmpty());
+
+        recalculate();
+        assertEquals(3, mUpdates);
+    }
+
+    @Test
+    public void testUpdate_onlyChangedConnections() {
+        FakeConnection first = add("first", true);
+        FakeConnection second = add("second", false);
+        FakeConnection third = add("third", false);
+        recalculate();
+        mUpdates = 0;
+
+        // Alone in the set, the first connection is still conferenceable with nothing.
+        third.conferenceable = true;
+        recalculate();
+        assertEquals(2, mUpdates);
+        assertEquals(Collections.singleton(third), first.conferenceables);
+        assertTrue(second.conferenceables.isEmpty());
+
+        mUpdates = 0;
+        first.conferenceable = false;
+        recalculate();
+        assertEquals(2, mUpdates);
+        assertTrue(first.conferenceables.isEmpty());
+        assertTrue(third.conferenceables.isEmpty());
+    }
+
+    @Test
+    public void testForget_connectionAddedAgain() {
+        FakeConnection first = add("first", true);
+        FakeConnection second = add("second", true);
+        recalculate();
+
+        remove(second);
+        assertEquals(Collections.emptySet(), first.conferenceables);
+
+        // Another controller may have changed it meanwhile, so it's told again.
+        mUpdates = 0;
+        second.conferenceable = false;
+        second.conferenceables.add(first);
+        mConnections.add(second);
+        recalculate();
+        assertEquals(1, mUpdates);
+        assertTrue(second.conferenceables.isEmpty());
+    }
+
+    @Test
+    public void testUpdate_churn() {
+        Random random = new Random(42);
+        int naiveUpdates = 0;
+        int nextName = 0;
+        for (int i = 0; i < 10; i++) {
+            add("c" + nextName++, random.nextBoolean());
+        }
+        recalculate();
+
+        for (int step = 0; step < 2000; step++) {
+            int choice = random.nextInt(10);
+            if (choice == 0 && mConnections.size() > 1) {
+                remove(mConnections.get(random.nextInt(mConnections.size())));
+            } else if (choice == 1) {
+                add("c" + nextName++, random.nextBoolean());
+                recalculate();
+            } else {
+                // Most state changes, e.g. dialing to alerting, don't change the set.
+                FakeConnection connection = mConnections.get(random.nextInt(mConnections.size()));
+                if (choice < 4) {
+                    connection.conferenceable = !connection.conferenceable;
+                }
+                recalculate();
+            }
+            naiveUpdates += mConnections.size();
+            assertConferenceables();
+        }
+
+        assertTrue("updates " + mUpdates + " naive " + naiveUpdates,
+                mUpdates * 4 < naiveUpdates);
+    }
+
+    private FakeConnection add(String name, boolean conferenceable) {
+        FakeConnection connection = new FakeConnection(name);
+        connection.conferenceable = conferenceable;
+        mConnections.add(connection);
+        return connection;
+    }
+
+    private void remove(FakeConnection connection) {
+        mConnections.remove(connection);
+        mTracker.forget(connection);
+        recalculate();
+    }
+
+    private void recalculate() {
+        LinkedHashSet<FakeConnection> conferenceables = new LinkedHashSet<>();
+        for (FakeConnection connection : mConnections) {
+            if (connection.conferenceable) {
+                conferenceables.add(connection);
+            }
+        }
+        mTracker.update(mConnections, conferenceables);
+    }
+
+    /**
+     * Checks that every connection has the conferenceable connections a full recalculation would
+     * have set.
+     */
+    private void assertConferenceables() {
+        for (FakeConnection connection : mConnections) {
+            HashSet<FakeConnection> expected = new HashSet<>();
+            if (connection.conferenceable) {
+                for (FakeConnection other : mConnections) {
+                    if (other != connection && other.conferenceable) {
+                        expected.add(other);
+                    }
+                }
+            }
+            assertEquals(connection.name, expected, connection.conferenceables);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.content.ComponentName;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.runner.AndroidJUnit4;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+
+import com.android.TelephonyTestBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests how TelecomAccountRegistry avoids registering phone accounts with Telecom again.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TelecomAccountRegistryTest extends TelephonyTestBase {
+
+    private static final long TIMEOUT_MS = 1000;
+    private static final long DEBOUNCE_MS = 50;
+
+    @Mock TelecomManager mTelecomManager;
+    private PhoneAccountHandle mHandle;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mHandle = new PhoneAccountHandle(
+                new ComponentName(mContext, TelephonyConnectionService.class), "1");
+        mHandlerThread = new HandlerThread("TelecomAccountRegistryTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    @Test
+    public void testRegisterIfChanged_unchanged() {
+        PhoneAccount registered = createAccount("SIM 1", Color.BLUE);
+        PhoneAccount account = createAccount("SIM 1", Color.BLUE);
+
+        assertFalse(TelecomAccountRegistry.registerIfChanged(mTelecomManager, registered,
+                account));
+        verify(mTelecomManager, never()).registerPhoneAccount(account);
+    }
+
+    @Test
+    public void testRegisterIfChanged_notRegisteredBefore() {
+        PhoneAccount account = createAccount("SIM 1", Color.BLUE);
+
+        assertTrue(TelecomAccountRegistry.registerIfChanged(mTelecomManager, null, account));
+        verify(mTelecomManager).registerPhoneAccount(account);
+    }
+
+    @Test
+    public void testRegisterIfChanged_labelChanged() {
+        PhoneAccount registered = createAccount("SIM 1", Color.BLUE);
+        PhoneAccount account = createAccount("Carrier", Color.BLUE);
+
+        assertTrue(TelecomAccountRegistry.registerIfChanged(mTelecomManager, registered,
+                account));
+        verify(mTelecomManager).registerPhoneAccount(account);
+    }
+
+    @Test
+    public void testRegisterIfChanged_onlyIconChanged() {
+        PhoneAccount registered = createAccount("SIM 1", Color.BLUE);
+        PhoneAccount account = createAccount("SIM 1", Color.RED);
+
+        assertTrue(TelecomAccountRegistry.registerIfChanged(mTelecomManager, registered,
+                account));
+        verify(mTelecomManager).registerPhoneAccount(account);
+    }
+
+    @Test
+    public void testDebouncer_burstRunsOnce() {
+        AtomicInteger runs = new AtomicInteger();
+        TelecomAccountRegistry.Debouncer debouncer = new TelecomAccountRegistry.Debouncer(
+                mHandler, DEBOUNCE_MS, runs::incrementAndGet);
+
+        mHandler.post(() -> {
+            debouncer.trigger();
+            debouncer.trigger();
+            debouncer.trigger();
+        });
+        waitForHandlerActionDelayed(mHandler, TIMEOUT_MS, 2 * DEBOUNCE_MS);
+
+        assertEquals(1, runs.get());
+        assertEquals(2, debouncer.getCoalescedCount());
+    }
+
+    @Test
+    public void testDebouncer_triggerAfterRunRunsAgain() {
+        AtomicInteger runs = new AtomicInteger();
+        TelecomAccountRegistry.Debouncer debouncer = new TelecomAccountRegistry.Debouncer(
+                mHandler, DEBOUNCE_MS, runs::incrementAndGet);
+
+        mHandler.post(debouncer::trigger);
+        waitForHandlerActionDelayed(mHandler, TIMEOUT_MS, 2 * DEBOUNCE_MS);
+        mHandler.post(debouncer::trigger);
+        waitForHandlerActionDelayed(mHandler, TIMEOUT_MS, 2 * DEBOUNCE_MS);
+
+        assertEquals(2, runs.get());
+        assertEquals(0, debouncer.getCoalescedCount());
+    }
+
+    /**
+     * Builds the account the way it is built for a SIM, with the icon tinted in {@code color}.
+     */
+    private PhoneAccount createAccount(String label, int color) {
+        Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return PhoneAccount.builder(mHandle, label)
+                .setAddress(Uri.parse("tel:5551234"))
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .setHighlightColor(Color.BLUE)
+                .setIcon(Icon.createWithBitmap(bitmap))
+                .build();
+    }
+}
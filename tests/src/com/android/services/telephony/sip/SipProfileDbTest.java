@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony.sip;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.net.sip.SipProfile;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the file SipProfileDb keeps the profiles in, and the move of the profiles saved by older
+ * releases to it.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SipProfileDbTest {
+
+    /**
+     * A context whose storage is a directory of the test.
+     */
+    private static class TestContext extends ContextWrapper {
+        private final File mFilesDir;
+
+        TestContext(Context base, File filesDir) {
+            super(base);
+            mFilesDir = filesDir;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mFilesDir;
+        }
+
+        @Override
+        public Context createCredentialProtectedStorageContext() {
+            return this;
+        }
+    }
+
+    private File mFilesDir;
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        // The profiles are cached by file, so each test has its own.
+        mFilesDir = new File(context.getCacheDir(), "SipProfileDbTest" + System.nanoTime());
+        assertTrue(mFilesDir.mkdirs());
+        mContext = new TestContext(context, mFilesDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(mFilesDir);
+    }
+
+    @Test
+    public void testWriteProfiles_format() throws Exception {
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<>();
+        profiles.put("alice", createProfile("alice", "alice"));
+        profiles.put("bob", createProfile("bob", "bob"));
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(SipProfileDb.writeProfiles(profiles)));
+        assertEquals(0x53495050, in.readInt());
+        assertEquals(SipProfileDb.FORMAT_VERSION, in.readInt());
+        assertEquals(2, in.readInt());
+        for (int i = 0; i < 2; i++) {
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            assertEquals((int) crc.getValue(), in.readInt());
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testParseProfiles_keepsEveryField() throws Exception {
+        SipProfile profile = new SipProfile.Builder("alice", "sip.example.com")
+                .setProfileName("work")
+                .setPassword("secret")
+                .setAuthUserName("alice-auth")
+                .setDisplayName("Alice")
+                .setOutboundProxy("proxy.example.com")
+                .setProtocol("TCP")
+                .setPort(5070)
+                .setSendKeepAlive(true)
+                .setAutoRegistration(false)
+                .build();
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<>();
+        profiles.put("work", profile);
+
+        SipProfile p = SipProfileDb.parseProfiles(SipProfileDb.writeProfiles(profiles)).get("work");
+
+        assertEquals("work", p.getProfileName());
+        assertEquals("alice", p.getUserName());
+        assertEquals("sip.example.com", p.getSipDomain());
+        assertEquals("secret", p.getPassword());
+        assertEquals("alice-auth", p.getAuthUserName());
+        assertEquals("Alice", p.getDisplayName());
+        assertEquals("proxy.example.com", p.getProxyAddress());
+        assertEquals("TCP", p.getProtocol());
+        assertEquals(5070, p.getPort());
+        assertTrue(p.getSendKeepAlive());
+        assertFalse(p.getAutoRegistration());
+    }
+
+    @Test
+    public void testParseProfiles_corruptRecord() throws Exception {
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<>();
+        profiles.put("alice", createProfile("alice", "alice"));
+        profiles.put("bob", createProfile("bob", "bob"));
+        profiles.put("carol", createProfile("carol", "carol"));
+        byte[] data = SipProfileDb.writeProfiles(profiles);
+
+        // Header, then the length, record and CRC of alice, then the length of bob.
+        int firstLength = new DataInputStream(new ByteArrayInputStream(data, 12, 4)).readInt();
+        data[12 + 4 + firstLength + 4 + 4] ^= 0x01;
+
+        LinkedHashMap<String, SipProfile> parsed = SipProfileDb.parseProfiles(data);
+        assertEquals(1, parsed.size());
+        assertEquals("alice", parsed.get("alice").getUserName());
+    }
+
+    @Test
+    public void testParseProfiles_truncated() throws Exception {
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<>();
+        profiles.put("alice", createProfile("alice", "alice"));
+        profiles.put("bob", createProfile("bob", "bob"));
+        byte[] data = SipProfileDb.writeProfiles(profiles);
+        byte[] truncated = new byte[data.length - 6];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        LinkedHashMap<String, SipProfile> parsed = SipProfileDb.parseProfiles(truncated);
+        assertEquals(1, parsed.size());
+        assertTrue(parsed.containsKey("alice"));
+    }
+
+    @Test
+    public void testParseProfiles_notAProfilesFile() throws Exception {
+        LinkedHashMap<String, SipProfile> profiles = new LinkedHashMap<>();
+        profiles.put("alice", createProfile("alice", "alice"));
+        byte[] data = SipProfileDb.writeProfiles(profiles);
+
+        byte[] badMagic = data.clone();
+        badMagic[0] = 0;
+        assertTrue(SipProfileDb.parseProfiles(badMagic).isEmpty());
+
+        byte[] newerVersion = data.clone();
+        newerVersion[7] = (byte) (SipProfileDb.FORMAT_VERSION + 1);
+        assertTrue(SipProfileDb.parseProfiles(newerVersion).isEmpty());
+    }
+
+    @Test
+    public void testSaveProfile_readByAnotherInstance() throws Exception {
+        new SipProfileDb(mContext).saveProfile(createProfile("alice", "alice"));
+
+        SipProfile p = new SipProfileDb(mContext).retrieveSipProfileFromName("alice");
+        assertEquals("alice", p.getUserName());
+        assertTrue(new File(mFilesDir, "sip_profiles").exists());
+    }
+
+    @Test
+    public void testMigrateLegacyProfiles() throws Exception {
+        File profilesDir = new File(mFilesDir, "profiles");
+        writeLegacyProfile(profilesDir, createProfile("alice", "alice"));
+        writeLegacyProfile(profilesDir, createProfile("bob", "bob"));
+        File broken = new File(profilesDir, "broken");
+        assertTrue(broken.mkdirs());
+        FileOutputStream out = new FileOutputStream(new File(broken, ".pobj"));
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+
+        List<SipProfile> profiles = new SipProfileDb(mContext).retrieveSipProfileList();
+
+        assertEquals(2, profiles.size());
+        assertTrue(new File(mFilesDir, "sip_profiles").exists());
+        assertFalse(new File(profilesDir, "alice").exists());
+        assertFalse(new File(profilesDir, "bob").exists());
+        // The profile which couldn't be read isn't deleted.
+        assertTrue(new File(broken, ".pobj").exists());
+    }
+
+    @Test
+    public void testMigrateLegacyProfiles_removesDirectoryWhenEverythingMoved() throws Exception {
+        File profilesDir = new File(mFilesDir, "profiles");
+        writeLegacyProfile(profilesDir, createProfile("alice", "alice"));
+
+        SipProfileDb db = new SipProfileDb(mContext);
+        assertEquals("alice", db.retrieveSipProfileFromName("alice").getUserName());
+        assertFalse(profilesDir.exists());
+        assertNull(db.retrieveSipProfileFromName("bob"));
+    }
+
+    private static SipProfile createProfile(String name, String userName) throws Exception {
+        return new SipProfile.Builder(userName, "sip.example.com")
+                .setProfileName(name)
+                .setPassword("password")
+                .build();
+    }
+
+    private static void writeLegacyProfile(File profilesDir, SipProfile p) throws Exception {
+        File dir = new File(profilesDir, p.getProfileName());
+        assertTrue(dir.mkdirs());
+        ObjectOutputStream oos = new ObjectOutputStream(
+                new FileOutputStream(new File(dir, ".pobj")));
+        oos.writeObject(p);
+        oos.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
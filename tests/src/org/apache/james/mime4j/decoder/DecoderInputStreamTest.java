@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the bulk {@code read(byte[], int, int)} of the decoders returns the same bytes as
+ * reading them one at a time.
+ */
+public class DecoderInputStreamTest extends TestCase {
+
+    private static final String BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    public void testBase64_decodes() throws IOException {
+        assertEquals("Hello, World!",
+                decodeBase64Bulk("SGVsbG8s\r\nIFdvcmxkIQ==", new Random(0)));
+        assertEquals("Hello", decodeBase64Bulk("SGVsbG8=", new Random(0)));
+    }
+
+    public void testBase64_stopsAtFirstPadding() throws IOException {
+        assertEquals("Hi", decodeBase64Bulk("SGk=SGVsbG8=", new Random(0)));
+    }
+
+    public void testBase64_matchesSingleByteRead() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            String input = randomString(random, BASE64_ALPHABET + "=\r\n !", 300);
+            assertEquals(input, decodeBase64Single(input),
+                    decodeBase64Bulk(input, new Random(i)));
+        }
+    }
+
+    public void testQuotedPrintable_decodes() throws IOException {
+        assertEquals("caf\u00e9 au lait",
+                new String(toBytes(new QuotedPrintableInputStream(
+                        new ChunkedInputStream(ascii("caf=C3=A9 au =\r\nlait  "),
+                                new Random(0))), new Random(0)),
+                        StandardCharsets.UTF_8));
+    }
+
+    public void testQuotedPrintable_matchesSingleByteRead() throws IOException {
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            String input = randomString(random, "abcXYZ09AFaf= \t\r\n", 300);
+            byte[] expected = readSingle(new QuotedPrintableInputStream(
+                    new ByteArrayInputStream(ascii(input))));
+            byte[] actual = toBytes(new QuotedPrintableInputStream(
+                    new ChunkedInputStream(ascii(input), new Random(i))), new Random(i));
+            assertTrue(input, Arrays.equals(expected, actual));
+        }
+    }
+
+    private static String decodeBase64Single(String input) throws IOException {
+        return new String(readSingle(new Base64InputStream(
+                new ByteArrayInputStream(ascii(input)))), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String decodeBase64Bulk(String input, Random random) throws IOException {
+        return new String(toBytes(new Base64InputStream(
+                new ChunkedInputStream(ascii(input), random)), random),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] readSingle(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads {@code in} with a random mix of single byte and bulk reads of varying sizes.
+     */
+    private static byte[] toBytes(InputStream in, Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        while (true) {
+            if (random.nextInt(4) == 0) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int offset = random.nextInt(8);
+                int length = 1 + random.nextInt(buffer.length - offset);
+                int count = in.read(buffer, offset, length);
+                if (count == -1) {
+                    break;
+                }
+                assertTrue(count > 0);
+                out.write(buffer, offset, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = random.nextInt(maxLength); i > 0; i--) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns its data in chunks of random size, like a network stream.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final Random mRandom;
+
+        ChunkedInputStream(byte[] data, Random random) {
+            super(data);
+            mRandom = random;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + mRandom.nextInt(16)));
+        }
+    }
+}